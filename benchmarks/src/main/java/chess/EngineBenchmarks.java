@@ -0,0 +1,117 @@
+package chess;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import chess.ChessEngine.*;
+
+// JMH benchmarks for the engine hot paths, one position per operation, cycling through
+// a small corpus for each game phase:
+//   java -jar benchmarks/target/benchmarks.jar              all of them, with -prof gc
+//   java -jar benchmarks/target/benchmarks.jar legalMoves   a regex picks benchmarks
+//   java -jar benchmarks/target/benchmarks.jar -p phase=endgame -prof stack
+// Any JMH option works; the GC profiler (allocation rate and bytes per operation) is added
+// unless the command line asks for its own -prof.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmarks {
+    private static final Map<String, String[]> CORPUS = Map.of(
+        "opening", new String[] {
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            "rnbqkbnr/pppp1ppp/8/4p3/4P3/5N2/PPPP1PPP/RNBQKB1R b KQkq - 1 2",
+            "r1bqkbnr/pppp1ppp/2n5/1B2p3/4P3/5N2/PPPP1PPP/RNBQK2R b KQkq - 3 3",
+            "rnbqkb1r/pp2pppp/3p1n2/8/3NP3/8/PPP2PPP/RNBQKB1R w KQkq - 1 5"
+        },
+        "middlegame", new String[] {
+            "r3k2r/pppq1ppp/2n2n2/3pp3/1b1PP3/2N2N2/PPPQ1PPP/R3K2R w KQkq - 0 1",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10",
+            "r2q1rk1/pP1p2pp/Q4n2/bbp1p3/Np6/1B3NBn/pPPP1PPP/R3K2R b KQ - 0 1"
+        },
+        "endgame", new String[] {
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "8/8/4k3/8/2PK4/8/8/8 w - - 0 1",
+            "6k1/5ppp/8/8/8/8/5PPP/3R2K1 w - - 0 1",
+            "8/5pk1/6p1/3q4/8/6P1/5PK1/4Q3 w - - 0 1"
+        });
+
+    @Param({"opening", "middlegame", "endgame"})
+    public String phase;
+
+    private Game[] games;
+    private Move[] candidates;  // A legal move in each position, for applyMoveIfLegal
+    private int next;
+
+    @Setup
+    public void setup() {
+        String[] fens = CORPUS.get(phase);
+        games = new Game[fens.length];
+        candidates = new Move[fens.length];
+        for (int i = 0; i < fens.length; i++) {
+            games[i] = Game.fromFen(fens[i]);
+            List<Move> legal = games[i].legalMoves(games[i].getTurn());
+            candidates[i] = legal.get(legal.size() / 2);
+        }
+    }
+
+    private Game nextGame() {
+        next = (next + 1) % games.length;
+        return games[next];
+    }
+
+    @Benchmark
+    public Board boardClone() {
+        return nextGame().getBoard().clone();
+    }
+
+    @Benchmark
+    public List<Move> legalMoves() {
+        Game g = nextGame();
+        return g.legalMoves(g.getTurn());
+    }
+
+    // Every square against the side not to move; time is per square
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public void isSquareAttacked(Blackhole bh) {
+        Game g = nextGame();
+        Color attacker = g.getTurn() == Color.WHITE ? Color.BLACK : Color.WHITE;
+        for (int sq = 0; sq < 64; sq++) bh.consume(g.isSquareAttacked(sq >> 3, sq & 7, attacker));
+    }
+
+    @Benchmark
+    public String getPositionHash() {
+        return nextGame().getPositionHash();
+    }
+
+    // Attack maps are kept on the game, so this is the evaluator's steady-state cost
+    @Benchmark
+    public double evaluatePosition() {
+        Game g = nextGame();
+        return PositionEvaluator.evaluatePosition(g.getBoard(), g);
+    }
+
+    // Validate and play one move, then take it back so the corpus is unchanged
+    @Benchmark
+    public boolean applyMoveIfLegal() {
+        Game g = nextGame();
+        boolean played = g.applyMoveIfLegal(candidates[next]);
+        if (played) g.undo();
+        return played;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-prof") && !options.contains("-lprof") && !options.contains("-h")) {
+            options.add("-prof");
+            options.add("gc");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
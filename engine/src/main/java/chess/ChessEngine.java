@@ -0,0 +1,6358 @@
+package chess;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// The headless engine: pieces, board, rules, evaluation and search, and the command-line
+// tools built on them. Nothing here may use AWT, Swing or javax.sound, so servers and batch
+// tools run from this module alone and never load the GUI; Chess (the gui module) builds on it.
+public class ChessEngine {
+    // "java -jar chess-engine.jar <mode> ...": the headless tools, or a console game when
+    // no tool is named
+    public static void main(String[] args) {
+        if (runTool(args)) return;
+        Game game = new Game();
+        game.run();
+    }
+
+    // Runs the headless mode named by args[0] ("uci", "pgn", "server", ...). Returns
+    // false, having done nothing, when args[0] is not one of them.
+    static boolean runTool(String[] args) {
+        // Headless tools take their mode as the first argument, e.g. "pgn games.pgn".
+        String mode = args.length > 0 ? args[0].toLowerCase() : "";
+        try {
+            switch (mode) {
+                case "uci" -> {
+                    new UciEngine(System.out).run(System.in);
+                    return true;
+                }
+                case "annotate" -> {
+                    String usage = "annotate <in.pgn> <out.pgn> [depth] [threads]";
+                    int depth = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+                    int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+                    new BatchAnnotator(depth, threads).run(java.nio.file.Path.of(requireArg(args, 1, usage)),
+                        java.nio.file.Path.of(requireArg(args, 2, usage)));
+                    return true;
+                }
+                case "archive" -> {
+                    String usage = "archive pack <in.pgn> <out.cga> | unpack <in.cga> <out.pgn> | get <in.cga> <n>";
+                    String op = requireArg(args, 1, usage);
+                    java.nio.file.Path from = java.nio.file.Path.of(requireArg(args, 2, usage));
+                    String to = requireArg(args, 3, usage);
+                    switch (op) {
+                        case "pack" -> GameArchive.pack(from, java.nio.file.Path.of(to));
+                        case "unpack" -> GameArchive.unpack(from, java.nio.file.Path.of(to));
+                        case "get" -> GameArchive.printGame(from, Long.parseLong(to));
+                        default -> requireArg(args, args.length, usage);
+                    }
+                    return true;
+                }
+                case "match" -> {
+                    String usage = "match <openings.fen|-> <out.pgn> [games] [seconds+inc] [threads] [depth]";
+                    MatchRunner.runMatch(java.nio.file.Path.of(requireArg(args, 1, usage)),
+                        java.nio.file.Path.of(requireArg(args, 2, usage)),
+                        args.length > 3 ? Integer.parseInt(args[3]) : 100,
+                        MatchRunner.TimeControl.parse(args.length > 4 ? args[4] : "10+0.1"),
+                        args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors(),
+                        args.length > 6 ? Integer.parseInt(args[6]) : Search.MAX_PLY);
+                    return true;
+                }
+                case "sprt" -> {
+                    String usage = "sprt <openings.fen|-> <new> <base> [elo0,elo1] [seconds+inc] [threads] [maxGames]"
+                        + "  (engines: default | depth=N,p=..,n=..,b=..,r=..,q=..,pst=percent)";
+                    String[] bounds = (args.length > 4 ? args[4] : "0,5").split(",");
+                    if (bounds.length != 2) requireArg(args, args.length, usage);
+                    SprtTester.run(java.nio.file.Path.of(requireArg(args, 1, usage)),
+                        requireArg(args, 2, usage), requireArg(args, 3, usage),
+                        Double.parseDouble(bounds[0]), Double.parseDouble(bounds[1]),
+                        MatchRunner.TimeControl.parse(args.length > 5 ? args[5] : "10+0.1"),
+                        args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors(),
+                        args.length > 7 ? Integer.parseInt(args[7]) : 20000);
+                    return true;
+                }
+                case "server" -> {
+                    GameServer server = new GameServer(args.length > 1 ? Integer.parseInt(args[1]) : GameServer.DEFAULT_PORT);
+                    System.out.println("listening on 127.0.0.1:" + server.getPort());
+                    server.serve();
+                    return true;
+                }
+                case "loadtest" -> {
+                    LoadTestClient.run(args.length > 1 ? Integer.parseInt(args[1]) : GameServer.DEFAULT_PORT,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 50,
+                        args.length > 3 ? Integer.parseInt(args[3]) : 4,
+                        args.length > 4 ? Integer.parseInt(args[4]) : 10,
+                        args.length > 5 ? Integer.parseInt(args[5]) : 0);
+                    return true;
+                }
+                case "explorer" -> {
+                    String usage = "explorer build <games.pgn|games.cga> <out.idx> [memoryMB] | query <index> [fen]";
+                    String op = requireArg(args, 1, usage);
+                    java.nio.file.Path from = java.nio.file.Path.of(requireArg(args, 2, usage));
+                    switch (op) {
+                        case "build" -> OpeningIndex.build(from, java.nio.file.Path.of(requireArg(args, 3, usage)),
+                            args.length > 4 ? Integer.parseInt(args[4]) : 256);
+                        case "query" -> OpeningIndex.printQuery(from,
+                            args.length > 3 ? String.join(" ", Arrays.copyOfRange(args, 3, args.length)) : null);
+                        default -> requireArg(args, args.length, usage);
+                    }
+                    return true;
+                }
+                case "bench" -> {
+                    Benchmarks.run(requireArg(args, 1, "bench <name>"));
+                    return true;
+                }
+                case "pgn" -> {
+                    PgnReader.printStats(java.nio.file.Path.of(requireArg(args, 1, "pgn <file.pgn>")));
+                    return true;
+                }
+                default -> {
+                    return false;
+                }
+            }
+        } catch (java.io.IOException | java.io.UncheckedIOException e) {
+            System.err.println(mode + ": " + e.getMessage());
+            System.exit(1);
+        }
+        return true;
+    }
+
+    private static String requireArg(String[] args, int index, String usage) {
+        if (index < args.length) return args[index];
+        System.err.println("usage: java Chess " + usage);
+        System.exit(2);
+        return null;
+    }
+
+    enum Color { WHITE, BLACK }
+
+    enum PieceType { KING, QUEEN, ROOK, BISHOP, KNIGHT, PAWN }
+
+    static class Piece implements Cloneable {
+        final PieceType type;  // Immutable - optimize with final
+        final Color color;     // Immutable - optimize with final
+
+        // The twelve pieces; every Piece in the program is one of these (see of())
+        static final Piece WHITE_PAWN = new Piece(PieceType.PAWN, Color.WHITE);
+        static final Piece BLACK_PAWN = new Piece(PieceType.PAWN, Color.BLACK);
+        static final Piece WHITE_ROOK = new Piece(PieceType.ROOK, Color.WHITE);
+        static final Piece BLACK_ROOK = new Piece(PieceType.ROOK, Color.BLACK);
+        static final Piece WHITE_KNIGHT = new Piece(PieceType.KNIGHT, Color.WHITE);
+        static final Piece BLACK_KNIGHT = new Piece(PieceType.KNIGHT, Color.BLACK);
+        static final Piece WHITE_BISHOP = new Piece(PieceType.BISHOP, Color.WHITE);
+        static final Piece BLACK_BISHOP = new Piece(PieceType.BISHOP, Color.BLACK);
+        static final Piece WHITE_QUEEN = new Piece(PieceType.QUEEN, Color.WHITE);
+        static final Piece BLACK_QUEEN = new Piece(PieceType.QUEEN, Color.BLACK);
+        static final Piece WHITE_KING = new Piece(PieceType.KING, Color.WHITE);
+        static final Piece BLACK_KING = new Piece(PieceType.KING, Color.BLACK);
+
+        // Indexed by type ordinal * 2 + color ordinal
+        private static final Piece[] ALL = {
+            WHITE_KING, BLACK_KING, WHITE_QUEEN, BLACK_QUEEN, WHITE_ROOK, BLACK_ROOK,
+            WHITE_BISHOP, BLACK_BISHOP, WHITE_KNIGHT, BLACK_KNIGHT, WHITE_PAWN, BLACK_PAWN
+        };
+
+        private Piece(PieceType type, Color color) {
+            this.type = type;
+            this.color = color;
+        }
+
+        static Piece of(PieceType type, Color color) {
+            return ALL[type.ordinal() * 2 + color.ordinal()];
+        }
+
+        @Override
+        public Piece clone() {
+            // Pieces are immutable and shared, so a clone is the piece itself
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(toChar());
+        }
+
+        // FEN letter: uppercase for White, lowercase for Black
+        char toChar() {
+            // Optimization: Use direct char instead of switch for better performance
+            char c = switch (type) {
+                case KING -> 'K';
+                case QUEEN -> 'Q';
+                case ROOK -> 'R';
+                case BISHOP -> 'B';
+                case KNIGHT -> 'N';
+                case PAWN -> 'P';
+            };
+            return color == Color.WHITE ? c : Character.toLowerCase(c);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Piece)) return false;
+            Piece piece = (Piece) o;
+            return type == piece.type && color == piece.color;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, color);
+        }
+    }
+
+    static class Pos {
+        final int r, c;  // Immutable - optimize with final
+        
+        // One shared Pos and name per board square, indexed r * 8 + c
+        private static final Pos[] SQUARES = new Pos[64];
+        private static final String[] NAMES = new String[64];
+        static {
+            for (int sq = 0; sq < 64; sq++) {
+                SQUARES[sq] = new Pos(sq >> 3, sq & 7);
+                NAMES[sq] = new String(new char[] {(char) ('a' + (sq & 7)), (char) ('8' - (sq >> 3))}).intern();
+            }
+        }
+        
+        private Pos(int r, int c) { 
+            this.r = r; 
+            this.c = c; 
+        }
+        
+        // The square at row r, column c; off-board coordinates (which some callers probe
+        // before checking inBounds) get a fresh Pos
+        static Pos of(int r, int c) {
+            return r >= 0 && r < 8 && c >= 0 && c < 8 ? SQUARES[r * 8 + c] : new Pos(r, c);
+        }
+        
+        // The square r * 8 + c
+        static Pos at(int square) {
+            return SQUARES[square];
+        }
+        
+        // Algebraic square name, e.g. e2
+        static Pos parse(String s) {
+            s = s.trim();
+            if (s.length() != 2) throw new IllegalArgumentException("Bad pos: " + s);
+            return of(8 - (s.charAt(1) - '0'), s.charAt(0) - 'a');
+        }
+        
+        boolean inBounds() { 
+            return r >= 0 && r < 8 && c >= 0 && c < 8; 
+        }
+        
+        @Override 
+        public boolean equals(Object o) { 
+            if (this == o) return true;
+            if (!(o instanceof Pos)) return false; 
+            Pos p = (Pos)o; 
+            return p.r == r && p.c == c; 
+        }
+        
+        @Override 
+        public int hashCode() { 
+            // Optimization: Better hash distribution
+            return r * 8 + c; 
+        }
+        
+        @Override 
+        public String toString() { 
+            return inBounds() ? NAMES[r * 8 + c] : String.format("%c%d", 'a' + c, 8 - r); 
+        }
+    }
+
+    static class Move {
+        final Pos from, to;  // Immutable - optimize with final
+        Piece promotion; // if pawn promotion
+        boolean isCastleKingSide = false;
+        boolean isCastleQueenSide = false;
+        boolean isEnPassant = false;
+        
+        Move(Pos f, Pos t) { 
+            this.from = f; 
+            this.to = t; 
+        }
+        
+        @Override 
+        public String toString() { 
+            // Optimization: Use StringBuilder for string concatenation
+            StringBuilder sb = new StringBuilder(6);
+            sb.append(from).append("->").append(to);
+            return sb.toString();
+        }
+
+        // Long algebraic form used by UCI: e2e4, e7e8q
+        String toUci() {
+            StringBuilder sb = new StringBuilder(5);
+            sb.append(from).append(to);
+            if (promotion != null) sb.append(Character.toLowerCase(promotion.toString().charAt(0)));
+            return sb.toString();
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Move)) return false;
+            Move move = (Move) o;
+            return from.equals(move.from) && to.equals(move.to);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(from, to);
+        }
+    }
+
+    static class Board implements Cloneable {
+        // Optimization: final array reference; rows allocated one by one because a
+        // new Piece[8][8] goes through the much slower multianewarray path
+        final Piece[][] b = {
+            new Piece[8], new Piece[8], new Piece[8], new Piece[8],
+            new Piece[8], new Piece[8], new Piece[8], new Piece[8]
+        };
+        
+        Board() { init(); }
+
+        // Empty board, for callers that fill every square themselves
+        private Board(boolean empty) { }
+
+        static Board empty() { return new Board(true); }
+
+        void init() {
+            // Optimization: Use Arrays.fill for clearing
+            for (int r = 0; r < 8; r++) {
+                Arrays.fill(b[r], null);
+            }
+            
+            // Pawns - use cached pieces
+            for (int c = 0; c < 8; c++) { 
+                b[1][c] = Piece.BLACK_PAWN;
+                b[6][c] = Piece.WHITE_PAWN;
+            }
+            
+            // Rooks
+            b[0][0] = b[0][7] = Piece.BLACK_ROOK;
+            b[7][0] = b[7][7] = Piece.WHITE_ROOK;
+            
+            // Knights
+            b[0][1] = b[0][6] = Piece.BLACK_KNIGHT;
+            b[7][1] = b[7][6] = Piece.WHITE_KNIGHT;
+            
+            // Bishops
+            b[0][2] = b[0][5] = Piece.BLACK_BISHOP;
+            b[7][2] = b[7][5] = Piece.WHITE_BISHOP;
+            
+            // Queens
+            b[0][3] = Piece.BLACK_QUEEN;
+            b[7][3] = Piece.WHITE_QUEEN;
+            
+            // Kings
+            b[0][4] = Piece.BLACK_KING;
+            b[7][4] = Piece.WHITE_KING;
+        }
+
+        Piece get(Pos p) { 
+            return b[p.r][p.c]; 
+        }
+        
+        void set(Pos p, Piece piece) { 
+            b[p.r][p.c] = piece; 
+        }
+
+        @Override
+        public Board clone() {
+            // Optimization: More efficient cloning - skip init()
+            Board nb = new Board(true);
+            for (int r = 0; r < 8; r++) {
+                // Use System.arraycopy for better performance
+                System.arraycopy(b[r], 0, nb.b[r], 0, 8);
+            }
+            return nb;
+        }
+
+        void apply(Move m) {
+            Piece p = get(m.from);
+            set(m.to, p);
+            set(m.from, null);
+            if (m.promotion != null) set(m.to, m.promotion);
+        }
+
+        void print() {
+            System.out.println();
+            for (int r=0;r<8;r++) {
+                System.out.print(8-r + " ");
+                for (int c=0;c<8;c++) {
+                    Piece p = b[r][c];
+                    if (p == null) System.out.print(((r+c)%2==0) ? ". " : ": ");
+                    else System.out.print(p + " ");
+                }
+                System.out.println();
+            }
+            System.out.println("  a b c d e f g h");
+        }
+    }
+
+    // Zobrist hashing keys. The seed is fixed so keys are stable across runs
+    // (anything persisted by key depends on it).
+    static final class Zobrist {
+        static final long[][] PIECE_SQUARE = new long[12][64];
+        static final long[] CASTLING = new long[4];  // K, Q, k, q
+        static final long[] EN_PASSANT = new long[8];
+        static final long BLACK_TO_MOVE;
+
+        static {
+            SplittableRandom rnd = new SplittableRandom(0x5EED_C4E55L);
+            for (long[] row : PIECE_SQUARE) {
+                for (int i = 0; i < 64; i++) row[i] = rnd.nextLong();
+            }
+            for (int i = 0; i < CASTLING.length; i++) CASTLING[i] = rnd.nextLong();
+            for (int i = 0; i < EN_PASSANT.length; i++) EN_PASSANT[i] = rnd.nextLong();
+            BLACK_TO_MOVE = rnd.nextLong();
+        }
+
+        static long piece(Piece p, int square) {
+            return PIECE_SQUARE[p.type.ordinal() * 2 + p.color.ordinal()][square];
+        }
+
+        private Zobrist() {}
+    }
+
+    // Chess Timer class for time controls
+    static class ChessTimer {
+        private long whiteTime; // milliseconds
+        private long blackTime; // milliseconds
+        private long lastUpdateTime; // System.nanoTime(), monotonic
+        private Color activeColor;
+        private boolean running = false;
+        private long increment; // milliseconds per move
+        
+        ChessTimer(int minutesPerSide, int incrementSeconds) {
+            this(minutesPerSide * 60 * 1000L, incrementSeconds * 1000L);
+        }
+        
+        ChessTimer(long millisPerSide, long incrementMillis) {
+            this.whiteTime = millisPerSide;
+            this.blackTime = millisPerSide;
+            this.increment = incrementMillis;
+            this.activeColor = Color.WHITE;
+        }
+        
+        void start(Color color) {
+            activeColor = color;
+            lastUpdateTime = System.nanoTime();
+            running = true;
+        }
+        
+        void stop() {
+            if (running) {
+                update();
+                running = false;
+            }
+        }
+        
+        void switchPlayer() {
+            if (running) {
+                update();
+                // Add increment
+                if (activeColor == Color.WHITE) {
+                    whiteTime += increment;
+                } else {
+                    blackTime += increment;
+                }
+                activeColor = (activeColor == Color.WHITE) ? Color.BLACK : Color.WHITE;
+                lastUpdateTime = System.nanoTime();
+            }
+        }
+        
+        private void update() {
+            if (!running) return;
+            // charge whole milliseconds and keep the remainder, so no time leaks between updates
+            long elapsed = (System.nanoTime() - lastUpdateTime) / 1_000_000L;
+            if (activeColor == Color.WHITE) {
+                whiteTime -= elapsed;
+            } else {
+                blackTime -= elapsed;
+            }
+            lastUpdateTime += elapsed * 1_000_000L;
+        }
+        
+        Color getActiveColor() { return activeColor; }
+        long getIncrement() { return increment; }
+        
+        // Set both clocks, e.g. when a session is restored
+        void setRemaining(long whiteMillis, long blackMillis) {
+            if (running) update();
+            whiteTime = whiteMillis;
+            blackTime = blackMillis;
+        }
+        
+        // Nanoseconds until the side to move runs out (<= 0 once it has); for schedulers
+        long nanosUntilFlag() {
+            long left = (activeColor == Color.WHITE ? whiteTime : blackTime) * 1_000_000L;
+            return running ? left - (System.nanoTime() - lastUpdateTime) : left;
+        }
+        
+        long getWhiteTime() {
+            if (running && activeColor == Color.WHITE) update();
+            return Math.max(0, whiteTime);
+        }
+        
+        long getBlackTime() {
+            if (running && activeColor == Color.BLACK) update();
+            return Math.max(0, blackTime);
+        }
+        
+        boolean isWhiteOutOfTime() { return getWhiteTime() <= 0; }
+        boolean isBlackOutOfTime() { return getBlackTime() <= 0; }
+        boolean isRunning() { return running; }
+        
+        String formatTime(long millis) {
+            long seconds = millis / 1000;
+            long minutes = seconds / 60;
+            seconds = seconds % 60;
+            return String.format("%d:%02d", minutes, seconds);
+        }
+        
+        void reset(int minutesPerSide, int incrementSeconds) {
+            this.whiteTime = minutesPerSide * 60 * 1000L;
+            this.blackTime = minutesPerSide * 60 * 1000L;
+            this.increment = incrementSeconds * 1000L;
+            this.activeColor = Color.WHITE;
+            this.running = false;
+        }
+    }
+    
+    // Position Evaluator - Calculates who's winning
+    static class PositionEvaluator {
+        // Piece-square tables for positional evaluation (centipawns)
+        // Higher values = better positions for White
+        private static final int[][] PAWN_TABLE = {
+            {  0,  0,  0,  0,  0,  0,  0,  0},
+            { 50, 50, 50, 50, 50, 50, 50, 50},
+            { 10, 10, 20, 30, 30, 20, 10, 10},
+            {  5,  5, 10, 25, 25, 10,  5,  5},
+            {  0,  0,  0, 20, 20,  0,  0,  0},
+            {  5, -5,-10,  0,  0,-10, -5,  5},
+            {  5, 10, 10,-20,-20, 10, 10,  5},
+            {  0,  0,  0,  0,  0,  0,  0,  0}
+        };
+        
+        private static final int[][] KNIGHT_TABLE = {
+            {-50,-40,-30,-30,-30,-30,-40,-50},
+            {-40,-20,  0,  0,  0,  0,-20,-40},
+            {-30,  0, 10, 15, 15, 10,  0,-30},
+            {-30,  5, 15, 20, 20, 15,  5,-30},
+            {-30,  0, 15, 20, 20, 15,  0,-30},
+            {-30,  5, 10, 15, 15, 10,  5,-30},
+            {-40,-20,  0,  5,  5,  0,-20,-40},
+            {-50,-40,-30,-30,-30,-30,-40,-50}
+        };
+        
+        private static final int[][] BISHOP_TABLE = {
+            {-20,-10,-10,-10,-10,-10,-10,-20},
+            {-10,  0,  0,  0,  0,  0,  0,-10},
+            {-10,  0,  5, 10, 10,  5,  0,-10},
+            {-10,  5,  5, 10, 10,  5,  5,-10},
+            {-10,  0, 10, 10, 10, 10,  0,-10},
+            {-10, 10, 10, 10, 10, 10, 10,-10},
+            {-10,  5,  0,  0,  0,  0,  5,-10},
+            {-20,-10,-10,-10,-10,-10,-10,-20}
+        };
+        
+        private static final int[][] ROOK_TABLE = {
+            {  0,  0,  0,  0,  0,  0,  0,  0},
+            {  5, 10, 10, 10, 10, 10, 10,  5},
+            { -5,  0,  0,  0,  0,  0,  0, -5},
+            { -5,  0,  0,  0,  0,  0,  0, -5},
+            { -5,  0,  0,  0,  0,  0,  0, -5},
+            { -5,  0,  0,  0,  0,  0,  0, -5},
+            { -5,  0,  0,  0,  0,  0,  0, -5},
+            {  0,  0,  0,  5,  5,  0,  0,  0}
+        };
+        
+        private static final int[][] QUEEN_TABLE = {
+            {-20,-10,-10, -5, -5,-10,-10,-20},
+            {-10,  0,  0,  0,  0,  0,  0,-10},
+            {-10,  0,  5,  5,  5,  5,  0,-10},
+            { -5,  0,  5,  5,  5,  5,  0, -5},
+            {  0,  0,  5,  5,  5,  5,  0, -5},
+            {-10,  5,  5,  5,  5,  5,  0,-10},
+            {-10,  0,  5,  0,  0,  0,  0,-10},
+            {-20,-10,-10, -5, -5,-10,-10,-20}
+        };
+        
+        private static final int[][] KING_TABLE = {
+            {-30,-40,-40,-50,-50,-40,-40,-30},
+            {-30,-40,-40,-50,-50,-40,-40,-30},
+            {-30,-40,-40,-50,-50,-40,-40,-30},
+            {-30,-40,-40,-50,-50,-40,-40,-30},
+            {-20,-30,-30,-40,-40,-30,-30,-20},
+            {-10,-20,-20,-20,-20,-20,-20,-10},
+            { 20, 20,  0,  0,  0,  0, 20, 20},
+            { 20, 30, 10,  0,  0, 10, 30, 20}
+        };
+        
+        // Evaluate position from White's perspective
+        // Returns score in pawns (positive = White winning, negative = Black winning)
+        static double evaluatePosition(Board board, Game game) {
+            // Mobility and king safety come from the game's attack maps (Game.attackMaps),
+            // not from legalMoves(), so evaluating never generates moves
+            
+            // Round to 1 decimal place
+            return Math.round(evaluateCentipawns(game, Weights.DEFAULT) / 10.0) / 10.0;
+        }
+        
+        // Full evaluation in centipawns from White's perspective: material and piece-square
+        // values plus, from the attack maps,
+        //   mobility   per attack on a square not held by the attacker's own pieces
+        //   king zone  per enemy attack on the king's square and the squares around it
+        //   hanging    a share of the value of a piece attacked and not defended
+        static int evaluateCentipawns(Game game, Weights weights) {
+            int[] attacks = game.attackMaps();
+            Piece[][] b = game.board.b;
+            int score = 0;
+            int whiteKing = -1, blackKing = -1;
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) {
+                    int sq = r * 8 + c;
+                    int white = attacks[sq], black = attacks[64 + sq];
+                    Piece p = b[r][c];
+                    if (p == null) {
+                        score += weights.mobility * (white - black);
+                        continue;
+                    }
+                    int positional = getPositionalValue(p, r, c);
+                    if (weights.pstPercent != 100) positional = positional * weights.pstPercent / 100;
+                    int value = weights.material[p.type.ordinal()];
+                    int total = value + positional;
+                    boolean isWhite = p.color == Color.WHITE;
+                    if (p.type == PieceType.KING) {
+                        if (isWhite) whiteKing = sq; else blackKing = sq;
+                    } else if ((isWhite ? black : white) > 0 && (isWhite ? white : black) == 0) {
+                        total -= value * weights.hangingPercent / 100;
+                    }
+                    // attacks on a piece are mobility for its opponent only
+                    if (isWhite) score += total - weights.mobility * black;
+                    else score -= total - weights.mobility * white;
+                }
+            }
+            score -= weights.kingZone * kingZoneAttacks(attacks, whiteKing, 64);
+            score += weights.kingZone * kingZoneAttacks(attacks, blackKing, 0);
+            return score;
+        }
+        
+        // Attacks from the map at offset `by` on the king's square and its neighbours
+        private static int kingZoneAttacks(int[] attacks, int king, int by) {
+            if (king < 0) return 0;
+            int kr = king >> 3, kc = king & 7, sum = 0;
+            for (int r = Math.max(0, kr - 1); r <= Math.min(7, kr + 1); r++) {
+                for (int c = Math.max(0, kc - 1); c <= Math.min(7, kc + 1); c++) sum += attacks[by + r * 8 + c];
+            }
+            return sum;
+        }
+        
+        // Material + piece-square score in centipawns from White's perspective.
+        // Integer form used by the search.
+        static int evaluateCentipawns(Board board) {
+            return evaluateCentipawns(board, Weights.DEFAULT);
+        }
+        
+        // Same, with tuned piece values and piece-square scale (see Weights)
+        static int evaluateCentipawns(Board board, Weights weights) {
+            int score = 0;
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) {
+                    Piece p = board.b[r][c];
+                    if (p != null) {
+                        int positional = getPositionalValue(p, r, c);
+                        if (weights.pstPercent != 100) positional = positional * weights.pstPercent / 100;
+                        int totalValue = weights.material[p.type.ordinal()] + positional;
+                        score += (p.color == Color.WHITE) ? totalValue : -totalValue;
+                    }
+                }
+            }
+            return score;
+        }
+        
+        // Tunable evaluation terms, so an evaluator change can be matched against the
+        // current one without editing the tables. Parsed from "n=300,b=350,pst=80":
+        // p/n/b/r/q piece values in centipawns, pst the piece-square scale in percent,
+        // mob/king centipawns per attack for mobility and king-zone attacks, hang the
+        // percentage of its value a hanging piece loses.
+        static final class Weights {
+            static final Weights DEFAULT = new Weights(defaultMaterial(), 100, 2, 6, 10);
+            
+            final int[] material; // indexed by PieceType ordinal
+            final int pstPercent;
+            final int mobility;
+            final int kingZone;
+            final int hangingPercent;
+            
+            Weights(int[] material, int pstPercent, int mobility, int kingZone, int hangingPercent) {
+                this.material = material;
+                this.pstPercent = pstPercent;
+                this.mobility = mobility;
+                this.kingZone = kingZone;
+                this.hangingPercent = hangingPercent;
+            }
+            
+            private static int[] defaultMaterial() {
+                int[] m = new int[PieceType.values().length];
+                for (PieceType t : PieceType.values()) m[t.ordinal()] = getMaterialValue(t);
+                return m;
+            }
+            
+            static Weights parse(String spec) {
+                if (spec.isEmpty()) return DEFAULT;
+                int[] material = defaultMaterial();
+                int pst = 100, mobility = DEFAULT.mobility, kingZone = DEFAULT.kingZone, hanging = DEFAULT.hangingPercent;
+                for (String term : spec.split(",")) {
+                    int eq = term.indexOf('=');
+                    if (eq < 0) throw new IllegalArgumentException("bad evaluation term: " + term);
+                    String name = term.substring(0, eq).strip();
+                    int value;
+                    try {
+                        value = Integer.parseInt(term.substring(eq + 1).strip());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("bad evaluation term: " + term);
+                    }
+                    switch (name) {
+                        case "p" -> material[PieceType.PAWN.ordinal()] = value;
+                        case "n" -> material[PieceType.KNIGHT.ordinal()] = value;
+                        case "b" -> material[PieceType.BISHOP.ordinal()] = value;
+                        case "r" -> material[PieceType.ROOK.ordinal()] = value;
+                        case "q" -> material[PieceType.QUEEN.ordinal()] = value;
+                        case "pst" -> pst = value;
+                        case "mob" -> mobility = value;
+                        case "king" -> kingZone = value;
+                        case "hang" -> hanging = value;
+                        default -> throw new IllegalArgumentException("unknown evaluation term: " + name);
+                    }
+                }
+                return new Weights(material, pst, mobility, kingZone, hanging);
+            }
+        }
+        
+        static int getMaterialValue(PieceType type) {
+            return switch (type) {
+                case PAWN -> 100;
+                case KNIGHT -> 320;
+                case BISHOP -> 330;
+                case ROOK -> 500;
+                case QUEEN -> 900;
+                case KING -> 20000; // King is invaluable
+            };
+        }
+        
+        private static int getPositionalValue(Piece p, int row, int col) {
+            // Get piece-square table value
+            int[][] table = switch (p.type) {
+                case PAWN -> PAWN_TABLE;
+                case KNIGHT -> KNIGHT_TABLE;
+                case BISHOP -> BISHOP_TABLE;
+                case ROOK -> ROOK_TABLE;
+                case QUEEN -> QUEEN_TABLE;
+                case KING -> KING_TABLE;
+            };
+            
+            // For Black pieces, flip the table vertically
+            int r = (p.color == Color.WHITE) ? row : (7 - row);
+            return table[r][col];
+        }
+    }
+
+    static class Game {
+        Board board;
+        Color turn = Color.WHITE;
+        Scanner in = null; // console input, opened by run() so headless Games never touch System.in
+        // Castling/en-passant state
+        boolean whiteKingMoved = false;
+        boolean blackKingMoved = false;
+        boolean whiteRookA_moved = false; // a1
+        boolean whiteRookH_moved = false; // h1
+        boolean blackRookA_moved = false; // a8
+        boolean blackRookH_moved = false; // h8
+        Pos enPassantTarget = null; // square where en-passant capture is possible
+
+        // Undo/Redo system: one packed long per ply (see record()), so history is unlimited
+        // and undo/redo restore in place. Entries from historyPly to historySize can be redone.
+        private long[] history = new long[64];
+        private int historyPly = 0;
+        private int historySize = 0;
+
+        // Checkpoints for jumping to any ply: slot j is the position before history[j * CHECKPOINT_INTERVAL],
+        // as 64 piece codes plus the packed state of checkpointState(), so goToPly replays at most
+        // CHECKPOINT_INTERVAL moves. Slots up to checkpointCount are valid.
+        static final int CHECKPOINT_INTERVAL = 16;
+        private byte[] checkpointBoards = new byte[64 * 4];
+        private long[] checkpointStates = new long[4];
+        private int checkpointCount = 0;
+
+        // Move validation improvements
+        // For threefold repetition: the position after every ply of the whole line, including the
+        // redo tail, after inheritedPositions entries that came with copyPosition()
+        private final List<String> positionHistory = new ArrayList<>();
+        private int inheritedPositions = 0;
+        private int halfMoveClock = 0; // For fifty-move rule (counts half-moves since last pawn move or capture)
+        private int fullMoveNumber = 1; // Current move number
+
+        // Promotion handler (GUI can set this)
+        interface PromotionHandler { Piece choosePromotion(Color byColor); }
+        PromotionHandler promotionHandler = null;
+
+        // When set, every applied move, undo, redo and reset is journaled (not copied by copyPosition)
+        GameJournal journal = null;
+
+        // What the GUI and game loops ask about the side to move, computed once per position
+        // by getPositionInfo() and shared until the position changes
+        static final class PositionInfo {
+            final List<Move> legalMoves; // unmodifiable
+            final boolean inCheck;
+            final boolean checkmate;
+            final boolean stalemate;
+            final String drawReason;     // null when the game goes on
+
+            // Legal moves by source square (squares are r * 8 + c): bit `to` of targets[from] is set
+            // for every legal move from -> to, and the moves themselves are
+            // legalMoves[order[start[from]]] .. legalMoves[order[start[from + 1] - 1]]
+            private final long[] targets = new long[64];
+            private final int[] start = new int[65];
+            private final short[] order;
+
+            private PositionInfo(Game g) {
+                List<Move> legal = g.legalMoves(g.turn);
+                order = new short[legal.size()];
+                for (Move m : legal) {
+                    int from = m.from.r * 8 + m.from.c;
+                    targets[from] |= 1L << (m.to.r * 8 + m.to.c);
+                    start[from + 1]++;
+                }
+                for (int sq = 0; sq < 64; sq++) start[sq + 1] += start[sq];
+                int[] fill = Arrays.copyOf(start, 64);
+                for (int i = 0; i < legal.size(); i++) {
+                    Move m = legal.get(i);
+                    order[fill[m.from.r * 8 + m.from.c]++] = (short) i;
+                }
+                legalMoves = Collections.unmodifiableList(legal);
+                inCheck = g.isInCheck(g.turn);
+                checkmate = inCheck && legalMoves.isEmpty();
+                stalemate = !inCheck && legalMoves.isEmpty();
+                drawReason = stalemate ? "Stalemate"
+                    : g.isThreefoldRepetition() ? "Threefold Repetition"
+                    : g.isFiftyMoveRule() ? "Fifty-Move Rule"
+                    : g.isInsufficientMaterial() ? "Insufficient Material"
+                    : null;
+            }
+
+            // Squares the piece on from can legally move to, as a bitmask over r * 8 + c
+            long targetsFrom(Pos from) {
+                return from.inBounds() ? targets[from.r * 8 + from.c] : 0;
+            }
+
+            boolean isLegal(Pos from, Pos to) {
+                return to.inBounds() && (targetsFrom(from) >>> (to.r * 8 + to.c) & 1) != 0;
+            }
+
+            // The legal move from -> to (promotions come as the queen), or null if there is none
+            Move find(Pos from, Pos to) {
+                if (!isLegal(from, to)) return null;
+                int sq = from.r * 8 + from.c;
+                for (int i = start[sq]; i < start[sq + 1]; i++) {
+                    Move m = legalMoves.get(order[i]);
+                    if (m.to.r == to.r && m.to.c == to.c) return m;
+                }
+                return null;
+            }
+        }
+
+        private PositionInfo positionInfo = null; // cleared by every change of position
+        private long positionInfoBuilds = 0, positionInfoHits = 0;
+
+        // Squares (r * 8 + c) of the kings by colour ordinal, -1 for a missing king. Kept by play(),
+        // stepBack() and every reset of the position; see getKingSquare().
+        final int[] kingSquares = new int[2];
+
+        Game() { this(new Board()); }
+
+        private Game(Board board) {
+            this.board = board;
+            locateKings();
+        }
+
+        // Simple accessors for GUI
+        public Board getBoard() { return board; }
+        public Color getTurn() { return turn; }
+        public List<Move> getLegalMovesForTurn() { return getPositionInfo().legalMoves; }
+
+        public PositionInfo getPositionInfo() {
+            if (positionInfo != null) {
+                positionInfoHits++;
+                return positionInfo;
+            }
+            positionInfoBuilds++;
+            return positionInfo = new PositionInfo(this);
+        }
+
+        // How often getPositionInfo() computed a position and how often it answered from the cache
+        public long getPositionInfoBuilds() { return positionInfoBuilds; }
+        public long getPositionInfoHits() { return positionInfoHits; }
+        
+        // Undo/Redo functionality
+        public boolean canUndo() { return historyPly > 0; }
+        public boolean canRedo() { return historySize > historyPly; }
+
+        private static int pieceCode(Piece p) {
+            return p == null ? 0 : 1 + p.type.ordinal() * 2 + p.color.ordinal();
+        }
+
+        // History record of one ply, holding what the move destroys so it can be undone:
+        //   bits  0-5  from square       6-11 to square      12-14 promotion (type ordinal + 1)
+        //   bit  15    O-O   16 O-O-O    17 en passant       18-21 captured piece code
+        //   bits 22-27 castling flags before the move        28-34 en-passant square + 1 before
+        //   bits 35-63 half-move clock before the move
+        private long record(Move m) {
+            long rec = (m.from.r * 8 + m.from.c) | (m.to.r * 8 + m.to.c) << 6;
+            if (m.promotion != null) rec |= (m.promotion.type.ordinal() + 1L) << 12;
+            if (m.isCastleKingSide) rec |= 1L << 15;
+            if (m.isCastleQueenSide) rec |= 1L << 16;
+            if (m.isEnPassant) rec |= 1L << 17;
+            rec |= (long) pieceCode(board.b[m.to.r][m.to.c]) << 18;
+            int rights = (whiteKingMoved ? 1 : 0) | (blackKingMoved ? 2 : 0)
+                | (whiteRookA_moved ? 4 : 0) | (whiteRookH_moved ? 8 : 0)
+                | (blackRookA_moved ? 16 : 0) | (blackRookH_moved ? 32 : 0);
+            rec |= (long) rights << 22;
+            if (enPassantTarget != null) rec |= (enPassantTarget.r * 8 + enPassantTarget.c + 1L) << 28;
+            rec |= (long) halfMoveClock << 35;
+            return rec;
+        }
+
+        // The move of a history record; mover is the side that played it
+        private static Move recordedMove(long rec, Color mover) {
+            int from = (int) (rec & 63), to = (int) (rec >>> 6 & 63);
+            Move m = new Move(Pos.of(from >> 3, from & 7), Pos.of(to >> 3, to & 7));
+            int promo = (int) (rec >>> 12 & 7);
+            if (promo != 0) m.promotion = PIECES_BY_CODE[1 + (promo - 1) * 2 + mover.ordinal()];
+            m.isCastleKingSide = (rec & 1L << 15) != 0;
+            m.isCastleQueenSide = (rec & 1L << 16) != 0;
+            m.isEnPassant = (rec & 1L << 17) != 0;
+            return m;
+        }
+
+        public boolean undo() {
+            if (!canUndo()) return false;
+            stepBack();
+            if (journal != null) journal.undo();
+            return true;
+        }
+
+        private void stepBack() {
+            long rec = history[--historyPly];
+            turn = (turn == Color.WHITE) ? Color.BLACK : Color.WHITE; // back to the mover
+            Piece[][] b = board.b;
+            int from = (int) (rec & 63), to = (int) (rec >>> 6 & 63);
+            long changed = 0, affected = 0;
+            if (attackMapsValid) {
+                changed = changedSquares(from, to, (rec & 1L << 15) != 0, (rec & 1L << 16) != 0, (rec & 1L << 17) != 0);
+                affected = attackersAffectedBy(changed);
+                addAttacks(affected, -1);
+            }
+            int fr = from >> 3, fc = from & 7, tr = to >> 3, tc = to & 7;
+
+            // the piece goes back (a promoted piece goes back as the pawn it was)
+            Piece moved = (rec >>> 12 & 7) != 0 ? PIECES_BY_CODE[1 + PieceType.PAWN.ordinal() * 2 + turn.ordinal()] : b[tr][tc];
+            b[fr][fc] = moved;
+            if (moved != null && moved.type == PieceType.KING) kingSquares[turn.ordinal()] = from;
+            b[tr][tc] = PIECES_BY_CODE[(int) (rec >>> 18 & 15)];
+            if ((rec & 1L << 17) != 0) {
+                // en passant: the captured pawn stood behind the destination
+                Color them = (turn == Color.WHITE) ? Color.BLACK : Color.WHITE;
+                b[turn == Color.WHITE ? tr + 1 : tr - 1][tc] = PIECES_BY_CODE[1 + PieceType.PAWN.ordinal() * 2 + them.ordinal()];
+            }
+            if ((rec & 1L << 15) != 0) {
+                b[fr][7] = b[fr][5];
+                b[fr][5] = null;
+            } else if ((rec & 1L << 16) != 0) {
+                b[fr][0] = b[fr][3];
+                b[fr][3] = null;
+            }
+
+            int rights = (int) (rec >>> 22 & 63);
+            whiteKingMoved = (rights & 1) != 0;
+            blackKingMoved = (rights & 2) != 0;
+            whiteRookA_moved = (rights & 4) != 0;
+            whiteRookH_moved = (rights & 8) != 0;
+            blackRookA_moved = (rights & 16) != 0;
+            blackRookH_moved = (rights & 32) != 0;
+            int ep = (int) (rec >>> 28 & 127);
+            enPassantTarget = ep == 0 ? null : Pos.of((ep - 1) >> 3, (ep - 1) & 7);
+            halfMoveClock = (int) (rec >>> 35);
+            if (turn == Color.BLACK) fullMoveNumber--;
+            positionInfo = null;
+            if (attackMapsValid) addAttacks(affected & ~changed | occupiedIn(changed), 1);
+        }
+        
+        public Move getLastMoveFromUndo() {
+            if (historyPly == 0) return null;
+            return recordedMove(history[historyPly - 1], turn == Color.WHITE ? Color.BLACK : Color.WHITE);
+        }
+        
+        public boolean redo() {
+            if (!canRedo()) return false;
+            stepForward();
+            if (journal != null) journal.redo();
+            return true;
+        }
+
+        private void stepForward() {
+            Move m = recordedMove(history[historyPly], turn);
+            historyPly++; // the record and the repetition entry are unchanged: same position, same move
+            play(m);
+        }
+
+        // Number of plies played from the start position (or loaded FEN) to the current one
+        public int getPly() { return historyPly; }
+
+        // Number of plies in the recorded line, including those that can be redone
+        public int getLineLength() { return historySize; }
+
+        // Move to any ply of the recorded line, as if by undo()/redo() but restoring the nearest
+        // checkpoint when that is closer, so at most CHECKPOINT_INTERVAL moves are replayed
+        public boolean goToPly(int ply) {
+            if (ply < 0 || ply > historySize) return false;
+            if (ply == historyPly) return true;
+            int slot = Math.min(ply / CHECKPOINT_INTERVAL, checkpointCount - 1);
+            if (slot >= 0 && ply - slot * CHECKPOINT_INTERVAL < Math.abs(ply - historyPly)
+                    && (ply < historyPly || slot * CHECKPOINT_INTERVAL > historyPly)) {
+                restoreCheckpoint(slot);
+            }
+            while (historyPly > ply) stepBack();
+            while (historyPly < ply) stepForward();
+            if (journal != null) journal.jump(ply);
+            return true;
+        }
+
+        // The recorded line from the start position, including moves that can be redone
+        public List<Move> getMoveLine() {
+            List<Move> line = new ArrayList<>(historySize);
+            Color mover = historyPly % 2 == 0 ? turn : (turn == Color.WHITE ? Color.BLACK : Color.WHITE);
+            for (int i = 0; i < historySize; i++) {
+                line.add(recordedMove(history[i], mover));
+                mover = (mover == Color.WHITE) ? Color.BLACK : Color.WHITE;
+            }
+            return line;
+        }
+
+        // Side to move, castling flags, en-passant square + 1, half-move clock and move number:
+        //   bit 0 black to move   1-6 castling flags   7-13 en-passant square + 1
+        //   bits 14-33 half-move clock   34-63 full-move number
+        private long checkpointState() {
+            int rights = (whiteKingMoved ? 1 : 0) | (blackKingMoved ? 2 : 0)
+                | (whiteRookA_moved ? 4 : 0) | (whiteRookH_moved ? 8 : 0)
+                | (blackRookA_moved ? 16 : 0) | (blackRookH_moved ? 32 : 0);
+            long state = (turn == Color.BLACK ? 1 : 0) | rights << 1;
+            if (enPassantTarget != null) state |= (enPassantTarget.r * 8 + enPassantTarget.c + 1L) << 7;
+            return state | (long) halfMoveClock << 14 | (long) fullMoveNumber << 34;
+        }
+
+        private void saveCheckpoint(int slot) {
+            if (slot == checkpointStates.length) {
+                checkpointStates = Arrays.copyOf(checkpointStates, slot * 2);
+                checkpointBoards = Arrays.copyOf(checkpointBoards, slot * 2 * 64);
+            }
+            int at = slot * 64;
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) checkpointBoards[at++] = (byte) pieceCode(board.b[r][c]);
+            }
+            checkpointStates[slot] = checkpointState();
+            checkpointCount = slot + 1;
+        }
+
+        private void restoreCheckpoint(int slot) {
+            int at = slot * 64;
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) board.b[r][c] = PIECES_BY_CODE[checkpointBoards[at++]];
+            }
+            long state = checkpointStates[slot];
+            turn = (state & 1) != 0 ? Color.BLACK : Color.WHITE;
+            whiteKingMoved = (state & 2) != 0;
+            blackKingMoved = (state & 4) != 0;
+            whiteRookA_moved = (state & 8) != 0;
+            whiteRookH_moved = (state & 16) != 0;
+            blackRookA_moved = (state & 32) != 0;
+            blackRookH_moved = (state & 64) != 0;
+            int ep = (int) (state >>> 7 & 127);
+            enPassantTarget = ep == 0 ? null : Pos.of((ep - 1) >> 3, (ep - 1) & 7);
+            halfMoveClock = (int) (state >>> 14 & 0xFFFFF);
+            fullMoveNumber = (int) (state >>> 34);
+            historyPly = slot * CHECKPOINT_INTERVAL;
+            positionInfo = null;
+            attackMapsValid = false;
+            locateKings();
+        }
+        
+        public boolean applyMoveIfLegal(Move candidate) {
+            // a position whose moves were listed answers from the index; otherwise only this move is checked
+            Move m = positionInfo != null ? positionInfo.find(candidate.from, candidate.to)
+                : legalMoveOrNull(candidate.from, candidate.to);
+            if (m == null) return false;
+            // handle promotion selection: an explicit piece (e7e8n) wins over the handler;
+            // the cached move is shared, so the choice goes on a copy
+            Piece chosen = null;
+            if (m.promotion != null && candidate.promotion != null) {
+                chosen = candidate.promotion;
+            } else if (m.promotion != null && promotionHandler != null) {
+                chosen = promotionHandler.choosePromotion(turn);
+            }
+            if (chosen != null) {
+                m = new Move(m.from, m.to);
+                m.promotion = chosen;
+            }
+            makeMove(m);
+            return true;
+        }
+
+        // Apply a move taken from legalMoves() without validating it again.
+        // Used by applyMoveIfLegal and by the search, which already holds legal moves.
+        void makeMove(Move m) {
+            // Record what the move destroys (for undo); a new move drops the redo tail
+            // along with the checkpoints and repetition entries that belong to it
+            int slot = historyPly / CHECKPOINT_INTERVAL;
+            checkpointCount = Math.min(checkpointCount, slot + 1);
+            if (historyPly % CHECKPOINT_INTERVAL == 0 && slot == checkpointCount) saveCheckpoint(slot);
+            if (historyPly == history.length) history = Arrays.copyOf(history, historyPly * 2);
+            history[historyPly++] = record(m);
+            historySize = historyPly;
+            play(m);
+            // Update position history for threefold repetition (after the turn switch,
+            // so entries compare equal to getPositionHash() of the side to move)
+            int keep = inheritedPositions + historyPly - 1;
+            if (positionHistory.size() > keep) positionHistory.subList(keep, positionHistory.size()).clear();
+            positionHistory.add(getPositionHash());
+            if (journal != null) journal.move(m);
+        }
+
+        private void play(Move m) {
+            long changed = 0, affected = 0;
+            if (attackMapsValid) {
+                changed = changedSquares(m.from.r * 8 + m.from.c, m.to.r * 8 + m.to.c,
+                    m.isCastleKingSide, m.isCastleQueenSide, m.isEnPassant);
+                affected = attackersAffectedBy(changed);
+                addAttacks(affected, -1);
+            }
+
+            // handle en-passant capture
+            if (m.isEnPassant) {
+                // captured pawn is behind the destination square
+                int capR = (turn==Color.WHITE) ? m.to.r + 1 : m.to.r - 1;
+                int capC = m.to.c;
+                board.b[capR][capC] = null;
+            }
+            // handle castling rook movement
+            if (m.isCastleKingSide) {
+                if (turn==Color.WHITE) {
+                    // move rook from h1 to f1
+                    board.set(Pos.of(7,5), board.get(Pos.of(7,7)));
+                    board.set(Pos.of(7,7), null);
+                    whiteKingMoved = true; whiteRookH_moved = true;
+                } else {
+                    board.set(Pos.of(0,5), board.get(Pos.of(0,7)));
+                    board.set(Pos.of(0,7), null);
+                    blackKingMoved = true; blackRookH_moved = true;
+                }
+            } else if (m.isCastleQueenSide) {
+                if (turn==Color.WHITE) {
+                    // move rook from a1 to d1
+                    board.set(Pos.of(7,3), board.get(Pos.of(7,0)));
+                    board.set(Pos.of(7,0), null);
+                    whiteKingMoved = true; whiteRookA_moved = true;
+                } else {
+                    board.set(Pos.of(0,3), board.get(Pos.of(0,0)));
+                    board.set(Pos.of(0,0), null);
+                    blackKingMoved = true; blackRookA_moved = true;
+                }
+            }
+
+            // perform the move (capture/move)
+            Piece moved = board.get(m.from);
+            Piece captured = board.get(m.to);
+            board.apply(m);
+
+            // update moved flags
+            if (moved != null && moved.type == PieceType.KING) {
+                if (moved.color == Color.WHITE) whiteKingMoved = true; else blackKingMoved = true;
+                kingSquares[moved.color.ordinal()] = m.to.r * 8 + m.to.c;
+            }
+            if (moved != null && moved.type == PieceType.ROOK) {
+                if (m.from.r==7 && m.from.c==0) whiteRookA_moved = true;
+                if (m.from.r==7 && m.from.c==7) whiteRookH_moved = true;
+                if (m.from.r==0 && m.from.c==0) blackRookA_moved = true;
+                if (m.from.r==0 && m.from.c==7) blackRookH_moved = true;
+            }
+            // if captured a rook on its original square, mark as moved (can't castle)
+            if (captured != null && captured.type == PieceType.ROOK) {
+                if (m.to.r==7 && m.to.c==0) whiteRookA_moved = true;
+                if (m.to.r==7 && m.to.c==7) whiteRookH_moved = true;
+                if (m.to.r==0 && m.to.c==0) blackRookA_moved = true;
+                if (m.to.r==0 && m.to.c==7) blackRookH_moved = true;
+            }
+
+            // update en-passant target: if pawn moved two squares, set target, else clear
+            enPassantTarget = null;
+            if (moved != null && moved.type == PieceType.PAWN) {
+                if (Math.abs(m.to.r - m.from.r) == 2) {
+                    // target is the square passed over
+                    int tr = (m.to.r + m.from.r) / 2;
+                    enPassantTarget = Pos.of(tr, m.from.c);
+                }
+            }
+
+            // apply promotion if any
+            if (m.promotion != null) {
+                board.set(m.to, m.promotion);
+            }
+
+            // Update half-move clock for fifty-move rule
+            if (moved != null && moved.type == PieceType.PAWN || captured != null) {
+                halfMoveClock = 0; // Reset on pawn move or capture
+            } else {
+                halfMoveClock++;
+            }
+            
+            // Update move number
+            if (turn == Color.BLACK) {
+                fullMoveNumber++;
+            }
+
+            // switch turn
+            turn = (turn==Color.WHITE?Color.BLACK:Color.WHITE);
+            positionInfo = null;
+            if (attackMapsValid) addAttacks(affected & ~changed | occupiedIn(changed), 1);
+        }
+
+        public void restart() { 
+            board = new Board(); 
+            locateKings();
+            turn = Color.WHITE; 
+            whiteKingMoved = false;
+            blackKingMoved = false;
+            whiteRookA_moved = false;
+            whiteRookH_moved = false;
+            blackRookA_moved = false;
+            blackRookH_moved = false;
+            enPassantTarget = null;
+            historyPly = historySize = checkpointCount = 0;
+            positionHistory.clear();
+            inheritedPositions = 0;
+            positionInfo = null;
+            attackMapsValid = false;
+            halfMoveClock = 0;
+            fullMoveNumber = 1;
+            if (journal != null) journal.reset(toFen());
+        }
+
+        // Pieces by FEN letter, so parsing never allocates a Piece
+        private static final Piece[] FEN_PIECES = new Piece[128];
+        static {
+            FEN_PIECES['P'] = Piece.WHITE_PAWN;   FEN_PIECES['p'] = Piece.BLACK_PAWN;
+            FEN_PIECES['N'] = Piece.WHITE_KNIGHT; FEN_PIECES['n'] = Piece.BLACK_KNIGHT;
+            FEN_PIECES['B'] = Piece.WHITE_BISHOP; FEN_PIECES['b'] = Piece.BLACK_BISHOP;
+            FEN_PIECES['R'] = Piece.WHITE_ROOK;   FEN_PIECES['r'] = Piece.BLACK_ROOK;
+            FEN_PIECES['Q'] = Piece.WHITE_QUEEN;  FEN_PIECES['q'] = Piece.BLACK_QUEEN;
+            FEN_PIECES['K'] = Piece.WHITE_KING;   FEN_PIECES['k'] = Piece.BLACK_KING;
+        }
+
+        // Piece codes used in history records: 0 = none, else 1 + type * 2 + color
+        private static final Piece[] PIECES_BY_CODE = new Piece[13];
+        static {
+            for (PieceType t : PieceType.values()) {
+                for (Color c : Color.values()) {
+                    PIECES_BY_CODE[pieceCode(Piece.of(t, c))] = Piece.of(t, c);
+                }
+            }
+        }
+
+        // New game set up from Forsyth-Edwards Notation
+        static Game fromFen(CharSequence fen) {
+            Game g = new Game(Board.empty());
+            g.loadFen(fen);
+            return g;
+        }
+
+        // Set up a position from Forsyth-Edwards Notation, e.g.
+        // "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1".
+        // Single pass over the characters: no regex, no split, no substrings.
+        // The clock fields are optional; castling rights map onto the "has moved" flags, and
+        // a right is only granted when that king and rook stand on their home squares.
+        // Everything is parsed and checked (one king per side) before the game changes, so a
+        // rejected FEN leaves it as it was.
+        public void loadFen(CharSequence fen) {
+            int n = fen.length();
+            int i = 0;
+            while (i < n && fen.charAt(i) == ' ') i++;
+
+            // 1. piece placement
+            Piece[] placed = new Piece[64];
+            int whiteKings = 0, blackKings = 0;
+            int r = 0, c = 0;
+            for (; i < n; i++) {
+                char ch = fen.charAt(i);
+                if (ch == ' ') break;
+                if (ch == '/') {
+                    if (c != 8 || ++r > 7) throw badFen(fen);
+                    c = 0;
+                } else if (ch >= '1' && ch <= '8') {
+                    c += ch - '0';
+                    if (c > 8) throw badFen(fen);
+                } else {
+                    Piece p = ch < 128 ? FEN_PIECES[ch] : null;
+                    if (p == null || c > 7) throw badFen(fen);
+                    if (p == Piece.WHITE_KING) whiteKings++;
+                    if (p == Piece.BLACK_KING) blackKings++;
+                    placed[r * 8 + c++] = p;
+                }
+            }
+            if (r != 7 || c != 8 || whiteKings != 1 || blackKings != 1) throw badFen(fen);
+
+            // 2. side to move
+            i = skipSpaces(fen, i);
+            if (i >= n) throw badFen(fen);
+            char side = fen.charAt(i++);
+            Color toMove;
+            if (side == 'w') toMove = Color.WHITE;
+            else if (side == 'b') toMove = Color.BLACK;
+            else throw badFen(fen);
+
+            // 3. castling rights
+            i = skipSpaces(fen, i);
+            boolean wk = false, wq = false, bk = false, bq = false;
+            for (; i < n && fen.charAt(i) != ' '; i++) {
+                switch (fen.charAt(i)) {
+                    case 'K' -> wk = true;
+                    case 'Q' -> wq = true;
+                    case 'k' -> bk = true;
+                    case 'q' -> bq = true;
+                    case '-' -> { }
+                    default -> throw badFen(fen);
+                }
+            }
+            boolean whiteHome = placed[60] == Piece.WHITE_KING, blackHome = placed[4] == Piece.BLACK_KING;
+            wk &= whiteHome && placed[63] == Piece.WHITE_ROOK;
+            wq &= whiteHome && placed[56] == Piece.WHITE_ROOK;
+            bk &= blackHome && placed[7] == Piece.BLACK_ROOK;
+            bq &= blackHome && placed[0] == Piece.BLACK_ROOK;
+
+            // 4. en-passant target
+            i = skipSpaces(fen, i);
+            Pos ep = null;
+            if (i < n && fen.charAt(i) != '-') {
+                if (i + 1 >= n) throw badFen(fen);
+                int file = fen.charAt(i) - 'a';
+                int rank = fen.charAt(i + 1) - '1';
+                if (file < 0 || file > 7 || rank < 0 || rank > 7) throw badFen(fen);
+                ep = Pos.of(7 - rank, file);
+                i += 2;
+            } else if (i < n) {
+                i++;
+            }
+
+            // 5./6. half-move clock and full-move number (optional)
+            i = skipSpaces(fen, i);
+            int half = 0, full = 1;
+            if (i < n) {
+                half = 0;
+                for (; i < n && fen.charAt(i) != ' '; i++) half = half * 10 + digit(fen, i);
+                i = skipSpaces(fen, i);
+                if (i < n) {
+                    full = 0;
+                    for (; i < n && fen.charAt(i) != ' '; i++) full = full * 10 + digit(fen, i);
+                }
+            }
+
+            // valid: commit
+            Piece[][] b = board.b;
+            for (int sq = 0; sq < 64; sq++) b[sq >> 3][sq & 7] = placed[sq];
+            turn = toMove;
+            whiteRookH_moved = !wk;
+            whiteRookA_moved = !wq;
+            blackRookH_moved = !bk;
+            blackRookA_moved = !bq;
+            whiteKingMoved = !wk && !wq;
+            blackKingMoved = !bk && !bq;
+            enPassantTarget = ep;
+            halfMoveClock = half;
+            fullMoveNumber = Math.max(1, full);
+            locateKings();
+
+            historyPly = historySize = checkpointCount = 0;
+            positionHistory.clear();
+            inheritedPositions = 0;
+            positionInfo = null;
+            attackMapsValid = false;
+            if (journal != null) journal.reset(toFen());
+        }
+
+        private static int skipSpaces(CharSequence s, int i) {
+            while (i < s.length() && s.charAt(i) == ' ') i++;
+            return i;
+        }
+
+        private static int digit(CharSequence fen, int i) {
+            char ch = fen.charAt(i);
+            if (ch < '0' || ch > '9') throw badFen(fen);
+            return ch - '0';
+        }
+
+        private static IllegalArgumentException badFen(CharSequence fen) {
+            return new IllegalArgumentException("Bad FEN: " + fen);
+        }
+
+        // Forsyth-Edwards Notation of the current position
+        public String toFen() {
+            StringBuilder sb = new StringBuilder(90);
+            for (int r = 0; r < 8; r++) {
+                int empty = 0;
+                for (int c = 0; c < 8; c++) {
+                    Piece p = board.b[r][c];
+                    if (p == null) { empty++; continue; }
+                    if (empty > 0) { sb.append((char) ('0' + empty)); empty = 0; }
+                    sb.append(p.toChar());
+                }
+                if (empty > 0) sb.append((char) ('0' + empty));
+                if (r < 7) sb.append('/');
+            }
+            sb.append(turn == Color.WHITE ? " w " : " b ");
+            int len = sb.length();
+            if (!whiteKingMoved && !whiteRookH_moved) sb.append('K');
+            if (!whiteKingMoved && !whiteRookA_moved) sb.append('Q');
+            if (!blackKingMoved && !blackRookH_moved) sb.append('k');
+            if (!blackKingMoved && !blackRookA_moved) sb.append('q');
+            if (sb.length() == len) sb.append('-');
+            sb.append(' ');
+            if (enPassantTarget == null) {
+                sb.append('-');
+            } else {
+                sb.append((char) ('a' + enPassantTarget.c)).append((char) ('8' - enPassantTarget.r));
+            }
+            sb.append(' ').append(halfMoveClock).append(' ').append(fullMoveNumber);
+            return sb.toString();
+        }
+
+        // Copy of the current position (board, rights, clocks and repetition history)
+        // without undo/redo history; used to hand a position to another thread.
+        Game copyPosition() {
+            Game g = new Game();
+            g.board = board.clone();
+            g.kingSquares[0] = kingSquares[0];
+            g.kingSquares[1] = kingSquares[1];
+            g.turn = turn;
+            g.whiteKingMoved = whiteKingMoved;
+            g.blackKingMoved = blackKingMoved;
+            g.whiteRookA_moved = whiteRookA_moved;
+            g.whiteRookH_moved = whiteRookH_moved;
+            g.blackRookA_moved = blackRookA_moved;
+            g.blackRookH_moved = blackRookH_moved;
+            g.enPassantTarget = enPassantTarget;
+            g.halfMoveClock = halfMoveClock;
+            g.fullMoveNumber = fullMoveNumber;
+            g.positionHistory.addAll(positionHistory.subList(0, inheritedPositions + historyPly));
+            g.inheritedPositions = g.positionHistory.size();
+            return g;
+        }
+
+        public int getHalfMoveClock() { return halfMoveClock; }
+        public int getFullMoveNumber() { return fullMoveNumber; }
+
+        // 64-bit Zobrist key of the current position. Only what decides the legal moves is
+        // hashed: the castling rights still usable and the en passant file when a pawn can
+        // actually take, so transpositions and positions loaded from FEN share a key.
+        long getZobristKey() {
+            long key = 0;
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) {
+                    Piece p = board.b[r][c];
+                    if (p != null) key ^= Zobrist.piece(p, r * 8 + c);
+                }
+            }
+            if (turn == Color.BLACK) key ^= Zobrist.BLACK_TO_MOVE;
+            int rights = castlingRights();
+            for (int i = 0; i < 4; i++) {
+                if ((rights & 1 << i) != 0) key ^= Zobrist.CASTLING[i];
+            }
+            if (enPassantCapturable()) key ^= Zobrist.EN_PASSANT[enPassantTarget.c];
+            return key;
+        }
+
+        // Castling rights in effect, bits K=1 Q=2 k=4 q=8: the king and that rook unmoved and
+        // on their home squares (a FEN or a captured rook can leave the flags stale)
+        int castlingRights() {
+            int rights = 0;
+            if (!whiteKingMoved && board.b[7][4] == Piece.WHITE_KING) {
+                if (!whiteRookH_moved && board.b[7][7] == Piece.WHITE_ROOK) rights |= 1;
+                if (!whiteRookA_moved && board.b[7][0] == Piece.WHITE_ROOK) rights |= 2;
+            }
+            if (!blackKingMoved && board.b[0][4] == Piece.BLACK_KING) {
+                if (!blackRookH_moved && board.b[0][7] == Piece.BLACK_ROOK) rights |= 4;
+                if (!blackRookA_moved && board.b[0][0] == Piece.BLACK_ROOK) rights |= 8;
+            }
+            return rights;
+        }
+
+        // True when a pawn of the side to move stands next to the pawn that just advanced two
+        // squares, i.e. the en passant square matters for the moves available
+        boolean enPassantCapturable() {
+            if (enPassantTarget == null) return false;
+            int r = enPassantTarget.r + (turn == Color.WHITE ? 1 : -1);
+            Piece pawn = turn == Color.WHITE ? Piece.WHITE_PAWN : Piece.BLACK_PAWN;
+            int c = enPassantTarget.c;
+            return (c > 0 && board.b[r][c - 1] == pawn) || (c < 7 && board.b[r][c + 1] == pawn);
+        }
+
+        void run() {
+            if (in == null) in = new Scanner(System.in);
+            while (true) {
+                board.print();
+                boolean inCheck = isInCheck(turn);
+                System.out.println((turn==Color.WHITE?"White":"Black") + (inCheck?" (in check)":"") + " to move.");
+                List<Move> moves = legalMoves(turn);
+                if (moves.isEmpty()) {
+                    if (inCheck) System.out.println("Checkmate. " + (turn==Color.WHITE?"Black":"White") + " wins.");
+                    else System.out.println("Stalemate. Draw.");
+                    break;
+                }
+                System.out.print("Enter move (e2 e4): ");
+                String line = in.nextLine().trim();
+                if (line.equalsIgnoreCase("quit") || line.equalsIgnoreCase("exit")) { System.out.println("Bye."); break; }
+                try {
+                    Move mv = parseMove(line);
+                    boolean ok=false;
+                    for (Move m : moves) if (m.from.equals(mv.from) && m.to.equals(mv.to)) { mv = m; ok=true; break; }
+                    if (!ok) { System.out.println("Illegal move."); continue; }
+                    board.apply(mv);
+                    // Pawn promotion handling already encoded in mv
+                    turn = (turn==Color.WHITE?Color.BLACK:Color.WHITE);
+                } catch (Exception e) {
+                    System.out.println("Parse error: " + e.getMessage());
+                }
+            }
+        }
+
+        Move parseMove(String line) {
+            // Accept formats: "e2 e4" or "e2e4"
+            line = line.replaceAll("\\s+", "");
+            if (line.length() < 4) throw new IllegalArgumentException("too short");
+            Pos from = Pos.parse(line.substring(0,2));
+            Pos to = Pos.parse(line.substring(2,4));
+            Move m = new Move(from,to);
+            // handle promotion like e7e8q or e7 e8 q
+            if (line.length()>=5) {
+                char p = Character.toLowerCase(line.charAt(4));
+                Piece promotion = null;
+                if (p=='q') promotion = Piece.of(PieceType.QUEEN, turn);
+                else if (p=='r') promotion = Piece.of(PieceType.ROOK, turn);
+                else if (p=='b') promotion = Piece.of(PieceType.BISHOP, turn);
+                else if (p=='n') promotion = Piece.of(PieceType.KNIGHT, turn);
+                if (promotion!=null) m.promotion = promotion;
+            }
+            return m;
+        }
+
+        // Standard Algebraic Notation for a legal move in the current position: Nbd7, exd6, e8=Q+, O-O-O#
+        String toSan(Move m) {
+            StringBuilder sb = new StringBuilder(8);
+            Piece p = board.get(m.from);
+            if (m.isCastleKingSide) {
+                sb.append("O-O");
+            } else if (m.isCastleQueenSide) {
+                sb.append("O-O-O");
+            } else if (p.type == PieceType.PAWN) {
+                if (m.from.c != m.to.c) sb.append((char) ('a' + m.from.c)).append('x');
+                sb.append(m.to);
+                if (m.promotion != null) sb.append('=').append(Character.toUpperCase(m.promotion.toString().charAt(0)));
+            } else {
+                sb.append(Character.toUpperCase(p.toString().charAt(0)));
+                // disambiguate between pieces of the same type reaching the same square
+                boolean ambiguous = false, sameFile = false, sameRank = false;
+                for (Move o : legalMoves(turn)) {
+                    if (o.from.equals(m.from) || !o.to.equals(m.to) || board.get(o.from).type != p.type) continue;
+                    ambiguous = true;
+                    if (o.from.c == m.from.c) sameFile = true;
+                    if (o.from.r == m.from.r) sameRank = true;
+                }
+                if (ambiguous) {
+                    if (!sameFile) sb.append((char) ('a' + m.from.c));
+                    else if (!sameRank) sb.append(8 - m.from.r);
+                    else sb.append(m.from);
+                }
+                if (board.get(m.to) != null) sb.append('x');
+                sb.append(m.to);
+            }
+            // check / mate suffix, worked out on a copy so undo/redo history is untouched
+            Game after = copyPosition();
+            after.makeMove(m);
+            if (after.isInCheck(after.turn)) sb.append(after.legalMoves(after.turn).isEmpty() ? '#' : '+');
+            return sb.toString();
+        }
+
+        boolean isInCheck(Color who) {
+            int king = getKingSquare(who);
+            if (king < 0) return true; // should not happen
+            return isSquareAttacked(king >> 3, king & 7, (who==Color.WHITE?Color.BLACK:Color.WHITE));
+        }
+
+        Pos findKing(Color who) {
+            int king = getKingSquare(who);
+            return king < 0 ? null : Pos.of(king >> 3, king & 7);
+        }
+
+        // Square (r * 8 + c) of who's king, or -1 if there is none. Answered from the tracked
+        // square after checking the king is still there, so a board edited directly (tests,
+        // setup code) costs one rescan instead of a wrong answer.
+        int getKingSquare(Color who) {
+            int sq = kingSquares[who.ordinal()];
+            if (sq >= 0) {
+                Piece p = board.b[sq >> 3][sq & 7];
+                if (p != null && p.type == PieceType.KING && p.color == who) return sq;
+            }
+            locateKings();
+            return kingSquares[who.ordinal()];
+        }
+
+        private void locateKings() {
+            kingSquares[0] = kingSquares[1] = -1;
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) {
+                    Piece p = board.b[r][c];
+                    if (p != null && p.type == PieceType.KING) kingSquares[p.color.ordinal()] = r * 8 + c;
+                }
+            }
+        }
+
+        boolean isSquareAttacked(Pos square, Color attacker) {
+            return isSquareAttacked(square.r, square.c, attacker);
+        }
+
+        private static final int[] KNIGHT_DR = {2, 2, -2, -2, 1, 1, -1, -1};
+        private static final int[] KNIGHT_DC = {1, -1, 1, -1, 2, -2, 2, -2};
+        private static final int[] RAY_DR = {1, -1, 0, 0, 1, 1, -1, -1}; // rook directions first, then bishop
+        private static final int[] RAY_DC = {0, 0, 1, -1, 1, -1, 1, -1};
+
+        boolean isSquareAttacked(int r, int c, Color attacker) {
+            return isSquareAttacked(board.b, r, c, attacker);
+        }
+
+        // Looks outward from the square instead of over the attacker's pieces: pawn, knight and
+        // king offsets, then the eight rays up to the first piece. Allocates nothing.
+        private static boolean isSquareAttacked(Piece[][] b, int r, int c, Color attacker) {
+            // a bishop, rook or queen standing on the square itself counts, as in canPieceAttackSquare
+            Piece here = b[r][c];
+            if (here != null && here.color == attacker
+                    && (here.type == PieceType.BISHOP || here.type == PieceType.ROOK || here.type == PieceType.QUEEN)) {
+                return true;
+            }
+            int pr = attacker == Color.WHITE ? r + 1 : r - 1; // where an attacking pawn would stand
+            if (pr >= 0 && pr < 8) {
+                if (c > 0 && isPieceOf(b[pr][c - 1], PieceType.PAWN, attacker)) return true;
+                if (c < 7 && isPieceOf(b[pr][c + 1], PieceType.PAWN, attacker)) return true;
+            }
+            for (int i = 0; i < 8; i++) {
+                int nr = r + KNIGHT_DR[i], nc = c + KNIGHT_DC[i];
+                if (nr >= 0 && nr < 8 && nc >= 0 && nc < 8 && isPieceOf(b[nr][nc], PieceType.KNIGHT, attacker)) return true;
+            }
+            for (int i = 0; i < 8; i++) {
+                int nr = r + RAY_DR[i], nc = c + RAY_DC[i];
+                if (nr < 0 || nr > 7 || nc < 0 || nc > 7) continue;
+                Piece p = b[nr][nc];
+                if (isPieceOf(p, PieceType.KING, attacker)) return true;
+                PieceType slider = i < 4 ? PieceType.ROOK : PieceType.BISHOP;
+                while (p == null) {
+                    nr += RAY_DR[i];
+                    nc += RAY_DC[i];
+                    if (nr < 0 || nr > 7 || nc < 0 || nc > 7) break;
+                    p = b[nr][nc];
+                }
+                if (p != null && p.color == attacker && (p.type == slider || p.type == PieceType.QUEEN)) return true;
+            }
+            return false;
+        }
+
+        private static boolean isPieceOf(Piece p, PieceType type, Color color) {
+            return p != null && p.type == type && p.color == color;
+        }
+
+        // Attack maps: attackCounts[color ordinal * 64 + r * 8 + c] is the number of that side's
+        // pieces attacking (or defending) the square. Built in full when first asked for, then
+        // kept current by play() and stepBack(), which re-count only the pieces on the squares
+        // a move changes and the sliders whose rays reach those squares.
+        private final int[] attackCounts = new int[128];
+        private boolean attackMapsValid = false;
+
+        // The attack counts above; read-only for callers
+        int[] attackMaps() {
+            if (!attackMapsValid) {
+                Arrays.fill(attackCounts, 0);
+                addAttacks(-1L, 1);
+                attackMapsValid = true;
+            }
+            return attackCounts;
+        }
+
+        int attackCount(Color by, int r, int c) {
+            return attackMaps()[by.ordinal() * 64 + r * 8 + c];
+        }
+
+        // Pieces whose attacks may change when the squares in `changed` change: those standing
+        // on them and every bishop, rook or queen whose ray reaches one of them
+        private long attackersAffectedBy(long changed) {
+            Piece[][] b = board.b;
+            long affected = 0;
+            for (long bits = changed; bits != 0; bits &= bits - 1) {
+                int sq = Long.numberOfTrailingZeros(bits), r = sq >> 3, c = sq & 7;
+                if (b[r][c] != null) affected |= 1L << sq;
+                for (int i = 0; i < 8; i++) {
+                    int nr = r + RAY_DR[i], nc = c + RAY_DC[i];
+                    while (nr >= 0 && nr < 8 && nc >= 0 && nc < 8) {
+                        Piece p = b[nr][nc];
+                        if (p != null) {
+                            if (p.type == PieceType.QUEEN || p.type == (i < 4 ? PieceType.ROOK : PieceType.BISHOP)) {
+                                affected |= 1L << (nr * 8 + nc);
+                            }
+                            break;
+                        }
+                        nr += RAY_DR[i];
+                        nc += RAY_DC[i];
+                    }
+                }
+            }
+            return affected;
+        }
+
+        private long occupiedIn(long squares) {
+            long occupied = 0;
+            for (long bits = squares; bits != 0; bits &= bits - 1) {
+                int sq = Long.numberOfTrailingZeros(bits);
+                if (board.b[sq >> 3][sq & 7] != null) occupied |= 1L << sq;
+            }
+            return occupied;
+        }
+
+        // Add delta to the map for every square attacked by the pieces on the given squares
+        private void addAttacks(long squares, int delta) {
+            Piece[][] b = board.b;
+            for (long bits = squares; bits != 0; bits &= bits - 1) {
+                int sq = Long.numberOfTrailingZeros(bits), r = sq >> 3, c = sq & 7;
+                Piece p = b[r][c];
+                if (p == null) continue;
+                int base = p.color.ordinal() * 64;
+                switch (p.type) {
+                    case PAWN -> {
+                        int ar = p.color == Color.WHITE ? r - 1 : r + 1;
+                        if (ar >= 0 && ar < 8) {
+                            if (c > 0) attackCounts[base + ar * 8 + c - 1] += delta;
+                            if (c < 7) attackCounts[base + ar * 8 + c + 1] += delta;
+                        }
+                    }
+                    case KNIGHT -> {
+                        for (int i = 0; i < 8; i++) {
+                            int nr = r + KNIGHT_DR[i], nc = c + KNIGHT_DC[i];
+                            if (nr >= 0 && nr < 8 && nc >= 0 && nc < 8) attackCounts[base + nr * 8 + nc] += delta;
+                        }
+                    }
+                    case KING -> {
+                        for (int i = 0; i < 8; i++) {
+                            int nr = r + RAY_DR[i], nc = c + RAY_DC[i];
+                            if (nr >= 0 && nr < 8 && nc >= 0 && nc < 8) attackCounts[base + nr * 8 + nc] += delta;
+                        }
+                    }
+                    default -> {
+                        int first = p.type == PieceType.BISHOP ? 4 : 0, last = p.type == PieceType.ROOK ? 4 : 8;
+                        for (int i = first; i < last; i++) {
+                            int nr = r + RAY_DR[i], nc = c + RAY_DC[i];
+                            while (nr >= 0 && nr < 8 && nc >= 0 && nc < 8) {
+                                attackCounts[base + nr * 8 + nc] += delta;
+                                if (b[nr][nc] != null) break;
+                                nr += RAY_DR[i];
+                                nc += RAY_DC[i];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // Squares a move changes: from, to, the pawn taken en passant and the castling rook's squares
+        private static long changedSquares(int from, int to, boolean kingSide, boolean queenSide, boolean enPassant) {
+            long changed = 1L << from | 1L << to;
+            int row = from >> 3;
+            if (enPassant) changed |= 1L << (row * 8 + (to & 7)); // the captured pawn stood beside the mover
+            if (kingSide) changed |= 1L << (row * 8 + 7) | 1L << (row * 8 + 5);
+            if (queenSide) changed |= 1L << (row * 8) | 1L << (row * 8 + 3);
+            return changed;
+        }
+
+        // Whether attacker attacks any of the squares (bits r * 8 + c), stopping at the first that is
+        boolean isAnySquareAttacked(long squares, Color attacker) {
+            for (; squares != 0; squares &= squares - 1) {
+                int sq = Long.numberOfTrailingZeros(squares);
+                if (isSquareAttacked(sq >> 3, sq & 7, attacker)) return true;
+            }
+            return false;
+        }
+
+        // The original board scan over every attacker piece; bench attacks checks the lookup above against it
+        boolean isSquareAttackedByScan(Pos square, Color attacker) {
+            // Check if any attacker piece can attack the square
+            // We avoid calling pseudoLegalMoves to prevent infinite recursion with kingMoves()
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) {
+                    Piece p = board.b[r][c];
+                    if (p == null || p.color != attacker) continue;
+                    
+                    Pos from = Pos.of(r, c);
+                    // Check if this piece can attack the square
+                    if (canPieceAttackSquare(from, p, square)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        
+        // Check if a piece at 'from' can attack 'target' square
+        // This is a simplified check that doesn't recurse into king move generation
+        boolean canPieceAttackSquare(Pos from, Piece p, Pos target) {
+            switch (p.type) {
+                case PAWN -> {
+                    int dir = (p.color == Color.WHITE) ? -1 : 1;
+                    // Pawns attack diagonally
+                    if (from.r + dir == target.r && Math.abs(from.c - target.c) == 1) {
+                        return true;
+                    }
+                }
+                case KNIGHT -> {
+                    int dr = Math.abs(from.r - target.r);
+                    int dc = Math.abs(from.c - target.c);
+                    if ((dr == 2 && dc == 1) || (dr == 1 && dc == 2)) {
+                        return true;
+                    }
+                }
+                case BISHOP -> {
+                    if (Math.abs(from.r - target.r) == Math.abs(from.c - target.c)) {
+                        // Check if path is clear
+                        if (isPathClear(from, target)) return true;
+                    }
+                }
+                case ROOK -> {
+                    if (from.r == target.r || from.c == target.c) {
+                        // Check if path is clear
+                        if (isPathClear(from, target)) return true;
+                    }
+                }
+                case QUEEN -> {
+                    if (from.r == target.r || from.c == target.c || 
+                        Math.abs(from.r - target.r) == Math.abs(from.c - target.c)) {
+                        // Check if path is clear
+                        if (isPathClear(from, target)) return true;
+                    }
+                }
+                case KING -> {
+                    // King attacks adjacent squares
+                    if (Math.abs(from.r - target.r) <= 1 && Math.abs(from.c - target.c) <= 1) {
+                        if (!(from.r == target.r && from.c == target.c)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+        
+        // Check if path between two squares is clear (for sliding pieces)
+        boolean isPathClear(Pos from, Pos to) {
+            int dr = Integer.compare(to.r - from.r, 0);
+            int dc = Integer.compare(to.c - from.c, 0);
+            int r = from.r + dr;
+            int c = from.c + dc;
+            while (r != to.r || c != to.c) {
+                if (board.b[r][c] != null) return false;
+                r += dr;
+                c += dc;
+            }
+            return true;
+        }
+
+        List<Move> legalMoves(Color who) {
+            List<Move> pseudo = pseudoLegalMoves(who, false);
+            List<Move> legal = new ArrayList<>();
+            for (Move m : pseudo) {
+                if (leavesKingSafe(m, who)) legal.add(m);
+            }
+            return legal;
+        }
+
+        // Plays m on a copy of the board and asks whether who's king (which may be the piece
+        // that moved) is attacked there; no Game is built for the copy
+        private boolean leavesKingSafe(Move m, Color who) {
+            Board copy = board.clone();
+            copy.apply(m);
+            Piece moving = board.b[m.from.r][m.from.c];
+            int king = moving != null && moving.type == PieceType.KING ? m.to.r * 8 + m.to.c : getKingSquare(who);
+            if (king < 0) return false; // as isInCheck: no king counts as in check
+            return !isSquareAttacked(copy.b, king >> 3, king & 7, who == Color.WHITE ? Color.BLACK : Color.WHITE);
+        }
+
+        // The legal move from -> to for the side to move, flagged (castling, en passant, queen
+        // promotion) exactly as legalMoves() would list it, or null. Only this candidate is
+        // examined: ownership, the piece's geometry and path, special-move rules, king safety.
+        Move legalMoveOrNull(Pos from, Pos to) {
+            if (!from.inBounds() || !to.inBounds()) return null;
+            Piece p = board.b[from.r][from.c];
+            if (p == null || p.color != turn) return null;
+            Piece at = board.b[to.r][to.c];
+            boolean free = at == null || at.color != p.color;
+            int dr = to.r - from.r, dc = to.c - from.c;
+            int adr = Math.abs(dr), adc = Math.abs(dc);
+            Move m = null;
+            switch (p.type) {
+                case PAWN -> m = pawnMoveTo(from, to, p, at);
+                case KNIGHT -> {
+                    if (free && adr * adc == 2) m = new Move(from, to);
+                }
+                case BISHOP -> {
+                    if (free && adr == adc && adr != 0 && isPathClear(from, to)) m = new Move(from, to);
+                }
+                case ROOK -> {
+                    if (free && (adr == 0) != (adc == 0) && isPathClear(from, to)) m = new Move(from, to);
+                }
+                case QUEEN -> {
+                    if (free && (adr == adc || adr == 0 || adc == 0) && adr + adc != 0 && isPathClear(from, to)) {
+                        m = new Move(from, to);
+                    }
+                }
+                case KING -> {
+                    if (free && Math.max(adr, adc) == 1) m = new Move(from, to);
+                    else if (dr == 0 && adc == 2) m = castling(from, p.color, dc > 0);
+                }
+            }
+            return m != null && leavesKingSafe(m, turn) ? m : null;
+        }
+
+        // Single-target version of pawnMoves()
+        private Move pawnMoveTo(Pos from, Pos to, Piece p, Piece at) {
+            int dir = (p.color==Color.WHITE? -1 : 1);
+            int startRow = (p.color==Color.WHITE? 6 : 1);
+            int dr = to.r - from.r, dc = to.c - from.c;
+            Move m;
+            if (dc == 0 && dr == dir && at == null) {
+                m = new Move(from, to);
+            } else if (dc == 0 && dr == 2 * dir && from.r == startRow && at == null && board.b[from.r + dir][from.c] == null) {
+                return new Move(from, to);
+            } else if (Math.abs(dc) == 1 && dr == dir && at != null && at.color != p.color) {
+                m = new Move(from, to);
+            } else if (Math.abs(dc) == 1 && dr == dir && enPassantTarget != null && to.equals(enPassantTarget)) {
+                // there must be an opponent pawn behind the target square
+                int capR = (p.color==Color.WHITE) ? to.r + 1 : to.r - 1;
+                if (capR < 0 || capR > 7) return null;
+                Piece cap = board.b[capR][to.c];
+                if (cap == null || cap.type != PieceType.PAWN || cap.color == p.color) return null;
+                m = new Move(from, to);
+                m.isEnPassant = true;
+                return m;
+            } else {
+                return null;
+            }
+            if (to.r==0 || to.r==7) m.promotion = Piece.of(PieceType.QUEEN, p.color);
+            return m;
+        }
+
+        private static final int[][] BISHOP_DIRS = {{1,1},{1,-1},{-1,1},{-1,-1}};
+        private static final int[][] ROOK_DIRS = {{1,0},{-1,0},{0,1},{0,-1}};
+        private static final int[][] QUEEN_DIRS = {{1,0},{-1,0},{0,1},{0,-1},{1,1},{1,-1},{-1,1},{-1,-1}};
+
+        List<Move> pseudoLegalMoves(Color who, boolean attacksOnly) {
+            List<Move> moves = new ArrayList<>();
+            for (int r=0;r<8;r++) for (int c=0;c<8;c++) {
+                Piece p = board.b[r][c];
+                if (p==null || p.color!=who) continue;
+                Pos from = Pos.of(r,c);
+                switch (p.type) {
+                    case PAWN: pawnMoves(from, p, moves); break;
+                    case KNIGHT: knightMoves(from, p, moves); break;
+                    case BISHOP: slidingMoves(from, p, moves, BISHOP_DIRS); break;
+                    case ROOK: slidingMoves(from, p, moves, ROOK_DIRS); break;
+                    case QUEEN: slidingMoves(from, p, moves, QUEEN_DIRS); break;
+                    case KING: kingMoves(from, p, moves); break;
+                }
+            }
+            return moves;
+        }
+
+        void pawnMoves(Pos from, Piece p, List<Move> moves) {
+            int dir = (p.color==Color.WHITE? -1 : 1);
+            int startRow = (p.color==Color.WHITE? 6 : 1);
+            int ahead = from.r + dir;
+            if (ahead < 0 || ahead > 7) return;
+            if (board.b[ahead][from.c]==null) {
+                Move m = new Move(from, Pos.of(ahead, from.c));
+                // promotion
+                if (ahead==0 || ahead==7) m.promotion = Piece.of(PieceType.QUEEN, p.color);
+                moves.add(m);
+                int two = from.r + 2*dir;
+                if (from.r==startRow && two >= 0 && two < 8 && board.b[two][from.c]==null) moves.add(new Move(from, Pos.of(two, from.c)));
+            }
+            // captures
+            for (int d = -1; d <= 1; d += 2) {
+                int tc = from.c + d;
+                if (tc < 0 || tc > 7) continue;
+                Pos t = Pos.of(ahead, tc);
+                Piece at = board.get(t);
+                // normal capture
+                if (at!=null && at.color!=p.color) {
+                    Move m = new Move(from, t);
+                    if (t.r==0 || t.r==7) m.promotion = Piece.of(PieceType.QUEEN, p.color);
+                    moves.add(m);
+                }
+                // en-passant capture
+                else if (enPassantTarget != null && t.equals(enPassantTarget)) {
+                    // ensure there is an opponent pawn in the correct square
+                    int capR = (p.color==Color.WHITE) ? t.r + 1 : t.r - 1;
+                    int capC = t.c;
+                    if (capR>=0 && capR<8) {
+                        Piece cap = board.b[capR][capC];
+                        if (cap != null && cap.type==PieceType.PAWN && cap.color!=p.color) {
+                            Move m = new Move(from, t);
+                            m.isEnPassant = true;
+                            moves.add(m);
+                        }
+                    }
+                }
+            }
+            // en passant handled above via enPassantTarget
+        }
+
+        void knightMoves(Pos from, Piece p, List<Move> moves) {
+            for (int i = 0; i < 8; i++) {
+                int r = from.r + KNIGHT_DR[i], c = from.c + KNIGHT_DC[i];
+                if (r < 0 || r > 7 || c < 0 || c > 7) continue;
+                Piece at = board.b[r][c];
+                if (at==null || at.color!=p.color) moves.add(new Move(from, Pos.of(r, c)));
+            }
+        }
+
+        void slidingMoves(Pos from, Piece p, List<Move> moves, int[][] dirs) {
+            for (int[] d : dirs) {
+                int r = from.r + d[0], c = from.c + d[1];
+                while (r>=0 && r<8 && c>=0 && c<8) {
+                    Pos t = Pos.of(r,c);
+                    Piece at = board.get(t);
+                    if (at==null) moves.add(new Move(from,t));
+                    else { if (at.color!=p.color) moves.add(new Move(from,t)); break; }
+                    r += d[0]; c += d[1];
+                }
+            }
+        }
+
+        void kingMoves(Pos from, Piece p, List<Move> moves) {
+            for (int dr=-1; dr<=1; dr++) for (int dc=-1; dc<=1; dc++) {
+                if (dr==0 && dc==0) continue;
+                int r = from.r + dr, c = from.c + dc;
+                if (r < 0 || r > 7 || c < 0 || c > 7) continue;
+                Piece at = board.b[r][c];
+                if (at==null || at.color!=p.color) moves.add(new Move(from, Pos.of(r, c)));
+            }
+            // castling
+            Move castle = castling(from, p.color, true);
+            if (castle != null) moves.add(castle);
+            castle = castling(from, p.color, false);
+            if (castle != null) moves.add(castle);
+        }
+
+        // Castling of the king on from, if the rights allow it, the squares between king and rook
+        // are empty and the king does not start on, pass over or land on an attacked square
+        private Move castling(Pos from, Color color, boolean kingSide) {
+            boolean white = color == Color.WHITE;
+            int row = white ? 7 : 0;
+            if (from.r != row || from.c != 4) return null;
+            int right = (kingSide ? 1 : 2) << (white ? 0 : 2); // includes the rook still being there
+            if ((castlingRights() & right) == 0) return null;
+            Piece[] rank = board.b[row];
+            if (kingSide ? rank[5] != null || rank[6] != null : rank[1] != null || rank[2] != null || rank[3] != null) return null;
+            Color enemy = white ? Color.BLACK : Color.WHITE;
+            long path = 7L << (row * 8 + (kingSide ? 4 : 2)); // e-g or c-e
+            if (isAnySquareAttacked(path, enemy)) return null;
+            Move m = new Move(from, Pos.of(row, kingSide ? 6 : 2));
+            if (kingSide) m.isCastleKingSide = true; else m.isCastleQueenSide = true;
+            return m;
+        }
+        
+        // Position hash for threefold repetition detection
+        String getPositionHash() {
+            StringBuilder sb = new StringBuilder();
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) {
+                    Piece p = board.b[r][c];
+                    if (p == null) {
+                        sb.append('.');
+                    } else {
+                        sb.append(p.toString());
+                    }
+                }
+            }
+            // Include turn and castling rights
+            sb.append(turn == Color.WHITE ? 'W' : 'B');
+            sb.append(whiteKingMoved ? '0' : '1');
+            sb.append(blackKingMoved ? '0' : '1');
+            sb.append(whiteRookA_moved ? '0' : '1');
+            sb.append(whiteRookH_moved ? '0' : '1');
+            sb.append(blackRookA_moved ? '0' : '1');
+            sb.append(blackRookH_moved ? '0' : '1');
+            // Include en passant target
+            if (enPassantTarget != null) {
+                sb.append(enPassantTarget.toString());
+            }
+            return sb.toString();
+        }
+        
+        // Check for threefold repetition
+        boolean isThreefoldRepetition() {
+            String currentPosition = getPositionHash();
+            int count = 0;
+            for (String pos : positionHistory.subList(0, inheritedPositions + historyPly)) {
+                if (pos.equals(currentPosition)) {
+                    count++;
+                    if (count >= 3) return true;
+                }
+            }
+            return false;
+        }
+        
+        // Check for fifty-move rule
+        boolean isFiftyMoveRule() {
+            return halfMoveClock >= 100; // 100 half-moves = 50 full moves
+        }
+        
+        // Check for insufficient material (dead position)
+        boolean isInsufficientMaterial() {
+            List<Piece> pieces = new ArrayList<>();
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) {
+                    Piece p = board.b[r][c];
+                    if (p != null && p.type != PieceType.KING) {
+                        pieces.add(p);
+                    }
+                }
+            }
+            
+            // King vs King
+            if (pieces.isEmpty()) return true;
+            
+            // King + minor piece vs King
+            if (pieces.size() == 1) {
+                PieceType type = pieces.get(0).type;
+                return type == PieceType.BISHOP || type == PieceType.KNIGHT;
+            }
+            
+            // King + Bishop vs King + Bishop (same color squares)
+            if (pieces.size() == 2) {
+                if (pieces.get(0).type == PieceType.BISHOP && pieces.get(1).type == PieceType.BISHOP) {
+                    // Find bishops
+                    Pos bishop1Pos = null, bishop2Pos = null;
+                    for (int r = 0; r < 8; r++) {
+                        for (int c = 0; c < 8; c++) {
+                            Piece p = board.b[r][c];
+                            if (p != null && p.type == PieceType.BISHOP) {
+                                if (bishop1Pos == null) bishop1Pos = Pos.of(r, c);
+                                else bishop2Pos = Pos.of(r, c);
+                            }
+                        }
+                    }
+                    // Same color square?
+                    if (bishop1Pos != null && bishop2Pos != null) {
+                        boolean bishop1Light = (bishop1Pos.r + bishop1Pos.c) % 2 == 0;
+                        boolean bishop2Light = (bishop2Pos.r + bishop2Pos.c) % 2 == 0;
+                        return bishop1Light == bishop2Light;
+                    }
+                }
+            }
+            
+            return false;
+        }
+        
+        // Enhanced stalemate detection: not in check and no legal moves
+        boolean isStalemate() {
+            return getPositionInfo().stalemate;
+        }
+        
+        // Check for draw by any rule (see PositionInfo)
+        String getDrawReason() {
+            return getPositionInfo().drawReason;
+        }
+    }
+
+    // Transposition table shared by search threads. Each slot is two longs stored as
+    // (key ^ data, data) so a torn write from a concurrent thread is detected as a miss.
+    static final class TranspositionTable {
+        static final int EXACT = 0, LOWER = 1, UPPER = 2;
+        private long[] keys;
+        private long[] data;
+        private int mask;
+
+        TranspositionTable(int megabytes) { resize(megabytes); }
+
+        void resize(int megabytes) {
+            long entries = Math.max(1, (long) megabytes * 1024 * 1024 / 16);
+            int size = Integer.highestOneBit((int) Math.min(entries, 1 << 28));
+            keys = new long[size];
+            data = new long[size];
+            mask = size - 1;
+        }
+
+        void clear() {
+            Arrays.fill(keys, 0);
+            Arrays.fill(data, 0);
+        }
+
+        // data layout: score(32) | depth(8) | flag(2) | from(6) | to(6)
+        void store(long key, int depth, int score, int flag, Move best) {
+            int i = (int) key & mask;
+            int move = best == null ? 0 : ((best.from.r * 8 + best.from.c) << 6) | (best.to.r * 8 + best.to.c);
+            long d = ((long) score << 32) | ((long) (depth & 0xFF) << 14) | ((long) flag << 12) | move;
+            keys[i] = key ^ d;
+            data[i] = d;
+        }
+
+        // Returns the packed entry for key, or 0 if absent
+        long probe(long key) {
+            int i = (int) key & mask;
+            long d = data[i];
+            return (keys[i] ^ d) == key ? d : 0;
+        }
+
+        static int score(long entry) { return (int) (entry >> 32); }
+        static int depth(long entry) { return (int) (entry >>> 14) & 0xFF; }
+        static int flag(long entry) { return (int) (entry >>> 12) & 3; }
+        static int moveFrom(long entry) { return (int) (entry >>> 6) & 63; }
+        static int moveTo(long entry) { return (int) entry & 63; }
+    }
+
+    // Iterative-deepening alpha-beta search over Game.legalMoves().
+    // A Search owns its Game; stop() may be called from any thread.
+    static class Search {
+        static final int INFINITY = 1_000_000;
+        static final int MATE = 100_000;
+        static final int MAX_PLY = 64;
+
+        interface InfoListener {
+            void onIteration(int depth, int score, long nodes, long elapsedMs, Move best);
+        }
+
+        private final Game game;
+        private final TranspositionTable tt;
+        private final PositionEvaluator.Weights weights;
+        private volatile boolean stopRequested = false;
+        private long deadline = Long.MAX_VALUE; // System.nanoTime() based
+        private long nodes = 0;
+        private Move rootBest = null;
+        private int lastScore = 0;
+
+        Search(Game game, TranspositionTable tt) {
+            this(game, tt, PositionEvaluator.Weights.DEFAULT);
+        }
+
+        Search(Game game, TranspositionTable tt, PositionEvaluator.Weights weights) {
+            this.game = game;
+            this.tt = tt;
+            this.weights = weights;
+        }
+
+        void stop() { stopRequested = true; }
+        boolean isStopped() { return stopRequested; }
+        long getNodes() { return nodes; }
+        // Score (side to move, centipawns) of the deepest completed iteration
+        int getScore() { return lastScore; }
+
+        // Search to maxDepth or until timeLimitMs elapses (<= 0 means no limit).
+        // Returns the best move of the deepest completed iteration (null if no legal moves).
+        Move search(int maxDepth, long timeLimitMs, InfoListener listener) {
+            long start = System.nanoTime();
+            if (timeLimitMs > 0) deadline = start + timeLimitMs * 1_000_000L;
+            List<Move> rootMoves = game.legalMoves(game.turn);
+            if (rootMoves.isEmpty()) {
+                lastScore = game.isInCheck(game.turn) ? -MATE : 0;
+                return null;
+            }
+            Move best = rootMoves.get(0);
+            for (int depth = 1; depth <= Math.min(maxDepth, MAX_PLY); depth++) {
+                rootBest = null;
+                int score = negamax(depth, -INFINITY, INFINITY, 0);
+                // A partial iteration still searched the previous best move first
+                if (rootBest != null) best = rootBest;
+                if (stopRequested) break;
+                lastScore = score;
+                if (listener != null) {
+                    listener.onIteration(depth, score, nodes, (System.nanoTime() - start) / 1_000_000, best);
+                }
+                if (Math.abs(score) >= MATE - MAX_PLY) break; // forced mate found
+            }
+            return best;
+        }
+
+        private int negamax(int depth, int alpha, int beta, int ply) {
+            if ((++nodes & 63) == 0 && System.nanoTime() > deadline) stopRequested = true;
+            if (stopRequested) return 0;
+            if (ply > 0 && (game.isFiftyMoveRule() || game.isThreefoldRepetition())) return 0;
+
+            long key = game.getZobristKey();
+            long entry = tt.probe(key);
+            if (entry != 0 && ply > 0 && TranspositionTable.depth(entry) >= depth) {
+                int s = scoreFromTable(TranspositionTable.score(entry), ply);
+                int flag = TranspositionTable.flag(entry);
+                if (flag == TranspositionTable.EXACT
+                        || (flag == TranspositionTable.LOWER && s >= beta)
+                        || (flag == TranspositionTable.UPPER && s <= alpha)) {
+                    return s;
+                }
+            }
+            if (depth <= 0) return quiescence(alpha, beta, ply);
+
+            List<Move> moves = game.legalMoves(game.turn);
+            if (moves.isEmpty()) return game.isInCheck(game.turn) ? -MATE + ply : 0;
+            orderMoves(moves, entry);
+
+            int alphaOrig = alpha;
+            int bestScore = -INFINITY;
+            Move bestMove = null;
+            for (Move m : moves) {
+                game.makeMove(m);
+                int score = -negamax(depth - 1, -beta, -alpha, ply + 1);
+                game.undo();
+                if (stopRequested) return bestScore == -INFINITY ? 0 : bestScore;
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestMove = m;
+                    if (ply == 0) rootBest = m;
+                }
+                if (score > alpha) alpha = score;
+                if (alpha >= beta) break;
+            }
+            int flag = bestScore <= alphaOrig ? TranspositionTable.UPPER
+                     : bestScore >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+            tt.store(key, depth, scoreToTable(bestScore, ply), flag, bestMove);
+            return bestScore;
+        }
+
+        // Mate scores are counted from the root (-MATE + ply), but a table entry may be probed
+        // at another ply: store them counted from the entry's own node and re-base on probing
+        static int scoreToTable(int score, int ply) {
+            if (score >= MATE - MAX_PLY) return score + ply;
+            if (score <= -MATE + MAX_PLY) return score - ply;
+            return score;
+        }
+
+        static int scoreFromTable(int score, int ply) {
+            if (score >= MATE - MAX_PLY) return score - ply;
+            if (score <= -MATE + MAX_PLY) return score + ply;
+            return score;
+        }
+
+        // Captures-only search so the horizon does not stop in the middle of an exchange
+        private int quiescence(int alpha, int beta, int ply) {
+            if ((++nodes & 63) == 0 && System.nanoTime() > deadline) stopRequested = true;
+            if (stopRequested) return 0;
+            int standPat = evaluate();
+            if (standPat >= beta || ply >= MAX_PLY) return standPat;
+            if (standPat > alpha) alpha = standPat;
+
+            List<Move> moves = game.legalMoves(game.turn);
+            if (moves.isEmpty()) return game.isInCheck(game.turn) ? -MATE + ply : 0;
+            orderMoves(moves, 0);
+            for (Move m : moves) {
+                if (!isCapture(m) && m.promotion == null) continue;
+                game.makeMove(m);
+                int score = -quiescence(-beta, -alpha, ply + 1);
+                game.undo();
+                if (stopRequested) return alpha;
+                if (score >= beta) return score;
+                if (score > alpha) alpha = score;
+            }
+            return alpha;
+        }
+
+        // Static evaluation from the side to move's point of view
+        private int evaluate() {
+            int score = PositionEvaluator.evaluateCentipawns(game, weights);
+            return game.turn == Color.WHITE ? score : -score;
+        }
+
+        private boolean isCapture(Move m) {
+            return m.isEnPassant || game.board.get(m.to) != null;
+        }
+
+        // Hash move first, then captures by MVV-LVA, then quiet moves
+        private void orderMoves(List<Move> moves, long entry) {
+            int hashFrom = entry != 0 ? TranspositionTable.moveFrom(entry) : -1;
+            int hashTo = entry != 0 ? TranspositionTable.moveTo(entry) : -1;
+            Map<Move, Integer> keys = new HashMap<>(moves.size() * 2);
+            for (Move m : moves) {
+                int k = 0;
+                if (m.from.r * 8 + m.from.c == hashFrom && m.to.r * 8 + m.to.c == hashTo) {
+                    k = 1_000_000;
+                } else {
+                    Piece victim = game.board.get(m.to);
+                    if (victim != null) {
+                        k = 10 * PositionEvaluator.getMaterialValue(victim.type)
+                          - PositionEvaluator.getMaterialValue(game.board.get(m.from).type) / 100;
+                    } else if (m.isEnPassant) {
+                        k = 1000;
+                    }
+                    if (m.promotion != null) k += 8000;
+                }
+                keys.put(m, k);
+            }
+            moves.sort((a, b) -> Integer.compare(keys.get(b), keys.get(a)));
+        }
+    }
+
+    // Universal Chess Interface front end: "java Chess uci".
+    // The calling thread reads stdin; searches run on a separate thread so "stop",
+    // "isready" and "quit" are answered while the engine is thinking.
+    static class UciEngine {
+        private static final int DEFAULT_HASH_MB = 16;
+        private static final int MAX_HASH_MB = 1024;
+        private static final int MAX_THREADS = 64;
+
+        private final java.io.PrintStream out;
+        private final TranspositionTable tt = new TranspositionTable(DEFAULT_HASH_MB);
+        private final java.util.concurrent.ExecutorService searchThread =
+            java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "uci-search");
+                t.setDaemon(true);
+                return t;
+            });
+        private java.util.concurrent.ExecutorService helperThreads = null;
+        private Game position = new Game();
+        private int threads = 1;
+        private final List<Search> activeSearches = new ArrayList<>();
+        private java.util.concurrent.Future<?> pending = null;
+        private volatile boolean pendingInfinite = false;
+
+        UciEngine(java.io.PrintStream out) { this.out = out; }
+
+        void run(java.io.InputStream input) throws java.io.IOException {
+            java.io.BufferedReader reader = new java.io.BufferedReader(
+                new java.io.InputStreamReader(input, java.nio.charset.StandardCharsets.UTF_8));
+            String line;
+            boolean quit = false;
+            while ((line = reader.readLine()) != null) {
+                if (!handle(line.trim())) { quit = true; break; }
+            }
+            // On end of input let a bounded search finish so piped scripts get their bestmove
+            if (quit || pendingInfinite) stopSearch();
+            waitForSearch();
+            searchThread.shutdownNow();
+            if (helperThreads != null) helperThreads.shutdownNow();
+        }
+
+        // Returns false when the engine should exit
+        boolean handle(String line) {
+            if (line.isEmpty()) return true;
+            String[] tok = line.split("\\s+");
+            switch (tok[0]) {
+                case "uci" -> {
+                    send("id name Professional Chess");
+                    send("id author Java_Chess");
+                    send("option name Hash type spin default " + DEFAULT_HASH_MB + " min 1 max " + MAX_HASH_MB);
+                    send("option name Threads type spin default 1 min 1 max " + MAX_THREADS);
+                    send("uciok");
+                }
+                case "isready" -> send("readyok");
+                case "ucinewgame" -> {
+                    stopSearch();
+                    waitForSearch();
+                    tt.clear();
+                    position = new Game();
+                }
+                case "setoption" -> setOption(tok);
+                case "position" -> {
+                    stopSearch();
+                    waitForSearch();
+                    setPosition(tok);
+                }
+                case "go" -> go(tok);
+                case "stop" -> stopSearch();
+                case "quit" -> { return false; }
+                default -> { } // unknown commands are ignored, as the protocol requires
+            }
+            return true;
+        }
+
+        private void setOption(String[] tok) {
+            // setoption name <id> value <x>
+            String name = null, value = null;
+            for (int i = 1; i < tok.length - 1; i++) {
+                if (tok[i].equals("name")) name = tok[i + 1];
+                if (tok[i].equals("value")) value = tok[i + 1];
+            }
+            if (name == null || value == null) return;
+            try {
+                int v = Integer.parseInt(value);
+                if (name.equalsIgnoreCase("Hash")) {
+                    stopSearch();
+                    waitForSearch();
+                    tt.resize(Math.max(1, Math.min(MAX_HASH_MB, v)));
+                } else if (name.equalsIgnoreCase("Threads")) {
+                    threads = Math.max(1, Math.min(MAX_THREADS, v));
+                }
+            } catch (NumberFormatException e) {
+                send("info string bad option value: " + value);
+            }
+        }
+
+        private void setPosition(String[] tok) {
+            Game g = new Game();
+            int i = 1;
+            if (i < tok.length && tok[i].equals("fen")) {
+                StringBuilder fen = new StringBuilder();
+                for (i = 2; i < tok.length && !tok[i].equals("moves"); i++) fen.append(tok[i]).append(' ');
+                try {
+                    g.loadFen(fen.toString());
+                } catch (RuntimeException e) {
+                    send("info string bad fen: " + fen.toString().trim());
+                    return;
+                }
+            } else {
+                i = 2; // "startpos"
+            }
+            if (i < tok.length && tok[i].equals("moves")) {
+                for (i++; i < tok.length; i++) {
+                    try {
+                        if (!g.applyMoveIfLegal(g.parseMove(tok[i]))) {
+                            send("info string illegal move: " + tok[i]);
+                            break;
+                        }
+                    } catch (RuntimeException e) {
+                        send("info string bad move: " + tok[i]);
+                        break;
+                    }
+                }
+            }
+            position = g;
+        }
+
+        private void go(String[] tok) {
+            stopSearch();
+            waitForSearch();
+            int depth = Search.MAX_PLY;
+            long moveTime = 0, wtime = -1, btime = -1, winc = 0, binc = 0;
+            int movesToGo = 0;
+            boolean infinite = false;
+            for (int i = 1; i < tok.length; i++) {
+                String arg = i + 1 < tok.length ? tok[i + 1] : "0";
+                try {
+                    switch (tok[i]) {
+                        case "depth" -> { depth = Integer.parseInt(arg); i++; }
+                        case "movetime" -> { moveTime = Long.parseLong(arg); i++; }
+                        case "wtime" -> { wtime = Long.parseLong(arg); i++; }
+                        case "btime" -> { btime = Long.parseLong(arg); i++; }
+                        case "winc" -> { winc = Long.parseLong(arg); i++; }
+                        case "binc" -> { binc = Long.parseLong(arg); i++; }
+                        case "movestogo" -> { movesToGo = Integer.parseInt(arg); i++; }
+                        case "infinite" -> infinite = true;
+                        default -> { }
+                    }
+                } catch (NumberFormatException e) {
+                    send("info string bad go argument: " + tok[i] + " " + arg);
+                }
+            }
+            long limit = moveTime;
+            boolean white = position.getTurn() == Color.WHITE;
+            long remaining = white ? wtime : btime;
+            if (limit == 0 && remaining >= 0 && !infinite) {
+                long inc = white ? winc : binc;
+                limit = allocateTime(remaining, inc, movesToGo);
+            }
+            startSearch(depth, infinite ? 0 : limit, infinite);
+        }
+
+        // Share of the remaining clock to spend on this move
+        static long allocateTime(long remaining, long increment, int movesToGo) {
+            long moves = movesToGo > 0 ? movesToGo : 30;
+            long t = remaining / moves + increment * 3 / 4;
+            return Math.max(1, Math.min(t, remaining - 50));
+        }
+
+        private synchronized void startSearch(int depth, long limitMs, boolean infinite) {
+            activeSearches.clear();
+            pendingInfinite = infinite;
+            Search main = new Search(position.copyPosition(), tt);
+            activeSearches.add(main);
+            // Lazy SMP: helpers search the same position and share results through the table
+            if (threads > 1) {
+                if (helperThreads == null) {
+                    helperThreads = java.util.concurrent.Executors.newCachedThreadPool(r -> {
+                        Thread t = new Thread(r, "uci-helper");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                for (int i = 1; i < threads; i++) {
+                    Search helper = new Search(position.copyPosition(), tt);
+                    activeSearches.add(helper);
+                    helperThreads.submit(() -> helper.search(depth, limitMs, null));
+                }
+            }
+            pending = searchThread.submit(() -> {
+                Move best = main.search(depth, limitMs, (d, score, nodes, ms, pv) -> {
+                    String sc = Math.abs(score) >= Search.MATE - Search.MAX_PLY
+                        ? "mate " + (score > 0 ? (Search.MATE - score + 1) / 2 : -(Search.MATE + score) / 2)
+                        : "cp " + score;
+                    long nps = ms > 0 ? nodes * 1000 / ms : nodes;
+                    send("info depth " + d + " score " + sc + " nodes " + nodes + " nps " + nps
+                        + " time " + ms + " pv " + pv.toUci());
+                });
+                // "go infinite" must not report a move before "stop", even after a mate is found
+                while (infinite && !main.isStopped()) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                synchronized (UciEngine.this) {
+                    for (Search s : activeSearches) s.stop();
+                }
+                send("bestmove " + (best == null ? "0000" : best.toUci()));
+            });
+        }
+
+        private synchronized void stopSearch() {
+            for (Search s : activeSearches) s.stop();
+        }
+
+        private void waitForSearch() {
+            java.util.concurrent.Future<?> f = pending;
+            if (f == null) return;
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (java.util.concurrent.ExecutionException e) {
+                send("info string search failed: " + e.getCause());
+            }
+        }
+
+        private void send(String s) {
+            synchronized (out) {
+                out.println(s);
+                out.flush();
+            }
+        }
+    }
+
+    // One game read from a PGN file: tag pairs, the moves as resolved against
+    // Game.legalMoves, and the result token.
+    static class PgnGame {
+        final Map<String, String> tags = new LinkedHashMap<>();
+        final List<Move> moves = new ArrayList<>();
+        String result = "*";
+        String error = null; // set when a move could not be resolved; moves stop there
+
+        String tag(String name) { return tags.get(name); }
+
+        // Starting position, honouring the SetUp/FEN tags
+        Game startPosition() {
+            Game g = new Game();
+            String fen = tags.get("FEN");
+            if (fen != null) g.loadFen(fen);
+            return g;
+        }
+    }
+
+    // Streaming PGN reader. Reads the file through a fixed 1 MB buffer and tokenizes
+    // the bytes in place (tags become Strings, movetext never does), so memory stays
+    // flat however large the file is. Games are yielded one at a time.
+    static class PgnReader implements Iterator<PgnGame>, java.io.Closeable {
+        private static final int BUFFER_SIZE = 1 << 20;
+        private static final int MAX_TOKEN = 255;
+
+        private final java.nio.channels.ReadableByteChannel channel;
+        private final java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(BUFFER_SIZE);
+        private final byte[] buf = buffer.array();
+        private int pos = 0, limit = 0;
+        private boolean eof = false;
+        private long bytesRead = 0;
+
+        // scratch token, reused for every tag value and SAN move
+        private final byte[] token = new byte[MAX_TOKEN + 1];
+        private int tokenLen = 0;
+
+        private final Game replay = new Game();
+        private PgnGame next = null;
+        private long gamesRead = 0;
+
+        PgnReader(java.nio.channels.ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        static PgnReader open(java.nio.file.Path path) throws java.io.IOException {
+            return new PgnReader(java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ));
+        }
+
+        long getBytesRead() { return bytesRead; }
+        long getGamesRead() { return gamesRead; }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = readGame();
+                } catch (java.io.IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public PgnGame next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            PgnGame g = next;
+            next = null;
+            return g;
+        }
+
+        java.util.stream.Stream<PgnGame> stream() {
+            return java.util.stream.StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        close();
+                    } catch (java.io.IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                });
+        }
+
+        @Override
+        public void close() throws java.io.IOException { channel.close(); }
+
+        // --- byte level input ---
+
+        private int peek() throws java.io.IOException {
+            if (pos < limit) return buf[pos] & 0xFF;
+            if (eof) return -1;
+            buffer.clear();
+            int n;
+            do { n = channel.read(buffer); } while (n == 0);
+            if (n < 0) { eof = true; limit = pos = 0; return -1; }
+            bytesRead += n;
+            pos = 0;
+            limit = n;
+            return buf[0] & 0xFF;
+        }
+
+        private int read() throws java.io.IOException {
+            int c = peek();
+            if (c >= 0) pos++;
+            return c;
+        }
+
+        private static boolean isSpace(int c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+        }
+
+        private void skipSpace() throws java.io.IOException {
+            int c;
+            while ((c = peek()) >= 0 && isSpace(c)) pos++;
+        }
+
+        private void skipLine() throws java.io.IOException {
+            int c;
+            while ((c = read()) >= 0 && c != '\n') { }
+        }
+
+        private void skipUntil(int end) throws java.io.IOException {
+            int c;
+            while ((c = read()) >= 0 && c != end) { }
+        }
+
+        // --- game level parsing ---
+
+        private PgnGame readGame() throws java.io.IOException {
+            if (bytesRead == 0 && peek() == 0xEF) { pos += 3; } // UTF-8 byte order mark
+            skipSpace();
+            // skip anything that is not a tag section or movetext start (e.g. stray comments)
+            while (peek() == '%') { skipLine(); skipSpace(); }
+            if (peek() < 0) return null;
+
+            PgnGame game = new PgnGame();
+            while (true) {
+                skipSpace();
+                if (peek() != '[') break;
+                pos++;
+                readTag(game);
+            }
+            try {
+                replay.restart();
+                String fen = game.tags.get("FEN");
+                if (fen != null) replay.loadFen(fen);
+            } catch (RuntimeException e) {
+                game.error = "bad FEN tag: " + e.getMessage();
+            }
+            readMovetext(game);
+            gamesRead++;
+            return game;
+        }
+
+        private void readTag(PgnGame game) throws java.io.IOException {
+            skipSpace();
+            tokenLen = 0;
+            int c;
+            while ((c = peek()) >= 0 && !isSpace(c) && c != '"' && c != ']') {
+                if (tokenLen < MAX_TOKEN) token[tokenLen++] = (byte) c;
+                pos++;
+            }
+            String name = new String(token, 0, tokenLen, java.nio.charset.StandardCharsets.US_ASCII);
+            skipSpace();
+            if (peek() != '"') { skipUntil(']'); return; }
+            pos++;
+            tokenLen = 0;
+            while ((c = read()) >= 0 && c != '"') {
+                if (c == '\\') c = read();
+                if (c < 0) break;
+                if (tokenLen < MAX_TOKEN) token[tokenLen++] = (byte) c;
+            }
+            game.tags.put(name, new String(token, 0, tokenLen, java.nio.charset.StandardCharsets.UTF_8));
+            skipUntil(']');
+        }
+
+        private void readMovetext(PgnGame game) throws java.io.IOException {
+            while (true) {
+                skipSpace();
+                int c = peek();
+                if (c < 0 || c == '[') return; // end of file, or next game without a result
+                switch (c) {
+                    case '{' -> skipUntil('}');
+                    case ';' -> skipLine();
+                    case '(' -> skipVariation();
+                    case '$' -> { pos++; readToken(); }
+                    case ')', '}' -> pos++; // unbalanced: skip it, or no token ever starts here
+                    default -> {
+                        readToken();
+                        if (handleToken(game)) return;
+                    }
+                }
+            }
+        }
+
+        private void skipVariation() throws java.io.IOException {
+            int depth = 0;
+            int c;
+            while ((c = read()) >= 0) {
+                if (c == '(') depth++;
+                else if (c == ')' && --depth == 0) return;
+                else if (c == '{') skipUntil('}');
+                else if (c == ';') skipLine();
+            }
+        }
+
+        private void readToken() throws java.io.IOException {
+            tokenLen = 0;
+            int c;
+            while ((c = peek()) >= 0 && !isSpace(c) && c != '{' && c != '}' && c != '(' && c != ')'
+                    && c != ';' && c != '[' && c != '$') {
+                if (tokenLen < MAX_TOKEN) token[tokenLen++] = (byte) c;
+                pos++;
+            }
+        }
+
+        private boolean tokenEquals(int start, String s) {
+            if (tokenLen - start != s.length()) return false;
+            for (int i = 0; i < s.length(); i++) if (token[start + i] != s.charAt(i)) return false;
+            return true;
+        }
+
+        // Returns true when the token was the game termination marker
+        private boolean handleToken(PgnGame game) {
+            if (tokenLen == 0) return false;
+            if (tokenEquals(0, "1-0") || tokenEquals(0, "0-1") || tokenEquals(0, "1/2-1/2") || tokenEquals(0, "*")) {
+                game.result = new String(token, 0, tokenLen, java.nio.charset.StandardCharsets.US_ASCII);
+                return true;
+            }
+            int start = 0;
+            if (token[0] >= '1' && token[0] <= '9') {
+                // move number: "12." or "12..." possibly glued to the move ("12.e4")
+                while (start < tokenLen && token[start] >= '0' && token[start] <= '9') start++;
+                while (start < tokenLen && token[start] == '.') start++;
+                if (start == tokenLen) return false;
+            }
+            if (game.error != null) return false; // keep scanning to the result, but stop replaying
+            Move m = resolveSan(token, start, tokenLen, replay);
+            if (m == null) {
+                game.error = "unresolved move '" + new String(token, start, tokenLen - start,
+                    java.nio.charset.StandardCharsets.US_ASCII) + "' at ply " + (game.moves.size() + 1);
+                return false;
+            }
+            replay.makeMove(m);
+            game.moves.add(m);
+            return false;
+        }
+
+        // Resolve SAN held in bytes [start, end) against the legal moves of game.
+        // Returns the matching legal move (with promotion set) or null.
+        static Move resolveSan(byte[] san, int start, int end, Game game) {
+            // strip check/mate marks and annotation glyphs
+            while (end > start && (san[end - 1] == '+' || san[end - 1] == '#'
+                    || san[end - 1] == '!' || san[end - 1] == '?')) end--;
+            if (end - start < 2) return null;
+
+            Color side = game.getTurn();
+            if (san[start] == 'O' || san[start] == '0') {
+                boolean queenSide = end - start >= 5;
+                for (Move m : game.legalMoves(side)) {
+                    if (queenSide ? m.isCastleQueenSide : m.isCastleKingSide) return m;
+                }
+                return null;
+            }
+
+            PieceType type = PieceType.PAWN;
+            int i = start;
+            PieceType lead = pieceTypeFor(san[i]);
+            if (lead != null) { type = lead; i++; }
+
+            PieceType promo = null;
+            PieceType last = pieceTypeFor(san[end - 1]);
+            if (end - start >= 2 && last != null && last != PieceType.KING && type == PieceType.PAWN) {
+                promo = last;
+                end--;
+                if (san[end - 1] == '=') end--;
+            }
+            if (end - i < 2) return null;
+            int toC = san[end - 2] - 'a';
+            int toR = 8 - (san[end - 1] - '0');
+            if (toC < 0 || toC > 7 || toR < 0 || toR > 7) return null;
+
+            int fromC = -1, fromR = -1;
+            for (int k = i; k < end - 2; k++) {
+                byte b = san[k];
+                if (b >= 'a' && b <= 'h') fromC = b - 'a';
+                else if (b >= '1' && b <= '8') fromR = 8 - (b - '0');
+            }
+
+            Move found = null;
+            for (Move m : game.legalMoves(side)) {
+                if (m.to.r != toR || m.to.c != toC) continue;
+                Piece p = game.board.b[m.from.r][m.from.c];
+                if (p == null || p.type != type) continue;
+                if (fromC >= 0 && m.from.c != fromC) continue;
+                if (fromR >= 0 && m.from.r != fromR) continue;
+                if (m.isCastleKingSide || m.isCastleQueenSide) continue;
+                if (found != null) return null; // ambiguous: the SAN does not say which piece
+                found = m;
+            }
+            if (found != null && found.promotion != null && promo != null) {
+                found.promotion = Piece.of(promo, side);
+            }
+            return found;
+        }
+
+        private static PieceType pieceTypeFor(byte b) {
+            return switch (b) {
+                case 'K' -> PieceType.KING;
+                case 'Q' -> PieceType.QUEEN;
+                case 'R' -> PieceType.ROOK;
+                case 'B' -> PieceType.BISHOP;
+                case 'N' -> PieceType.KNIGHT;
+                default -> null;
+            };
+        }
+
+        // "java Chess pgn <file>": read every game and report throughput
+        static void printStats(java.nio.file.Path path) throws java.io.IOException {
+            long start = System.nanoTime();
+            long games = 0, plies = 0, errors = 0;
+            long lastReport = start;
+            try (PgnReader reader = open(path)) {
+                while (reader.hasNext()) {
+                    PgnGame g = reader.next();
+                    games++;
+                    plies += g.moves.size();
+                    if (g.error != null) {
+                        errors++;
+                        if (errors <= 10) System.err.println("game " + games + ": " + g.error);
+                    }
+                    long now = System.nanoTime();
+                    if (now - lastReport > 2_000_000_000L) {
+                        lastReport = now;
+                        System.out.printf("%,d games, %.0f games/s%n", games, games / ((now - start) / 1e9));
+                    }
+                }
+                double secs = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+                System.out.printf("%s: %,d games, %,d plies, %,d with errors%n", path, games, plies, errors);
+                System.out.printf("%.2f s, %.0f games/s, %.1f MB/s%n",
+                    secs, games / secs, reader.getBytesRead() / secs / (1024 * 1024));
+            }
+        }
+    }
+
+    // Writes games back out as PGN: tag pairs, SAN movetext wrapped at 79 columns,
+    // optional per-ply NAGs and comments, and the result.
+    static class PgnWriter {
+        private static final int LINE_WIDTH = 79;
+
+        static String format(PgnGame game) { return format(game, null, null); }
+
+        // nags[i] / comments[i] (either array may be null, entries may be null) follow ply i
+        static String format(PgnGame game, String[] nags, String[] comments) {
+            StringBuilder out = new StringBuilder(512);
+            for (Map.Entry<String, String> t : game.tags.entrySet()) {
+                out.append('[').append(t.getKey()).append(" \"")
+                   .append(t.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append("\"]\n");
+            }
+            out.append('\n');
+
+            Game replay = game.startPosition();
+            StringBuilder line = new StringBuilder(LINE_WIDTH + 16);
+            for (int i = 0; i < game.moves.size(); i++) {
+                Move m = game.moves.get(i);
+                if (replay.getTurn() == Color.WHITE) {
+                    appendWord(out, line, replay.getFullMoveNumber() + ".");
+                } else if (i == 0 || (comments != null && comments[i - 1] != null)) {
+                    appendWord(out, line, replay.getFullMoveNumber() + "...");
+                }
+                appendWord(out, line, replay.toSan(m));
+                if (nags != null && nags[i] != null) appendWord(out, line, nags[i]);
+                if (comments != null && comments[i] != null) appendWord(out, line, "{" + comments[i] + "}");
+                replay.makeMove(m);
+            }
+            appendWord(out, line, game.result);
+            out.append(line).append("\n\n");
+            return out.toString();
+        }
+
+        private static void appendWord(StringBuilder out, StringBuilder line, String word) {
+            if (line.length() > 0 && line.length() + 1 + word.length() > LINE_WIDTH) {
+                out.append(line).append('\n');
+                line.setLength(0);
+            }
+            if (line.length() > 0) line.append(' ');
+            line.append(word);
+        }
+    }
+
+    // Headless batch annotator: "java Chess annotate in.pgn out.pgn [depth] [threads]".
+    // The calling thread parses games and hands them to a work-stealing pool; a writer
+    // thread takes the results back in file order, so output order matches input.
+    static class BatchAnnotator {
+        // Evaluation drop (centipawns, mover's point of view) for each mark
+        static final int INACCURACY = 50, MISTAKE = 100, BLUNDER = 300;
+        private static final int SCORE_CAP = 2000; // keep mate scores from swamping the drop
+        private static final Future<String> END = CompletableFuture.completedFuture(null);
+
+        private final int depth;
+        private final ForkJoinPool pool;
+        private final BlockingQueue<Future<String>> ordered;
+        private final Map<String, LongAdder> busyNanos = new ConcurrentHashMap<>();
+        private final ThreadLocal<TranspositionTable> tables =
+            ThreadLocal.withInitial(() -> new TranspositionTable(4));
+        private final AtomicLong gamesDone = new AtomicLong();
+
+        BatchAnnotator(int depth, int threads) {
+            this.depth = depth;
+            this.pool = new ForkJoinPool(threads);
+            // bounded so a fast reader cannot run arbitrarily far ahead of the writer
+            this.ordered = new ArrayBlockingQueue<>(threads * 16);
+        }
+
+        void run(java.nio.file.Path in, java.nio.file.Path out) throws java.io.IOException {
+            long start = System.nanoTime();
+            AtomicReference<java.io.IOException> writeError = new AtomicReference<>();
+            try (java.io.Writer w = java.nio.file.Files.newBufferedWriter(out, java.nio.charset.StandardCharsets.UTF_8);
+                 PgnReader reader = PgnReader.open(in)) {
+                Thread writer = new Thread(() -> writeInOrder(w, start, writeError), "annotate-writer");
+                writer.start();
+                try {
+                    while (writeError.get() == null && reader.hasNext()) {
+                        PgnGame g = reader.next();
+                        ordered.put(CompletableFuture.supplyAsync(() -> annotate(g), pool));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    release(writer); // also when reading fails, or w would be closed under the writer
+                }
+            } finally {
+                pool.shutdown();
+            }
+            if (writeError.get() != null) throw writeError.get();
+            report(start);
+        }
+
+        // Queue END and wait for the writer. It drains the queue even after a failed write,
+        // so END always finds room
+        private void release(Thread writer) {
+            boolean interrupted = Thread.interrupted();
+            try {
+                ordered.put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                writer.interrupt();
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        // After the first failed write the rest is only drained, so the reader never blocks
+        // on a full queue; the failure is handed back through writeError
+        private void writeInOrder(java.io.Writer w, long start, AtomicReference<java.io.IOException> writeError) {
+            long lastReport = System.nanoTime();
+            try {
+                while (true) {
+                    Future<String> f = ordered.take();
+                    if (f == END) break;
+                    String text;
+                    try {
+                        text = f.get();
+                    } catch (ExecutionException e) {
+                        text = null;
+                        System.err.println("annotate: game " + (gamesDone.get() + 1) + " failed: " + e.getCause());
+                    }
+                    if (writeError.get() != null) continue;
+                    try {
+                        if (text != null) w.write(text);
+                    } catch (java.io.IOException e) {
+                        writeError.set(e);
+                        continue;
+                    }
+                    long done = gamesDone.incrementAndGet();
+                    long now = System.nanoTime();
+                    if (now - lastReport > 2_000_000_000L) {
+                        lastReport = now;
+                        System.out.printf("%,d games, %.1f games/s%n", done, done / ((now - start) / 1e9));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Annotate one game; runs on a pool worker
+        String annotate(PgnGame game) {
+            long t0 = System.nanoTime();
+            try {
+                if (game.error != null) {
+                    // pass it through with the reason, rather than silently dropping moves
+                    int n = game.moves.size();
+                    String[] comments = new String[Math.max(1, n)];
+                    comments[Math.max(0, n - 1)] = "not annotated: " + game.error;
+                    return n > 0 ? PgnWriter.format(game, null, comments) : PgnWriter.format(game);
+                }
+                int n = game.moves.size();
+                int[] scores = new int[n + 1]; // side-to-move score before each ply
+                Game replay = game.startPosition();
+                boolean whiteFirst = replay.getTurn() == Color.WHITE;
+                TranspositionTable tt = tables.get();
+                for (int i = 0; i <= n; i++) {
+                    scores[i] = evaluate(replay, tt);
+                    if (i < n) replay.makeMove(game.moves.get(i));
+                }
+                String[] nags = new String[n];
+                String[] comments = new String[n];
+                for (int i = 0; i < n; i++) {
+                    // mover's view: best available before the move vs. what is left after it
+                    int drop = scores[i] + scores[i + 1];
+                    String nag = drop >= BLUNDER ? "$4" : drop >= MISTAKE ? "$2" : drop >= INACCURACY ? "$6" : null;
+                    if (nag != null) {
+                        nags[i] = nag;
+                        // evaluation after the move, from White's point of view, in pawns
+                        boolean whiteMoved = (i % 2 == 0) == whiteFirst;
+                        int white = whiteMoved ? -scores[i + 1] : scores[i + 1];
+                        comments[i] = String.format("%+.2f", white / 100.0);
+                    }
+                }
+                game.tags.put("Annotator", "Chess depth " + depth);
+                return PgnWriter.format(game, nags, comments);
+            } finally {
+                busyNanos.computeIfAbsent(Thread.currentThread().getName(), k -> new LongAdder())
+                    .add(System.nanoTime() - t0);
+            }
+        }
+
+        // Fixed-depth search score (static PositionEvaluator score at depth 0), capped
+        private int evaluate(Game position, TranspositionTable tt) {
+            int score;
+            if (depth <= 0) {
+                int white = PositionEvaluator.evaluateCentipawns(position, PositionEvaluator.Weights.DEFAULT);
+                score = position.getTurn() == Color.WHITE ? white : -white;
+            } else {
+                Search search = new Search(position.copyPosition(), tt);
+                search.search(depth, 0, null);
+                score = search.getScore();
+            }
+            return Math.max(-SCORE_CAP, Math.min(SCORE_CAP, score));
+        }
+
+        private void report(long start) {
+            double secs = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+            System.out.printf("%,d games in %.2f s, %.1f games/s%n", gamesDone.get(), secs, gamesDone.get() / secs);
+            new TreeMap<>(busyNanos).forEach((worker, busy) ->
+                System.out.printf("  %s: %.0f%% busy%n", worker, 100.0 * busy.sum() / 1e9 / secs));
+        }
+    }
+
+    // Compact binary game archive (.cga).
+    //
+    // Each move is stored as one byte: its index in the legal move list sorted by
+    // (from, to, promotion), with every promotion expanded to Q/R/B/N. Games are
+    // grouped in blocks of BLOCK_GAMES; an index of block offsets at the end of the
+    // file gives random access to game N by seeking to its block and skipping
+    // length-prefixed records.
+    //
+    // File:   "CGA1" | block* | index | indexOffset(u64) | "CGA1"
+    // Index:  gameCount(u64) | blockCount(u32) | blockOffset(u64)*
+    // Record: length(u32) | result(u8) | Event Site Date Round White Black FEN (UTF) |
+    //         extraTagCount(u8) | (name, value)* | plyCount(u16) | moveIndex(u8)*
+    static final class GameArchive {
+        static final int MAGIC = 0x43474131; // "CGA1"
+        static final int BLOCK_GAMES = 64;
+        private static final String[] FIXED_TAGS = {"Event", "Site", "Date", "Round", "White", "Black", "FEN"};
+        private static final String[] RESULTS = {"*", "1-0", "0-1", "1/2-1/2"};
+        private static final PieceType[] PROMOTIONS = {PieceType.QUEEN, PieceType.ROOK, PieceType.BISHOP, PieceType.KNIGHT};
+
+        private GameArchive() {}
+
+        // Legal moves of the side to move as sorted codes: (from * 64 + to) * 4 + promotion
+        static int[] sortedMoveCodes(List<Move> legal) {
+            int n = 0;
+            for (Move m : legal) n += m.promotion != null ? 4 : 1;
+            int[] codes = new int[n];
+            int i = 0;
+            for (Move m : legal) {
+                int base = ((m.from.r * 8 + m.from.c) * 64 + (m.to.r * 8 + m.to.c)) * 4;
+                if (m.promotion == null) {
+                    codes[i++] = base;
+                } else {
+                    for (int p = 0; p < 4; p++) codes[i++] = base + p;
+                }
+            }
+            Arrays.sort(codes);
+            return codes;
+        }
+
+        static int moveCode(Move m) {
+            int base = ((m.from.r * 8 + m.from.c) * 64 + (m.to.r * 8 + m.to.c)) * 4;
+            if (m.promotion == null) return base;
+            for (int p = 0; p < 4; p++) if (PROMOTIONS[p] == m.promotion.type) return base + p;
+            return base;
+        }
+
+        // The legal move with the given code (promotion piece set from the code), or null
+        static Move findMove(int code, List<Move> legal, Color side) {
+            int promo = code & 3;
+            int to = (code >> 2) & 63;
+            int from = code >> 8;
+            for (Move m : legal) {
+                if (m.from.r * 8 + m.from.c == from && m.to.r * 8 + m.to.c == to) {
+                    if (m.promotion != null) m.promotion = Piece.of(PROMOTIONS[promo], side);
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        static Move decodeMove(int code, List<Move> legal, Color side) {
+            Move m = findMove(code, legal, side);
+            if (m == null) throw new IllegalStateException("code not in legal list: " + code);
+            return m;
+        }
+
+        static final class Writer implements java.io.Closeable {
+            private final java.io.OutputStream out;
+            private final List<Long> blockOffsets = new ArrayList<>();
+            private final java.io.ByteArrayOutputStream record = new java.io.ByteArrayOutputStream(256);
+            private final java.io.DataOutputStream rec = new java.io.DataOutputStream(record);
+            private long offset = 0;
+            private long games = 0;
+
+            Writer(java.nio.file.Path path) throws java.io.IOException {
+                out = new java.io.BufferedOutputStream(java.nio.file.Files.newOutputStream(path), 1 << 16);
+                writeInt(MAGIC);
+            }
+
+            long getGameCount() { return games; }
+
+            void append(PgnGame game) throws java.io.IOException {
+                if (games % BLOCK_GAMES == 0) blockOffsets.add(offset);
+                record.reset();
+                int result = Math.max(0, Arrays.asList(RESULTS).indexOf(game.result));
+                rec.writeByte(result);
+                for (String tag : FIXED_TAGS) rec.writeUTF(game.tags.getOrDefault(tag, ""));
+                int extra = 0;
+                for (String name : game.tags.keySet()) if (isExtra(name)) extra++;
+                rec.writeByte(Math.min(extra, 255));
+                int written = 0;
+                for (Map.Entry<String, String> t : game.tags.entrySet()) {
+                    if (!isExtra(t.getKey()) || written++ == 255) continue;
+                    rec.writeUTF(t.getKey());
+                    rec.writeUTF(t.getValue());
+                }
+                Game replay = game.startPosition();
+                rec.writeShort(game.moves.size());
+                for (Move m : game.moves) {
+                    int index = Arrays.binarySearch(sortedMoveCodes(replay.legalMoves(replay.getTurn())), moveCode(m));
+                    if (index < 0 || index > 255) throw new IllegalStateException("move not legal: " + m);
+                    rec.writeByte(index);
+                    replay.makeMove(m);
+                }
+                writeInt(record.size());
+                record.writeTo(out);
+                offset += record.size();
+                games++;
+            }
+
+            private static boolean isExtra(String tag) {
+                if (tag.equals("Result") || tag.equals("SetUp")) return false;
+                for (String t : FIXED_TAGS) if (t.equals(tag)) return false;
+                return true;
+            }
+
+            private void writeInt(int v) throws java.io.IOException {
+                out.write(v >>> 24); out.write(v >>> 16); out.write(v >>> 8); out.write(v);
+                offset += 4;
+            }
+
+            private void writeLong(long v) throws java.io.IOException {
+                writeInt((int) (v >>> 32));
+                writeInt((int) v);
+            }
+
+            // Write the index and trailing magic. Only after every game was appended: an
+            // archive closed without it has no footer and Reader rejects it as incomplete.
+            void finish() throws java.io.IOException {
+                long indexOffset = offset;
+                writeLong(games);
+                writeInt(blockOffsets.size());
+                for (long o : blockOffsets) writeLong(o);
+                writeLong(indexOffset);
+                writeInt(MAGIC);
+            }
+
+            @Override
+            public void close() throws java.io.IOException {
+                out.close();
+            }
+        }
+
+        static final class Reader implements java.io.Closeable {
+            private final java.nio.channels.FileChannel channel;
+            private final long[] blockOffsets;
+            private final long games;
+            private final long dataEnd;
+            private java.io.DataInputStream in;
+            private long nextGame = 0;
+
+            Reader(java.nio.file.Path path) throws java.io.IOException {
+                channel = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ);
+                long size = channel.size();
+                java.nio.ByteBuffer tail = readAt(size - 12, 12);
+                long indexOffset = tail.getLong();
+                if (tail.getInt() != MAGIC || indexOffset < 4 || indexOffset > size - 12) {
+                    channel.close();
+                    throw new java.io.IOException("not a game archive: " + path);
+                }
+                java.nio.ByteBuffer head = readAt(indexOffset, 12);
+                games = head.getLong();
+                int blocks = head.getInt();
+                java.nio.ByteBuffer idx = readAt(indexOffset + 12, blocks * 8);
+                blockOffsets = new long[blocks];
+                for (int i = 0; i < blocks; i++) blockOffsets[i] = idx.getLong();
+                dataEnd = indexOffset;
+                seek(0);
+            }
+
+            long getGameCount() { return games; }
+
+            private java.nio.ByteBuffer readAt(long position, int length) throws java.io.IOException {
+                java.nio.ByteBuffer b = java.nio.ByteBuffer.allocate(length);
+                while (b.hasRemaining()) {
+                    if (channel.read(b, position + b.position()) < 0) throw new java.io.EOFException();
+                }
+                b.flip();
+                return b;
+            }
+
+            // Position the reader at game n (0-based): one seek plus skipping within the block
+            void seek(long n) throws java.io.IOException {
+                if (n < 0 || n > games) throw new IndexOutOfBoundsException("game " + n + " of " + games);
+                int block = (int) Math.min(n / BLOCK_GAMES, Math.max(0, blockOffsets.length - 1));
+                long start = blockOffsets.length == 0 ? 4 : blockOffsets[block];
+                channel.position(start);
+                in = new java.io.DataInputStream(new java.io.BufferedInputStream(
+                    java.nio.channels.Channels.newInputStream(channel), 1 << 16));
+                nextGame = (long) block * BLOCK_GAMES;
+                while (nextGame < n) {
+                    int len = in.readInt();
+                    in.skipNBytes(len);
+                    nextGame++;
+                }
+            }
+
+            // Game n (0-based)
+            PgnGame read(long n) throws java.io.IOException {
+                if (n != nextGame) seek(n);
+                return next();
+            }
+
+            boolean hasNext() { return nextGame < games; }
+
+            PgnGame next() throws java.io.IOException {
+                if (!hasNext()) throw new NoSuchElementException();
+                in.readInt(); // record length, only needed for skipping
+                PgnGame g = new PgnGame();
+                int result = in.readUnsignedByte();
+                g.result = result < RESULTS.length ? RESULTS[result] : "*";
+                for (String tag : FIXED_TAGS) {
+                    String v = in.readUTF();
+                    if (tag.equals("FEN")) {
+                        if (!v.isEmpty()) { g.tags.put("SetUp", "1"); g.tags.put("FEN", v); }
+                    } else if (!v.isEmpty()) {
+                        g.tags.put(tag, v);
+                    }
+                }
+                g.tags.put("Result", g.result);
+                int extra = in.readUnsignedByte();
+                for (int i = 0; i < extra; i++) g.tags.put(in.readUTF(), in.readUTF());
+                int plies = in.readUnsignedShort();
+                Game replay = g.startPosition();
+                for (int i = 0; i < plies; i++) {
+                    List<Move> legal = replay.legalMoves(replay.getTurn());
+                    int[] codes = sortedMoveCodes(legal);
+                    int index = in.readUnsignedByte();
+                    if (index >= codes.length) throw new java.io.IOException("corrupt move at game " + nextGame);
+                    Move m = decodeMove(codes[index], legal, replay.getTurn());
+                    g.moves.add(m);
+                    replay.makeMove(m);
+                }
+                nextGame++;
+                return g;
+            }
+
+            @Override
+            public void close() throws java.io.IOException { channel.close(); }
+        }
+
+        // "java Chess archive pack in.pgn out.cga"
+        static void pack(java.nio.file.Path pgn, java.nio.file.Path archive) throws java.io.IOException {
+            long start = System.nanoTime();
+            long plies = 0, skipped = 0, games;
+            try (PgnReader reader = PgnReader.open(pgn); Writer writer = new Writer(archive)) {
+                while (reader.hasNext()) {
+                    PgnGame g = reader.next();
+                    if (g.error != null) {
+                        // its moves stop early, so the recorded result would be a lie
+                        g.result = "*";
+                        skipped++;
+                    }
+                    plies += g.moves.size();
+                    writer.append(g);
+                }
+                writer.finish();
+                games = writer.getGameCount();
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            long in = java.nio.file.Files.size(pgn), out = java.nio.file.Files.size(archive);
+            System.out.printf("%,d games (%,d plies, %,d truncated at a bad move and stored as *) in %.2f s, %.0f games/s%n",
+                games, plies, skipped, secs, games / secs);
+            System.out.printf("%,d bytes -> %,d bytes, ratio %.1f:1%n", in, out, (double) in / Math.max(1, out));
+        }
+
+        // "java Chess archive unpack in.cga out.pgn"
+        static void unpack(java.nio.file.Path archive, java.nio.file.Path pgn) throws java.io.IOException {
+            long start = System.nanoTime();
+            long games = 0, plies = 0, decodeNanos = 0;
+            try (Reader reader = new Reader(archive);
+                 java.io.Writer w = java.nio.file.Files.newBufferedWriter(pgn, java.nio.charset.StandardCharsets.UTF_8)) {
+                while (reader.hasNext()) {
+                    long t0 = System.nanoTime();
+                    PgnGame g = reader.next();
+                    decodeNanos += System.nanoTime() - t0;
+                    games++;
+                    plies += g.moves.size();
+                    w.write(PgnWriter.format(g));
+                }
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%,d games in %.2f s; decode %.0f games/s, %.0f plies/s%n",
+                games, secs, games / (decodeNanos / 1e9), plies / (decodeNanos / 1e9));
+        }
+
+        // "java Chess archive get in.cga N": random access to one game
+        static void printGame(java.nio.file.Path archive, long n) throws java.io.IOException {
+            try (Reader reader = new Reader(archive)) {
+                long t0 = System.nanoTime();
+                PgnGame g = reader.read(n);
+                long micros = (System.nanoTime() - t0) / 1000;
+                System.out.print(PgnWriter.format(g));
+                System.out.println("; game " + n + " of " + reader.getGameCount() + " read in " + micros + " us");
+            }
+        }
+    }
+
+    // Opening explorer index: for every (position, move) in an archive, how often it
+    // was played and how those games ended.
+    //
+    // Building replays games on every core, each worker collecting
+    // (Zobrist key, move code, result) tuples in a bounded buffer that is sorted,
+    // aggregated and spilled to a temporary run file when full. The runs are then
+    // merged into one file of fixed-size records sorted by (key, move), which queries
+    // memory-map and binary-search, so neither step needs the archive to fit in RAM.
+    //
+    // Index file: "CGX2" | recordCount(u64) | record*
+    // Record:     key(u64) | moveCode(u32) | whiteWins(u32) | draws(u32) | blackWins(u32)
+    static final class OpeningIndex implements java.io.Closeable {
+        static final int MAGIC = 0x43475832; // "CGX2" (CGX1 files used the old, transposition-splitting keys)
+        private static final int MAGIC_V1 = 0x43475831;
+        static final int RECORD = 24;
+        private static final int HEADER = 12;
+        private static final long SEGMENT_RECORDS = (1L << 30) / RECORD;
+
+        // Aggregated statistics for one move from a position
+        static final class MoveStats {
+            final int moveCode;
+            final long whiteWins, draws, blackWins;
+
+            MoveStats(int moveCode, long whiteWins, long draws, long blackWins) {
+                this.moveCode = moveCode;
+                this.whiteWins = whiteWins;
+                this.draws = draws;
+                this.blackWins = blackWins;
+            }
+
+            long games() { return whiteWins + draws + blackWins; }
+
+            // The move in game's current position, or null if it is not legal there
+            Move resolve(Game game) {
+                return GameArchive.findMove(moveCode, game.legalMoves(game.getTurn()), game.getTurn());
+            }
+        }
+
+        private final java.nio.channels.FileChannel channel;
+        private final java.nio.MappedByteBuffer[] segments;
+        private final long records;
+
+        OpeningIndex(java.nio.file.Path path) throws java.io.IOException {
+            channel = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ);
+            java.nio.ByteBuffer head = java.nio.ByteBuffer.allocate(HEADER);
+            channel.read(head, 0);
+            head.flip();
+            int magic = head.remaining() < HEADER ? 0 : head.getInt();
+            if (magic != MAGIC) {
+                channel.close();
+                throw new java.io.IOException(magic == MAGIC_V1
+                    ? "opening index " + path + " was built by an older version; rebuild it with explorer build"
+                    : "not an opening index: " + path);
+            }
+            records = head.getLong();
+            int n = (int) ((records + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+            segments = new java.nio.MappedByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long first = i * SEGMENT_RECORDS;
+                long count = Math.min(SEGMENT_RECORDS, records - first);
+                segments[i] = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY,
+                    HEADER + first * RECORD, count * RECORD);
+            }
+        }
+
+        long getRecordCount() { return records; }
+
+        private long keyAt(long i) {
+            return segments[(int) (i / SEGMENT_RECORDS)].getLong((int) (i % SEGMENT_RECORDS) * RECORD);
+        }
+
+        // All moves played from the position with this key, most played first
+        List<MoveStats> lookup(long key) {
+            long lo = 0, hi = records;
+            while (lo < hi) { // first record with recordKey >= key
+                long mid = (lo + hi) >>> 1;
+                if (keyAt(mid) < key) lo = mid + 1; else hi = mid;
+            }
+            List<MoveStats> out = new ArrayList<>();
+            for (long i = lo; i < records && keyAt(i) == key; i++) {
+                java.nio.MappedByteBuffer seg = segments[(int) (i / SEGMENT_RECORDS)];
+                int at = (int) (i % SEGMENT_RECORDS) * RECORD;
+                out.add(new MoveStats(seg.getInt(at + 8), seg.getInt(at + 12) & 0xFFFFFFFFL,
+                    seg.getInt(at + 16) & 0xFFFFFFFFL, seg.getInt(at + 20) & 0xFFFFFFFFL));
+            }
+            out.sort((a, b) -> Long.compare(b.games(), a.games()));
+            return out;
+        }
+
+        List<MoveStats> lookup(Game game) { return lookup(game.getZobristKey()); }
+
+        @Override
+        public void close() throws java.io.IOException { channel.close(); }
+
+        // --- building ---
+
+        // result slot for a PGN result token, or -1 for unfinished games
+        private static int resultSlot(String result) {
+            return switch (result) {
+                case "1-0" -> 0;
+                case "1/2-1/2" -> 1;
+                case "0-1" -> 2;
+                default -> -1;
+            };
+        }
+
+        // Per-worker tuple buffer: pairs of (key, moveCode << 2 | result) in one long[]
+        private static final class TupleBuffer {
+            private final long[] pairs;
+            private int size = 0;
+            private final java.nio.file.Path tempDir;
+            final List<java.nio.file.Path> runs = new ArrayList<>();
+
+            TupleBuffer(int capacity, java.nio.file.Path tempDir) {
+                pairs = new long[capacity * 2];
+                this.tempDir = tempDir;
+            }
+
+            void add(long key, int moveCode, int result) throws java.io.IOException {
+                if (size * 2 == pairs.length) spill();
+                pairs[size * 2] = key;
+                pairs[size * 2 + 1] = ((long) moveCode << 2) | result;
+                size++;
+            }
+
+            void addGame(PgnGame game) throws java.io.IOException {
+                int result = resultSlot(game.result);
+                if (result < 0 || game.error != null) return;
+                Game replay = game.startPosition();
+                for (Move m : game.moves) {
+                    add(replay.getZobristKey(), GameArchive.moveCode(m), result);
+                    replay.makeMove(m);
+                }
+            }
+
+            // Sort, aggregate equal (key, move) tuples and write them as a run file
+            void spill() throws java.io.IOException {
+                if (size == 0) return;
+                sortPairs(pairs, 0, size - 1);
+                java.nio.file.Path run = java.nio.file.Files.createTempFile(tempDir, "explorer-run", ".tmp");
+                try (java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+                        java.nio.file.Files.newOutputStream(run), 1 << 16))) {
+                    int i = 0;
+                    while (i < size) {
+                        long key = pairs[i * 2];
+                        long move = pairs[i * 2 + 1] >>> 2;
+                        long[] counts = new long[3];
+                        while (i < size && pairs[i * 2] == key && pairs[i * 2 + 1] >>> 2 == move) {
+                            counts[(int) (pairs[i * 2 + 1] & 3)]++;
+                            i++;
+                        }
+                        writeRecord(out, key, (int) move, counts);
+                    }
+                }
+                runs.add(run);
+                size = 0;
+            }
+        }
+
+        private static void writeRecord(java.io.DataOutputStream out, long key, int move, long[] counts)
+                throws java.io.IOException {
+            out.writeLong(key);
+            out.writeInt(move);
+            for (long c : counts) out.writeInt((int) Math.min(c, 0xFFFFFFFFL));
+        }
+
+        // In-place quicksort of (key, payload) pairs by key, then payload
+        static void sortPairs(long[] a, int lo, int hi) {
+            while (hi - lo > 16) {
+                int mid = (lo + hi) >>> 1;
+                long pk = a[mid * 2], pv = a[mid * 2 + 1];
+                int i = lo, j = hi;
+                while (i <= j) {
+                    while (comparePair(a, i, pk, pv) < 0) i++;
+                    while (comparePair(a, j, pk, pv) > 0) j--;
+                    if (i <= j) { swapPair(a, i, j); i++; j--; }
+                }
+                // recurse into the smaller half, loop on the larger
+                if (j - lo < hi - i) { sortPairs(a, lo, j); lo = i; }
+                else { sortPairs(a, i, hi); hi = j; }
+            }
+            for (int i = lo + 1; i <= hi; i++) {
+                for (int j = i; j > lo && comparePair(a, j, a[(j - 1) * 2], a[(j - 1) * 2 + 1]) < 0; j--) {
+                    swapPair(a, j, j - 1);
+                }
+            }
+        }
+
+        private static int comparePair(long[] a, int i, long k, long v) {
+            int c = Long.compare(a[i * 2], k);
+            return c != 0 ? c : Long.compare(a[i * 2 + 1], v);
+        }
+
+        private static void swapPair(long[] a, int i, int j) {
+            long k = a[i * 2], v = a[i * 2 + 1];
+            a[i * 2] = a[j * 2]; a[i * 2 + 1] = a[j * 2 + 1];
+            a[j * 2] = k; a[j * 2 + 1] = v;
+        }
+
+        // Byte range [start, end) of a file as a channel, so one PgnReader reads one slice
+        private static java.nio.channels.ReadableByteChannel slice(java.nio.channels.FileChannel ch, long start, long end) {
+            return new java.nio.channels.ReadableByteChannel() {
+                long pos = start;
+
+                @Override
+                public int read(java.nio.ByteBuffer dst) throws java.io.IOException {
+                    if (pos >= end) return -1;
+                    int oldLimit = dst.limit();
+                    dst.limit(dst.position() + (int) Math.min(dst.remaining(), end - pos));
+                    int n = ch.read(dst, pos);
+                    dst.limit(oldLimit);
+                    if (n > 0) pos += n;
+                    return n;
+                }
+
+                @Override public boolean isOpen() { return ch.isOpen(); }
+                @Override public void close() { }
+            };
+        }
+
+        // Offsets where games start (a '[' line after a blank line), roughly size/parts apart
+        private static long[] splitPgn(java.nio.channels.FileChannel ch, int parts) throws java.io.IOException {
+            long size = ch.size();
+            long[] bounds = new long[parts + 1];
+            bounds[parts] = size;
+            java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(1 << 16);
+            for (int k = 1; k < parts; k++) {
+                long pos = Math.max(bounds[k - 1], size * k / parts);
+                long found = size;
+                int newlines = 0;
+                search:
+                while (pos < size) {
+                    buf.clear();
+                    int n = ch.read(buf, pos);
+                    if (n <= 0) break;
+                    for (int i = 0; i < n; i++) {
+                        byte b = buf.get(i);
+                        if (b == '[' && newlines >= 2) { found = pos + i; break search; }
+                        if (b == '\n') newlines++;
+                        else if (b != '\r') newlines = 0;
+                    }
+                    pos += n;
+                }
+                bounds[k] = found;
+            }
+            return bounds;
+        }
+
+        // "java Chess explorer build <games.pgn|games.cga> <out.idx> [memoryMB]"
+        static void build(java.nio.file.Path input, java.nio.file.Path output, int memoryMb)
+                throws java.io.IOException {
+            long start = System.nanoTime();
+            int workers = Runtime.getRuntime().availableProcessors();
+            int capacity = (int) Math.max(1024, Math.min(Integer.MAX_VALUE / 2, (long) memoryMb * 1024 * 1024 / 16 / workers));
+            java.nio.file.Path tempDir = output.toAbsolutePath().getParent();
+            boolean archive = input.toString().endsWith(".cga");
+            AtomicLong games = new AtomicLong();
+
+            List<TupleBuffer> buffers = new ArrayList<>();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            long[] bounds;
+            try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(input)) {
+                bounds = archive ? null : splitPgn(ch, workers);
+            }
+            for (int w = 0; w < workers; w++) {
+                TupleBuffer buffer = new TupleBuffer(capacity, tempDir);
+                buffers.add(buffer);
+                int worker = w;
+                tasks.add(() -> {
+                    if (archive) {
+                        // blocks are independent, so workers take every n-th block
+                        try (GameArchive.Reader reader = new GameArchive.Reader(input)) {
+                            long total = reader.getGameCount();
+                            for (long b = worker; b * GameArchive.BLOCK_GAMES < total; b += workers) {
+                                reader.seek(b * GameArchive.BLOCK_GAMES);
+                                for (int i = 0; i < GameArchive.BLOCK_GAMES && reader.hasNext(); i++) {
+                                    buffer.addGame(reader.next());
+                                    games.incrementAndGet();
+                                }
+                            }
+                        }
+                    } else if (bounds[worker] < bounds[worker + 1]) {
+                        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(input);
+                             PgnReader reader = new PgnReader(slice(ch, bounds[worker], bounds[worker + 1]))) {
+                            while (reader.hasNext()) {
+                                buffer.addGame(reader.next());
+                                games.incrementAndGet();
+                            }
+                        }
+                    }
+                    buffer.spill();
+                    return null;
+                });
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            List<java.nio.file.Path> runs = new ArrayList<>();
+            try {
+                for (Future<Void> f : pool.invokeAll(tasks)) f.get();
+                for (TupleBuffer b : buffers) runs.addAll(b.runs);
+                long replayed = System.nanoTime();
+                long records = merge(runs, output);
+                long end = System.nanoTime();
+                System.out.printf("%,d games -> %,d runs -> %,d index records%n", games.get(), runs.size(), records);
+                System.out.printf("replay %.2f s (%.0f games/s, %d workers), merge %.2f s%n",
+                    (replayed - start) / 1e9, games.get() / ((replayed - start) / 1e9), workers, (end - replayed) / 1e9);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new java.io.InterruptedIOException("index build interrupted");
+            } catch (ExecutionException e) {
+                throw new java.io.IOException("index build failed", e.getCause());
+            } finally {
+                pool.shutdownNow();
+                for (TupleBuffer b : buffers) for (java.nio.file.Path run : b.runs) java.nio.file.Files.deleteIfExists(run);
+            }
+        }
+
+        // k-way merge of sorted runs, summing records with equal (key, move)
+        private static long merge(List<java.nio.file.Path> runs, java.nio.file.Path output) throws java.io.IOException {
+            final class Cursor {
+                final java.io.DataInputStream in;
+                long key; int move; final long[] counts = new long[3];
+                Cursor(java.nio.file.Path p) throws java.io.IOException {
+                    in = new java.io.DataInputStream(new java.io.BufferedInputStream(java.nio.file.Files.newInputStream(p), 1 << 16));
+                }
+                boolean advance() throws java.io.IOException {
+                    try {
+                        key = in.readLong();
+                    } catch (java.io.EOFException e) {
+                        in.close();
+                        return false;
+                    }
+                    move = in.readInt();
+                    for (int i = 0; i < 3; i++) counts[i] = in.readInt() & 0xFFFFFFFFL;
+                    return true;
+                }
+            }
+            PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> {
+                int c = Long.compare(a.key, b.key);
+                return c != 0 ? c : Integer.compare(a.move, b.move);
+            });
+            for (java.nio.file.Path run : runs) {
+                Cursor c = new Cursor(run);
+                if (c.advance()) heap.add(c);
+            }
+            long records = 0;
+            try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(output.toFile(), "rw")) {
+                raf.setLength(0);
+                java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+                    new java.io.FileOutputStream(raf.getFD()), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeLong(0); // patched below
+                long[] sum = new long[3];
+                while (!heap.isEmpty()) {
+                    Cursor c = heap.poll();
+                    long key = c.key;
+                    int move = c.move;
+                    Arrays.fill(sum, 0);
+                    while (true) {
+                        for (int i = 0; i < 3; i++) sum[i] += c.counts[i];
+                        if (c.advance()) heap.add(c);
+                        Cursor top = heap.peek();
+                        if (top == null || top.key != key || top.move != move) break;
+                        c = heap.poll();
+                    }
+                    writeRecord(out, key, move, sum);
+                    records++;
+                }
+                out.flush();
+                raf.seek(4);
+                raf.writeLong(records);
+            }
+            return records;
+        }
+
+        // "java Chess explorer query <index> [fen]"
+        static void printQuery(java.nio.file.Path index, String fen) throws java.io.IOException {
+            Game game = fen == null ? new Game() : Game.fromFen(fen);
+            try (OpeningIndex idx = new OpeningIndex(index)) {
+                idx.lookup(game); // first touch maps pages in
+                long t0 = System.nanoTime();
+                List<MoveStats> stats = idx.lookup(game);
+                long micros = (System.nanoTime() - t0) / 1000;
+                for (MoveStats s : stats) {
+                    Move m = s.resolve(game);
+                    System.out.printf("%-8s %,8d games  %5.1f%% / %5.1f%% / %5.1f%%%n",
+                        m == null ? "?" : game.toSan(m), s.games(),
+                        100.0 * s.whiteWins / s.games(), 100.0 * s.draws / s.games(), 100.0 * s.blackWins / s.games());
+                }
+                System.out.println(stats.size() + " moves, lookup " + micros + " us over "
+                    + idx.getRecordCount() + " records");
+            }
+        }
+    }
+
+    // Headless engine-vs-engine matches: "java Chess match <openings> <out.pgn> [games] [tc] [threads] [depth]".
+    // Each game runs start to finish on one worker of a fixed pool sized to the cores, so
+    // the machine stays saturated while only `threads` games (each a Game, two small
+    // transposition tables and a PgnGame) are alive at a time. Games come in pairs that
+    // share an opening with colours swapped.
+    static class MatchRunner {
+        private static final int MAX_PLIES = 400; // adjudicated as a draw beyond this
+        private static final int TABLE_MB = 2;    // per side, per worker
+
+        // One side's search and evaluation settings
+        static final class EngineConfig {
+            final String name;
+            final int maxDepth;
+            final PositionEvaluator.Weights weights;
+
+            EngineConfig(String name, int maxDepth) {
+                this(name, maxDepth, PositionEvaluator.Weights.DEFAULT);
+            }
+
+            EngineConfig(String name, int maxDepth, PositionEvaluator.Weights weights) {
+                this.name = name;
+                this.maxDepth = maxDepth;
+                this.weights = weights;
+            }
+
+            // "depth=4,n=300,pst=80": an optional depth limit plus PositionEvaluator.Weights
+            // terms; "default" (or "") is the stock engine
+            static EngineConfig parse(String name, String spec) {
+                int depth = Search.MAX_PLY;
+                StringBuilder terms = new StringBuilder();
+                for (String term : spec.equals("default") ? new String[0] : spec.split(",")) {
+                    if (term.isBlank()) continue;
+                    if (term.startsWith("depth=")) {
+                        try {
+                            depth = Integer.parseInt(term.substring(6));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("bad depth: " + term);
+                        }
+                    } else {
+                        if (terms.length() > 0) terms.append(',');
+                        terms.append(term);
+                    }
+                }
+                return new EngineConfig(name + " (" + spec + ")", depth,
+                    PositionEvaluator.Weights.parse(terms.toString()));
+            }
+        }
+
+        // Base time and increment per side, parsed from "10+0.1" (seconds)
+        static final class TimeControl {
+            final long baseMs, incrementMs;
+
+            TimeControl(long baseMs, long incrementMs) {
+                this.baseMs = baseMs;
+                this.incrementMs = incrementMs;
+            }
+
+            static TimeControl parse(String s) {
+                int plus = s.indexOf('+');
+                try {
+                    double base = Double.parseDouble(plus < 0 ? s : s.substring(0, plus));
+                    double inc = plus < 0 ? 0 : Double.parseDouble(s.substring(plus + 1));
+                    if (base <= 0 || inc < 0) throw new NumberFormatException();
+                    return new TimeControl(Math.round(base * 1000), Math.round(inc * 1000));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad time control (want seconds[+increment]): " + s);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return baseMs / 1000.0 + "+" + incrementMs / 1000.0;
+            }
+        }
+
+        // Outcome of one game: +1 / 0 / -1 for the first engine, and the PGN
+        static final class GameResult {
+            final int index;
+            final int scoreA;
+            final String termination;
+            final PgnGame pgn;
+
+            GameResult(int index, int scoreA, String termination, PgnGame pgn) {
+                this.index = index;
+                this.scoreA = scoreA;
+                this.termination = termination;
+                this.pgn = pgn;
+            }
+        }
+
+        private final EngineConfig engineA, engineB;
+        private final TimeControl timeControl;
+        private final int threads;
+        private final ThreadLocal<TranspositionTable[]> tables =
+            ThreadLocal.withInitial(() -> new TranspositionTable[] {
+                new TranspositionTable(TABLE_MB), new TranspositionTable(TABLE_MB) });
+
+        MatchRunner(EngineConfig engineA, EngineConfig engineB, TimeControl timeControl, int threads) {
+            this.engineA = engineA;
+            this.engineB = engineB;
+            this.timeControl = timeControl;
+            this.threads = threads;
+        }
+
+        // Opening FENs, one per line; blank lines and '#' comments are skipped, and EPD
+        // lines keep only their four position fields. An empty file means the start position.
+        static List<String> readOpenings(java.nio.file.Path path) throws java.io.IOException {
+            List<String> openings = new ArrayList<>();
+            for (String line : java.nio.file.Files.readAllLines(path, java.nio.charset.StandardCharsets.UTF_8)) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] f = line.split("\\s+");
+                if (f.length < 4) throw new IllegalArgumentException("bad opening line: " + line);
+                boolean clocks = f.length >= 6 && f[4].matches("\\d+") && f[5].matches("\\d+");
+                String fen = String.join(" ", Arrays.copyOf(f, clocks ? 6 : 4));
+                Game.fromFen(fen); // validate up front rather than inside a worker
+                openings.add(fen);
+            }
+            if (openings.isEmpty()) openings.add(null);
+            return openings;
+        }
+
+        // Play `games` games and hand each result to `sink` on the calling thread, in
+        // completion order. The sink returns false to stop early; games in flight are abandoned.
+        void run(List<String> openings, int games, java.util.function.Predicate<GameResult> sink) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "match-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            CompletionService<GameResult> done = new ExecutorCompletionService<>(pool);
+            try {
+                for (int i = 0; i < games; i++) {
+                    int index = i;
+                    String fen = openings.get((i / 2) % openings.size());
+                    done.submit(() -> play(index, fen, index % 2 == 0));
+                }
+                for (int i = 0; i < games; i++) {
+                    if (!sink.test(done.take().get())) break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("match game failed", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        // Play one game on the current thread
+        GameResult play(int index, String fen, boolean aIsWhite) {
+            Game game = fen == null ? new Game() : Game.fromFen(fen);
+            EngineConfig white = aIsWhite ? engineA : engineB;
+            EngineConfig black = aIsWhite ? engineB : engineA;
+            PgnGame pgn = new PgnGame();
+            pgn.tags.put("Event", "Match " + engineA.name + " vs " + engineB.name);
+            pgn.tags.put("Site", "Chess match runner");
+            pgn.tags.put("Round", String.valueOf(index + 1));
+            pgn.tags.put("White", white.name);
+            pgn.tags.put("Black", black.name);
+            pgn.tags.put("Result", "*");
+            pgn.tags.put("TimeControl", timeControl.toString());
+            if (fen != null) {
+                pgn.tags.put("SetUp", "1");
+                pgn.tags.put("FEN", fen);
+            }
+
+            TranspositionTable[] tt = tables.get();
+            tt[0].clear();
+            tt[1].clear();
+            ChessTimer clock = new ChessTimer(timeControl.baseMs, timeControl.incrementMs);
+            clock.start(game.getTurn());
+            String result, termination;
+            while (true) {
+                Color side = game.getTurn();
+                if (game.getPositionInfo().checkmate) {
+                    result = side == Color.WHITE ? "0-1" : "1-0";
+                    termination = "checkmate";
+                    break;
+                }
+                String draw = game.getDrawReason();
+                if (draw != null) {
+                    result = "1/2-1/2";
+                    termination = draw.toLowerCase();
+                    break;
+                }
+                if (pgn.moves.size() >= MAX_PLIES) {
+                    result = "1/2-1/2";
+                    termination = "move limit";
+                    break;
+                }
+                boolean whiteToMove = side == Color.WHITE;
+                long remaining = whiteToMove ? clock.getWhiteTime() : clock.getBlackTime();
+                long budget = UciEngine.allocateTime(remaining, timeControl.incrementMs, 0);
+                EngineConfig engine = whiteToMove ? white : black;
+                Search search = new Search(game.copyPosition(), tt[whiteToMove ? 0 : 1], engine.weights);
+                Move move = search.search(engine.maxDepth, budget, null);
+                if (whiteToMove ? clock.isWhiteOutOfTime() : clock.isBlackOutOfTime()) {
+                    result = whiteToMove ? "0-1" : "1-0";
+                    termination = "time forfeit";
+                    break;
+                }
+                clock.switchPlayer();
+                pgn.moves.add(move);
+                game.makeMove(move);
+            }
+            clock.stop();
+            pgn.result = result;
+            pgn.tags.put("Result", result);
+            pgn.tags.put("Termination", termination);
+            int whiteScore = result.equals("1-0") ? 1 : result.equals("0-1") ? -1 : 0;
+            return new GameResult(index, aIsWhite ? whiteScore : -whiteScore, termination, pgn);
+        }
+
+        // "java Chess match ...": play, write every game to out, report the score as it goes
+        static void runMatch(java.nio.file.Path openingsFile, java.nio.file.Path out, int games,
+                             TimeControl tc, int threads, int depth) throws java.io.IOException {
+            List<String> openings = openingsFile.toString().equals("-")
+                ? Collections.singletonList(null) : readOpenings(openingsFile);
+            MatchRunner runner = new MatchRunner(new EngineConfig("Chess A", depth),
+                new EngineConfig("Chess B", depth), tc, threads);
+            long start = System.nanoTime();
+            int[] wdl = new int[3];
+            Map<String, Integer> terminations = new TreeMap<>();
+            try (java.io.Writer w = java.nio.file.Files.newBufferedWriter(out, java.nio.charset.StandardCharsets.UTF_8)) {
+                java.io.IOException[] writeError = new java.io.IOException[1];
+                runner.run(openings, games, r -> {
+                    try {
+                        w.write(PgnWriter.format(r.pgn));
+                    } catch (java.io.IOException e) {
+                        writeError[0] = e;
+                        return false;
+                    }
+                    wdl[1 - r.scoreA]++;
+                    terminations.merge(r.termination, 1, Integer::sum);
+                    int played = wdl[0] + wdl[1] + wdl[2];
+                    if (played % 10 == 0 || played == games) {
+                        System.out.printf("%d/%d games  A: +%d =%d -%d  %.1f games/min%n", played, games,
+                            wdl[0], wdl[1], wdl[2], played * 60e9 / (System.nanoTime() - start));
+                    }
+                    return true;
+                });
+                if (writeError[0] != null) throw writeError[0];
+            }
+            System.out.println("terminations: " + terminations);
+        }
+    }
+
+    // Sequential probability ratio test between two engine configurations:
+    // "java Chess sprt <openings|-> <new> <base> [elo0,elo1] [seconds+inc] [threads] [maxGames]".
+    // Games are played in pairs (same opening, colours swapped) and each finished pair
+    // is one pentanomial sample (pair score 0, 1/4, ... 1 for the new engine), which
+    // cancels most of the opening bias. After every pair the log-likelihood ratio of
+    // H1 (elo = elo1) against H0 (elo = elo0) is updated with the normal approximation
+    //   LLR = N (s1 - s0) (2m - s0 - s1) / (2v)
+    // (m, v: mean and variance of the pair scores, s: expected score at an Elo) and the
+    // test stops as soon as it leaves [ln(beta/(1-alpha)), ln((1-beta)/alpha)]. The LLR
+    // adds a quarter pair to every pentanomial bucket, so deterministic engines that
+    // repeat the same pair score still give a finite, decisive ratio instead of 0/0.
+    static class SprtTester {
+        private final double elo0, elo1, lower, upper;
+        private static final double PRIOR_PAIRS = 0.25; // per bucket, LLR only
+        private final long[] pairCounts = new long[5]; // pairs scoring 0, 1/4, 1/2, 3/4, 1
+        private final long[] gameCounts = new long[3]; // new engine wins, draws, losses
+
+        SprtTester(double elo0, double elo1, double alpha, double beta) {
+            if (elo1 <= elo0) throw new IllegalArgumentException("elo1 must be above elo0");
+            this.elo0 = elo0;
+            this.elo1 = elo1;
+            this.lower = Math.log(beta / (1 - alpha));
+            this.upper = Math.log((1 - beta) / alpha);
+        }
+
+        // Record one finished pair; each score is +1 / 0 / -1 for the new engine
+        void addPair(int first, int second) {
+            pairCounts[first + second + 2]++;
+            gameCounts[1 - first]++;
+            gameCounts[1 - second]++;
+        }
+
+        long pairs() { return Arrays.stream(pairCounts).sum(); }
+
+        private double mean(double prior) {
+            double n = pairs() + 5 * prior, sum = 0;
+            for (int i = 0; i < 5; i++) sum += (pairCounts[i] + prior) * i / 4.0;
+            return n == 0 ? 0.5 : sum / n;
+        }
+
+        private double variance(double prior) {
+            double n = pairs() + 5 * prior, m = mean(prior), sum = 0;
+            for (int i = 0; i < 5; i++) sum += (pairCounts[i] + prior) * (i / 4.0 - m) * (i / 4.0 - m);
+            return n == 0 ? 0 : sum / n;
+        }
+
+        private static double expectedScore(double elo) {
+            return 1 / (1 + Math.pow(10, -elo / 400));
+        }
+
+        private static double elo(double score) {
+            score = Math.min(Math.max(score, 1e-6), 1 - 1e-6);
+            return -400 * Math.log10(1 / score - 1);
+        }
+
+        double llr() {
+            if (pairs() == 0) return 0;
+            double s0 = expectedScore(elo0), s1 = expectedScore(elo1);
+            return pairs() * (s1 - s0) * (2 * mean(PRIOR_PAIRS) - s0 - s1) / (2 * variance(PRIOR_PAIRS));
+        }
+
+        // +1 accept H1, -1 accept H0, 0 keep going
+        int decision() {
+            double llr = llr();
+            return llr >= upper ? 1 : llr <= lower ? -1 : 0;
+        }
+
+        // Elo of the new engine with a 95% interval from the pair-score standard error
+        String status() {
+            long n = pairs();
+            double m = mean(0);
+            double se = n > 0 ? Math.sqrt(variance(0) / n) : 0;
+            return String.format("games %d (+%d =%d -%d)  elo %+.1f [%+.1f, %+.1f]  LLR %.2f [%.2f, %.2f]",
+                2 * n, gameCounts[0], gameCounts[1], gameCounts[2], elo(m),
+                elo(m - 1.96 * se), elo(m + 1.96 * se), llr(), lower, upper);
+        }
+
+        static void run(java.nio.file.Path openingsFile, String newSpec, String baseSpec, double elo0, double elo1,
+                        MatchRunner.TimeControl tc, int threads, int maxGames) throws java.io.IOException {
+            List<String> openings = openingsFile.toString().equals("-")
+                ? Collections.singletonList(null) : MatchRunner.readOpenings(openingsFile);
+            MatchRunner.EngineConfig newEngine = MatchRunner.EngineConfig.parse("new", newSpec);
+            MatchRunner.EngineConfig baseEngine = MatchRunner.EngineConfig.parse("base", baseSpec);
+            SprtTester sprt = new SprtTester(elo0, elo1, 0.05, 0.05);
+            System.out.printf("SPRT %s vs %s, H0 elo %.1f, H1 elo %.1f, alpha = beta = 0.05, tc %s%n",
+                newEngine.name, baseEngine.name, elo0, elo1, tc);
+            long start = System.nanoTime();
+            Map<Integer, Integer> pending = new HashMap<>(); // pair -> score of its first finished game
+            new MatchRunner(newEngine, baseEngine, tc, threads).run(openings, maxGames - maxGames % 2, r -> {
+                Integer other = pending.remove(r.index / 2);
+                if (other == null) {
+                    pending.put(r.index / 2, r.scoreA);
+                    return true;
+                }
+                sprt.addPair(other, r.scoreA);
+                System.out.printf("%s  %.0fs%n", sprt.status(), (System.nanoTime() - start) / 1e9);
+                return sprt.decision() == 0;
+            });
+            int d = sprt.decision();
+            System.out.println(d > 0 ? "H1 accepted: new is stronger"
+                : d < 0 ? "H0 accepted: no improvement of elo1"
+                : "inconclusive after " + 2 * sprt.pairs() + " games");
+        }
+    }
+
+    // Headless multi-game server: "java Chess server [port]".
+    //
+    // One thread owns a Selector, every connection and every Game, so games need no
+    // locking. Commands are ASCII lines; replies are appended to the connection's
+    // output buffer while a batch of ready keys is processed and flushed once per
+    // select round with non-blocking writes (OP_WRITE only while a buffer cannot drain).
+    //
+    //   new [secs+inc]    -> game <id>                 (caller joins; optional clock)
+    //   join <id>         -> joined <id> <fen>        (takes the black seat)
+    //   watch <id>        -> watching <id> <fen>       (then the spectator feed below)
+    //   move <id> <uci>   -> move <id> <uci> <status>  (to every player of the game)
+    //                        illegal <id> <uci>        (to the sender only)
+    //                        error not your move <id>  (the side to move is seated elsewhere)
+    //   fen <id>          -> fen <id> <fen>
+    //   close <id>        -> closed <id>               (players only)
+    //   quit
+    // status is one of: - check checkmate stalemate repetition fifty-move insufficient
+    //
+    // Spectators are fed by broadcast: each update is serialized once into a read-only
+    // buffer that every spectator's queue shares, and written with gathering writes.
+    //   update <id> <ply> <uci> <status> [<white ms> <black ms>]
+    //   flag <id> <white|black>                    (also sent to the players)
+    //   snapshot <id> <ply> <fen> [<white ms> <black ms>]
+    // A spectator whose queue reaches FEED_LIMIT is not sent the backlog: the queue is
+    // dropped and it gets one snapshot per watched game (the latest state) instead.
+    //
+    // The creator of a game holds both seats until someone joins; the joiner then plays
+    // black and each seat moves only its own side. Anyone else watches.
+    static class GameServer {
+        static final int DEFAULT_PORT = 7878;
+        private static final int READ_BUFFER = 8 << 10;
+        private static final int MAX_LINE = 256;
+        private static final int MAX_PENDING_OUTPUT = 1 << 20; // stop reading a client past this
+        private static final int MAX_OUTPUT = 4 << 20;         // drop a client past this
+        private static final int FEED_LIMIT = 64;              // queued broadcasts per spectator
+        private static final int LATENCY_SAMPLES = 1 << 16;
+        // kept small so a slow reader backs up into FEED_LIMIT, where it can be coalesced,
+        // rather than into megabytes of kernel buffer
+        private static final int SEND_BUFFER = 32 << 10;
+
+        private static final class Session {
+            final int id;
+            final Game game = new Game();
+            final List<Connection> players = new ArrayList<>(2);
+            Connection white, black; // seats; null once the holder has left
+            final List<Connection> spectators = new ArrayList<>();
+            WheelClock clock; // null for untimed games
+            int ply = 0;
+            boolean flagged = false;
+            Broadcast snapshot; // cached for the current ply, built on demand
+
+            Session(int id) { this.id = id; }
+        }
+
+        // One serialized update shared by every spectator that receives it
+        private static final class Broadcast {
+            final java.nio.ByteBuffer bytes; // read-only; each queue holds a duplicate
+            final long createdNanos;
+
+            Broadcast(String line) {
+                byte[] b = (line + "\n").getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+                this.bytes = java.nio.ByteBuffer.wrap(b).asReadOnlyBuffer();
+                this.createdNanos = System.nanoTime();
+            }
+        }
+
+        // A spectator's queue entry: a private cursor over shared bytes
+        private static final class Delivery {
+            final java.nio.ByteBuffer view;
+            final long createdNanos;
+
+            Delivery(Broadcast b) {
+                this.view = b.bytes.duplicate();
+                this.createdNanos = b.createdNanos;
+            }
+        }
+
+        private static final class Connection {
+            final java.nio.channels.SocketChannel channel;
+            final java.nio.channels.SelectionKey key;
+            final java.nio.ByteBuffer in = java.nio.ByteBuffer.allocate(READ_BUFFER);
+            java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(READ_BUFFER);
+            final Set<Integer> games = new HashSet<>();
+            final Set<Integer> watching = new HashSet<>();
+            final ArrayDeque<Delivery> feed = new ArrayDeque<>();
+            boolean stale = false; // feed overflowed: send snapshots instead
+            boolean closing = false;
+            boolean overflowed = false; // unread replies passed MAX_OUTPUT: drop without draining
+
+            Connection(java.nio.channels.SocketChannel channel, java.nio.channels.SelectionKey key) {
+                this.channel = channel;
+                this.key = key;
+            }
+
+            void send(String line) {
+                int need = line.length() + 1;
+                if (overflowed) return;
+                if (out.position() + need > MAX_OUTPUT) {
+                    overflowed = true;
+                    closing = true;
+                    return;
+                }
+                if (out.remaining() < need) {
+                    java.nio.ByteBuffer bigger = java.nio.ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + need));
+                    out.flip();
+                    bigger.put(out);
+                    out = bigger;
+                }
+                for (int i = 0; i < line.length(); i++) out.put((byte) line.charAt(i));
+                out.put((byte) '\n');
+            }
+        }
+
+        private final java.nio.channels.Selector selector;
+        private final java.nio.channels.ServerSocketChannel server;
+        private final Map<Integer, Session> sessions = new HashMap<>();
+        private final Set<Connection> dirty = new LinkedHashSet<>();
+        private final List<Connection> toClose = new ArrayList<>(); // closed after the flush pass
+        private final TimingWheel wheel = new TimingWheel(1);
+        private final ConcurrentLinkedQueue<Runnable> fromWheel = new ConcurrentLinkedQueue<>();
+        private int nextId = 1;
+        private long movesApplied = 0;
+        // fan-out statistics: enqueue-to-written latency samples (ring), counters
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private long latencyCount = 0;
+        private long broadcasts = 0, deliveries = 0, coalesced = 0;
+
+        GameServer(int port) throws java.io.IOException {
+            selector = java.nio.channels.Selector.open();
+            server = java.nio.channels.ServerSocketChannel.open();
+            server.bind(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, java.nio.channels.SelectionKey.OP_ACCEPT);
+        }
+
+        int getPort() throws java.io.IOException {
+            return ((java.net.InetSocketAddress) server.getLocalAddress()).getPort();
+        }
+
+        // Serve until the thread is interrupted
+        void serve() throws java.io.IOException {
+            long lastReport = System.nanoTime(), lastMoves = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(1000);
+                Runnable event;
+                while ((event = fromWheel.poll()) != null) event.run();
+                Iterator<java.nio.channels.SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    java.nio.channels.SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else {
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isReadable()) read(conn);
+                        if (key.isValid() && key.isWritable()) dirty.add(conn);
+                    }
+                }
+                flushAll();
+                long now = System.nanoTime();
+                if (now - lastReport >= 10_000_000_000L) {
+                    report((movesApplied - lastMoves) / ((now - lastReport) / 1e9));
+                    lastReport = now;
+                    lastMoves = movesApplied;
+                }
+            }
+            wheel.close();
+            selector.close();
+            server.close();
+        }
+
+        private void report(double movesPerSecond) {
+            System.out.printf("%d games, %.0f moves/s", sessions.size(), movesPerSecond);
+            int n = (int) Math.min(latencyCount, LATENCY_SAMPLES);
+            if (n > 0) {
+                long[] sorted = Arrays.copyOf(latencies, n);
+                Arrays.sort(sorted);
+                System.out.printf(", fan-out %,d updates -> %,d deliveries, %,d coalesced, latency us p50 %.0f p99 %.0f max %.0f",
+                    broadcasts, deliveries, coalesced, sorted[n / 2] / 1e3, sorted[Math.min(n - 1, n * 99 / 100)] / 1e3,
+                    sorted[n - 1] / 1e3);
+                latencyCount = 0;
+            }
+            System.out.println();
+        }
+
+        private void accept() throws java.io.IOException {
+            java.nio.channels.SocketChannel ch;
+            while ((ch = server.accept()) != null) {
+                ch.configureBlocking(false);
+                ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                ch.setOption(java.net.StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+                java.nio.channels.SelectionKey key = ch.register(selector, java.nio.channels.SelectionKey.OP_READ);
+                key.attach(new Connection(ch, key));
+            }
+        }
+
+        private void read(Connection conn) {
+            int n;
+            try {
+                n = conn.channel.read(conn.in);
+            } catch (java.io.IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                disconnect(conn);
+                return;
+            }
+            // handle every complete line, then compact the partial one to the front
+            java.nio.ByteBuffer in = conn.in;
+            byte[] buf = in.array();
+            int start = 0, end = in.position();
+            for (int i = 0; i < end && !conn.closing; i++) {
+                if (buf[i] == '\n') {
+                    int lineEnd = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+                    handle(conn, new String(buf, start, lineEnd - start, java.nio.charset.StandardCharsets.US_ASCII));
+                    start = i + 1;
+                }
+            }
+            if (conn.closing) {
+                dirty.add(conn);
+                return;
+            }
+            if (end - start > MAX_LINE) {
+                conn.send("error line too long");
+                conn.closing = true;
+            } else {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                in.position(end - start);
+            }
+            if (conn.out.position() > 0) dirty.add(conn);
+        }
+
+        private void handle(Connection conn, String line) {
+            String[] tok = line.trim().split(" +");
+            String cmd = tok[0];
+            if (cmd.isEmpty()) return;
+            if (cmd.equals("quit")) {
+                conn.closing = true;
+                dirty.add(conn);
+                return;
+            }
+            if (cmd.equals("new")) {
+                MatchRunner.TimeControl tc;
+                try {
+                    tc = tok.length > 1 ? MatchRunner.TimeControl.parse(tok[1]) : null;
+                } catch (IllegalArgumentException e) {
+                    conn.send("error " + e.getMessage());
+                    return;
+                }
+                int id = nextId++;
+                Session s = new Session(id);
+                if (tc != null) {
+                    s.clock = new WheelClock(new ChessTimer(tc.baseMs, tc.incrementMs), wheel,
+                        (clock, loser, late) -> {
+                            // runs on the wheel thread: hand over to the selector thread
+                            fromWheel.add(() -> flag(s, loser));
+                            selector.wakeup();
+                        });
+                }
+                sessions.put(id, s);
+                s.players.add(conn);
+                s.white = s.black = conn;
+                conn.games.add(id);
+                conn.send("game " + id);
+                return;
+            }
+            if (!(cmd.equals("join") || cmd.equals("watch") || cmd.equals("move") || cmd.equals("fen") || cmd.equals("close"))) {
+                conn.send("error unknown command " + cmd);
+                return;
+            }
+            int id;
+            try {
+                id = Integer.parseInt(tok.length > 1 ? tok[1] : "");
+            } catch (NumberFormatException e) {
+                conn.send("error usage: new [secs+inc] | join <id> | watch <id> | move <id> <uci> | fen <id> | close <id> | quit");
+                return;
+            }
+            Session s = sessions.get(id);
+            if (s == null) {
+                conn.send("error unknown game " + id);
+                return;
+            }
+            switch (cmd) {
+                case "join" -> {
+                    if (!s.players.contains(conn)) {
+                        if (s.black == null || s.black == s.white) s.black = conn;
+                        else if (s.white == null) s.white = conn;
+                        else {
+                            conn.send("error game " + id + " is full");
+                            return;
+                        }
+                        s.players.add(conn);
+                    }
+                    conn.games.add(id);
+                    conn.send("joined " + id + " " + s.game.toFen());
+                }
+                case "watch" -> {
+                    if (conn.watching.add(id)) s.spectators.add(conn);
+                    conn.send("watching " + id + " " + s.game.toFen());
+                }
+                case "move" -> {
+                    if (conn != (s.game.getTurn() == Color.WHITE ? s.white : s.black)) {
+                        conn.send("error not your move " + id);
+                        return;
+                    }
+                    String uci = tok.length > 2 ? tok[2] : "";
+                    Move m = null;
+                    if (uci.length() == 4 || uci.length() == 5) {
+                        try {
+                            m = s.game.parseMove(uci);
+                        } catch (IllegalArgumentException e) {
+                            m = null;
+                        }
+                    }
+                    if (s.flagged || m == null || !m.from.inBounds() || !m.to.inBounds() || !s.game.applyMoveIfLegal(m)) {
+                        conn.send("illegal " + id + " " + uci);
+                        return;
+                    }
+                    movesApplied++;
+                    s.ply++;
+                    s.snapshot = null;
+                    String status = status(s.game);
+                    if (s.clock != null) {
+                        if (status.equals("-") || status.equals("check")) {
+                            if (s.ply == 1) s.clock.start(s.game.getTurn()); // clock starts with the first move
+                            else s.clock.switchPlayer();
+                        } else {
+                            s.clock.stop();
+                        }
+                    }
+                    String update = "move " + id + " " + uci + " " + status;
+                    for (Connection p : s.players) {
+                        p.send(update);
+                        dirty.add(p);
+                    }
+                    broadcast(s, "update " + id + " " + s.ply + " " + uci + " " + status + clockSuffix(s));
+                }
+                case "fen" -> conn.send("fen " + id + " " + s.game.toFen());
+                default -> { // close
+                    if (!s.players.contains(conn)) {
+                        conn.send("error not your game " + id);
+                        return;
+                    }
+                    sessions.remove(id);
+                    if (s.clock != null) s.clock.stop();
+                    for (Connection p : s.players) {
+                        p.games.remove(id);
+                        p.send("closed " + id);
+                        dirty.add(p);
+                    }
+                    for (Connection w : s.spectators) {
+                        w.watching.remove(id);
+                        w.send("closed " + id);
+                        dirty.add(w);
+                    }
+                }
+            }
+        }
+
+        // Wheel callback, replayed on the selector thread
+        private void flag(Session s, Color loser) {
+            if (sessions.get(s.id) != s || s.flagged) return;
+            s.flagged = true;
+            String line = "flag " + s.id + " " + loser.name().toLowerCase();
+            for (Connection p : s.players) {
+                p.send(line);
+                dirty.add(p);
+            }
+            broadcast(s, line);
+        }
+
+        private static String clockSuffix(Session s) {
+            if (s.clock == null) return "";
+            ChessTimer t = s.clock.getTimer();
+            synchronized (s.clock) {
+                return " " + t.getWhiteTime() + " " + t.getBlackTime();
+            }
+        }
+
+        // Serialize once, queue a shared view for every spectator
+        private void broadcast(Session s, String line) {
+            if (s.spectators.isEmpty()) return;
+            Broadcast b = new Broadcast(line);
+            broadcasts++;
+            for (Connection w : s.spectators) {
+                if (w.stale) continue; // gets a snapshot at flush time anyway
+                if (w.feed.size() >= FEED_LIMIT) {
+                    // keep a half-written head so the line on the wire stays whole
+                    Delivery head = w.feed.peek();
+                    w.feed.clear();
+                    if (head.view.position() > 0) w.feed.add(head);
+                    w.stale = true;
+                    coalesced++;
+                } else {
+                    w.feed.add(new Delivery(b));
+                }
+                dirty.add(w);
+            }
+        }
+
+        // Latest state of a game, shared by every stale spectator in this round
+        private Broadcast snapshot(Session s) {
+            if (s.snapshot == null) {
+                s.snapshot = new Broadcast("snapshot " + s.id + " " + s.ply + " " + s.game.toFen() + clockSuffix(s));
+            }
+            return s.snapshot;
+        }
+
+        // Outcome of the position after a move; one legal-move generation
+        private static String status(Game g) {
+            boolean check = g.isInCheck(g.getTurn());
+            if (g.getLegalMovesForTurn().isEmpty()) return check ? "checkmate" : "stalemate";
+            if (g.isThreefoldRepetition()) return "repetition";
+            if (g.isFiftyMoveRule()) return "fifty-move";
+            if (g.isInsufficientMaterial()) return "insufficient";
+            return check ? "check" : "-";
+        }
+
+        private void flushAll() {
+            java.nio.ByteBuffer[] gather = new java.nio.ByteBuffer[FEED_LIMIT + 1];
+            for (Connection conn : dirty) {
+                if (!conn.key.isValid()) continue;
+                if (conn.overflowed) {
+                    // it is not reading, so the backlog would never drain
+                    disconnectLater(conn);
+                    continue;
+                }
+                if (conn.stale) {
+                    // replace the dropped backlog with the latest state of every watched game
+                    conn.stale = false;
+                    for (int id : conn.watching) {
+                        Session s = sessions.get(id);
+                        if (s != null) conn.feed.add(new Delivery(snapshot(s)));
+                    }
+                }
+                java.nio.ByteBuffer out = conn.out;
+                out.flip();
+                boolean pending;
+                try {
+                    // a feed head cut off mid-line goes out before any direct reply, and
+                    // a direct reply cut off mid-line before the next feed entry
+                    int n = 0;
+                    Delivery head = conn.feed.peek();
+                    boolean headStarted = head != null && head.view.position() > 0;
+                    if (headStarted) gather[n++] = head.view;
+                    gather[n++] = out;
+                    for (Delivery d : conn.feed) {
+                        if (n == gather.length) break;
+                        if (d != head || !headStarted) gather[n++] = d.view;
+                    }
+                    conn.channel.write(gather, 0, n);
+                    long now = System.nanoTime();
+                    while (!conn.feed.isEmpty() && !conn.feed.peek().view.hasRemaining()) {
+                        latencies[(int) (latencyCount++ & (LATENCY_SAMPLES - 1))] = now - conn.feed.poll().createdNanos;
+                        deliveries++;
+                    }
+                    pending = out.hasRemaining() || !conn.feed.isEmpty();
+                } catch (java.io.IOException e) {
+                    out.clear();
+                    disconnectLater(conn);
+                    continue;
+                } finally {
+                    Arrays.fill(gather, null);
+                }
+                out.compact();
+                if (!pending && conn.closing) {
+                    disconnectLater(conn);
+                    continue;
+                }
+                int ops = pending ? java.nio.channels.SelectionKey.OP_WRITE : 0;
+                // backpressure: a client that does not read its replies stops being read
+                if (out.position() < MAX_PENDING_OUTPUT && !conn.closing) ops |= java.nio.channels.SelectionKey.OP_READ;
+                conn.key.interestOps(ops);
+            }
+            dirty.clear();
+            for (Connection conn : toClose) disconnect(conn);
+            toClose.clear();
+        }
+
+        private void disconnectLater(Connection conn) { toClose.add(conn); }
+
+        private void disconnect(Connection conn) {
+            conn.key.cancel();
+            try {
+                conn.channel.close();
+            } catch (java.io.IOException ignored) {
+                // already gone
+            }
+            for (int id : conn.games) {
+                Session s = sessions.get(id);
+                if (s == null) continue;
+                s.players.remove(conn);
+                if (s.white == conn) s.white = null;
+                if (s.black == conn) s.black = null;
+                if (s.players.isEmpty()) {
+                    sessions.remove(id);
+                    if (s.clock != null) s.clock.stop();
+                    for (Connection w : s.spectators) {
+                        w.watching.remove(id);
+                        w.send("closed " + id);
+                        dirty.add(w);
+                    }
+                }
+            }
+            for (int id : conn.watching) {
+                Session s = sessions.get(id);
+                if (s != null) s.spectators.remove(conn);
+            }
+            conn.games.clear();
+            conn.watching.clear();
+            conn.feed.clear();
+            dirty.remove(conn);
+        }
+    }
+
+    // Load generator for GameServer: "java Chess loadtest [port] [connections] [games] [seconds] [spectators]".
+    // Opens `connections` sockets with `games` games each, all driven from one Selector
+    // thread. Every game replays a pre-generated random legal game, one move in flight
+    // at a time, and starts a new game when its script ends; the time from writing a
+    // move to reading its update is recorded, and throughput and percentiles reported.
+    // Each spectator connection watches every game; half of them only read every
+    // SLOW_READ_MS, which makes the server coalesce their feeds into snapshots.
+    static class LoadTestClient {
+        private static final int SCRIPTS = 32;
+        private static final int SCRIPT_PLIES = 120;
+        private static final long SLOW_READ_MS = 500;
+
+        private static final class ClientGame {
+            int id = -1;
+            String[] script;
+            int ply;
+            long sentAt;
+        }
+
+        private static final class Client {
+            final java.nio.channels.SocketChannel channel;
+            final java.nio.ByteBuffer in = java.nio.ByteBuffer.allocate(64 << 10);
+            final java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(64 << 10);
+            final Map<Integer, ClientGame> games = new HashMap<>();
+            final ArrayDeque<ClientGame> awaitingId = new ArrayDeque<>();
+            boolean spectator;
+            long updates, snapshots; // spectators only
+
+            Client(java.nio.channels.SocketChannel channel) { this.channel = channel; }
+
+            void send(String line) {
+                for (int i = 0; i < line.length(); i++) out.put((byte) line.charAt(i));
+                out.put((byte) '\n');
+            }
+        }
+
+        // Random legal games, as UCI strings, for the clients to replay
+        static String[][] scripts(long seed) {
+            Random rnd = new Random(seed);
+            String[][] scripts = new String[SCRIPTS][];
+            for (int s = 0; s < SCRIPTS; s++) {
+                Game g = new Game();
+                List<String> moves = new ArrayList<>();
+                while (moves.size() < SCRIPT_PLIES && g.getDrawReason() == null) {
+                    List<Move> legal = g.getLegalMovesForTurn();
+                    if (legal.isEmpty()) break;
+                    Move m = legal.get(rnd.nextInt(legal.size()));
+                    moves.add(m.toUci());
+                    g.makeMove(m);
+                }
+                scripts[s] = moves.toArray(new String[0]);
+            }
+            return scripts;
+        }
+
+        private static Client connect(int port, int receiveBuffer) throws java.io.IOException {
+            java.nio.channels.SocketChannel ch = java.nio.channels.SocketChannel.open();
+            if (receiveBuffer > 0) ch.setOption(java.net.StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+            ch.connect(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), port));
+            ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            ch.configureBlocking(false);
+            return new Client(ch);
+        }
+
+        static void run(int port, int connections, int gamesPerConnection, int seconds, int spectators)
+                throws java.io.IOException {
+            String[][] scripts = scripts(42);
+            java.nio.channels.Selector selector = java.nio.channels.Selector.open();
+            List<Client> clients = new ArrayList<>();
+            List<Client> fastWatchers = new ArrayList<>(), slowWatchers = new ArrayList<>();
+            for (int i = 0; i < spectators; i++) {
+                // a small receive window lets a slow reader back up into the server quickly
+                Client w = connect(port, i % 2 == 0 ? 0 : 4096);
+                w.spectator = true;
+                // slow spectators are not registered for reads; the loop drains them on a timer
+                if (i % 2 == 0) {
+                    w.channel.register(selector, java.nio.channels.SelectionKey.OP_READ, w);
+                    fastWatchers.add(w);
+                } else {
+                    slowWatchers.add(w);
+                }
+            }
+            Random rnd = new Random(7);
+            for (int i = 0; i < connections; i++) {
+                Client c = connect(port, 0);
+                c.channel.register(selector, java.nio.channels.SelectionKey.OP_READ, c);
+                for (int g = 0; g < gamesPerConnection; g++) {
+                    ClientGame game = new ClientGame();
+                    game.script = scripts[rnd.nextInt(SCRIPTS)];
+                    c.awaitingId.add(game);
+                    c.send("new");
+                }
+                clients.add(c);
+            }
+
+            long[] latencies = new long[1 << 16];
+            int latencyCount = 0;
+            long moves = 0, illegal = 0;
+            long start = System.nanoTime();
+            long end = start + seconds * 1_000_000_000L;
+            long nextSlowRead = start;
+            for (Client c : clients) flush(c);
+            while (System.nanoTime() < end) {
+                selector.select(10);
+                if (System.nanoTime() >= nextSlowRead) {
+                    for (Client w : slowWatchers) readFeed(w);
+                    nextSlowRead = System.nanoTime() + SLOW_READ_MS * 1_000_000L;
+                }
+                Iterator<java.nio.channels.SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    java.nio.channels.SelectionKey key = it.next();
+                    it.remove();
+                    Client c = (Client) key.attachment();
+                    if (c.spectator) {
+                        readFeed(c);
+                        continue;
+                    }
+                    if (c.channel.read(c.in) < 0) throw new java.io.EOFException("server closed the connection");
+                    byte[] buf = c.in.array();
+                    int lineStart = 0, limit = c.in.position();
+                    for (int i = 0; i < limit; i++) {
+                        if (buf[i] != '\n') continue;
+                        String[] tok = new String(buf, lineStart, i - lineStart,
+                            java.nio.charset.StandardCharsets.US_ASCII).split(" ");
+                        lineStart = i + 1;
+                        long now = System.nanoTime();
+                        ClientGame game;
+                        if (tok[0].equals("game")) {
+                            game = c.awaitingId.poll();
+                            game.id = Integer.parseInt(tok[1]);
+                            c.games.put(game.id, game);
+                            for (Client w : fastWatchers) send(w, "watch " + game.id);
+                            for (Client w : slowWatchers) send(w, "watch " + game.id);
+                        } else if (tok[0].equals("move") || tok[0].equals("illegal")) {
+                            game = c.games.get(Integer.parseInt(tok[1]));
+                            if (latencyCount == latencies.length) latencies = Arrays.copyOf(latencies, latencyCount * 2);
+                            latencies[latencyCount++] = now - game.sentAt;
+                            if (tok[0].equals("move")) moves++; else illegal++;
+                            game.ply++;
+                        } else if (tok[0].equals("closed")) {
+                            continue;
+                        } else {
+                            throw new IllegalStateException("unexpected reply: " + String.join(" ", tok));
+                        }
+                        if (game.ply < game.script.length) {
+                            game.sentAt = System.nanoTime();
+                            c.send("move " + game.id + " " + game.script[game.ply]);
+                        } else {
+                            // script finished: drop the game and start another
+                            c.games.remove(game.id);
+                            c.send("close " + game.id);
+                            ClientGame next = new ClientGame();
+                            next.script = scripts[rnd.nextInt(SCRIPTS)];
+                            c.awaitingId.add(next);
+                            c.send("new");
+                        }
+                    }
+                    System.arraycopy(buf, lineStart, buf, 0, limit - lineStart);
+                    c.in.position(limit - lineStart);
+                    flush(c);
+                }
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            for (Client c : clients) c.channel.close();
+            for (Client w : fastWatchers) w.channel.close();
+            for (Client w : slowWatchers) w.channel.close();
+            selector.close();
+
+            Arrays.sort(latencies, 0, latencyCount);
+            System.out.printf("%d connections x %d games: %,d moves (%d illegal) in %.1f s = %,.0f moves/s%n",
+                connections, gamesPerConnection, moves, illegal, elapsed, moves / elapsed);
+            if (latencyCount > 0) {
+                System.out.printf("move latency us: p50 %.0f  p90 %.0f  p99 %.0f  max %.0f%n",
+                    percentile(latencies, latencyCount, 0.50) / 1e3, percentile(latencies, latencyCount, 0.90) / 1e3,
+                    percentile(latencies, latencyCount, 0.99) / 1e3, latencies[latencyCount - 1] / 1e3);
+            }
+            if (spectators > 0) {
+                System.out.printf("spectators: fast %s, slow %s (updates/snapshots received)%n",
+                    feedTotals(fastWatchers), feedTotals(slowWatchers));
+            }
+        }
+
+        private static String feedTotals(List<Client> watchers) {
+            long updates = 0, snapshots = 0;
+            for (Client w : watchers) {
+                updates += w.updates;
+                snapshots += w.snapshots;
+            }
+            return String.format("%,d/%,d", updates, snapshots);
+        }
+
+        // Count whatever a spectator has been sent so far
+        private static void readFeed(Client w) throws java.io.IOException {
+            while (true) {
+                int n = w.channel.read(w.in);
+                if (n < 0) throw new java.io.EOFException("server closed a spectator");
+                byte[] buf = w.in.array();
+                int lineStart = 0, limit = w.in.position();
+                for (int i = 0; i < limit; i++) {
+                    if (buf[i] != '\n') continue;
+                    if (buf[lineStart] == 'u') w.updates++;
+                    else if (buf[lineStart] == 's') w.snapshots++;
+                    lineStart = i + 1;
+                }
+                System.arraycopy(buf, lineStart, buf, 0, limit - lineStart);
+                w.in.position(limit - lineStart);
+                if (n == 0) return;
+            }
+        }
+
+        private static void send(Client c, String line) throws java.io.IOException {
+            c.send(line);
+            flush(c);
+        }
+
+        private static long percentile(long[] sorted, int n, double p) {
+            return sorted[Math.min(n - 1, (int) (p * n))];
+        }
+
+        // Blocking-style flush on a non-blocking channel; replies are tiny so this rarely loops
+        private static void flush(Client c) throws java.io.IOException {
+            c.out.flip();
+            while (c.out.hasRemaining()) c.channel.write(c.out);
+            c.out.clear();
+        }
+    }
+
+    // Registry for many concurrently hosted games. Game is not thread-safe, so every
+    // game gets a mailbox that a shared pool drains with at most one worker at a time:
+    // mutations of one game are serialized without any lock, while different games
+    // run in parallel on all cores. After each mutation the writer publishes an
+    // immutable Snapshot through a volatile field, so readers never touch the Game.
+    // Ids are spread over a power-of-two number of stripes, each a HashMap with its
+    // own monitor that is held only for the lookup itself.
+    static final class GameRegistry implements AutoCloseable {
+        private static final int DRAIN_BATCH = 64; // tasks per turn before a busy game yields its worker
+
+        // Immutable view of one game, published after every mutation
+        static final class Snapshot {
+            final int id;
+            final long version;  // mutations applied so far
+            final String fen;
+            final Color turn;
+            final String lastMove; // UCI, or null at the start
+
+            Snapshot(int id, long version, Game game) {
+                this.id = id;
+                this.version = version;
+                this.fen = game.toFen();
+                this.turn = game.getTurn();
+                Move last = game.getLastMoveFromUndo();
+                this.lastMove = last == null ? null : last.toUci();
+            }
+        }
+
+        private static final class Entry {
+            final int id;
+            final Game game;
+            final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+            final java.util.concurrent.atomic.AtomicInteger pending = new java.util.concurrent.atomic.AtomicInteger();
+            long version = 0; // writer-only
+            volatile Snapshot snapshot;
+
+            Entry(int id, Game game) {
+                this.id = id;
+                this.game = game;
+                this.snapshot = new Snapshot(id, 0, game);
+            }
+        }
+
+        private final HashMap<Integer, Entry>[] stripes;
+        private final int mask;
+        private final Executor pool;
+        private final java.util.concurrent.atomic.AtomicInteger nextId = new java.util.concurrent.atomic.AtomicInteger(1);
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        GameRegistry(int stripes, Executor pool) {
+            int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+            this.stripes = new HashMap[n];
+            for (int i = 0; i < n; i++) this.stripes[i] = new HashMap<>();
+            this.mask = n - 1;
+            this.pool = pool;
+        }
+
+        private HashMap<Integer, Entry> stripe(int id) {
+            int h = id * 0x9E3779B9; // spread sequential ids
+            return stripes[(h ^ (h >>> 16)) & mask];
+        }
+
+        private Entry entry(int id) {
+            HashMap<Integer, Entry> stripe = stripe(id);
+            synchronized (stripe) {
+                return stripe.get(id);
+            }
+        }
+
+        // Register a new game at the starting position and return its id
+        int create() { return add(new Game()); }
+
+        int add(Game game) {
+            int id = nextId.getAndIncrement();
+            HashMap<Integer, Entry> stripe = stripe(id);
+            Entry e = new Entry(id, game);
+            synchronized (stripe) {
+                stripe.put(id, e);
+            }
+            return id;
+        }
+
+        boolean remove(int id) {
+            HashMap<Integer, Entry> stripe = stripe(id);
+            synchronized (stripe) {
+                return stripe.remove(id) != null;
+            }
+        }
+
+        int size() {
+            int n = 0;
+            for (HashMap<Integer, Entry> stripe : stripes) {
+                synchronized (stripe) {
+                    n += stripe.size();
+                }
+            }
+            return n;
+        }
+
+        // Latest published state, or null for an unknown id; never blocks on the writer
+        Snapshot snapshot(int id) {
+            Entry e = entry(id);
+            return e == null ? null : e.snapshot;
+        }
+
+        // Run action against the game on its single writer; completes with the result
+        <T> CompletableFuture<T> submit(int id, java.util.function.Function<Game, T> action) {
+            Entry e = entry(id);
+            CompletableFuture<T> result = new CompletableFuture<>();
+            if (e == null) {
+                result.completeExceptionally(new IllegalArgumentException("unknown game " + id));
+                return result;
+            }
+            e.mailbox.add(() -> {
+                try {
+                    T value = action.apply(e.game);
+                    e.snapshot = new Snapshot(e.id, ++e.version, e.game);
+                    result.complete(value);
+                } catch (Throwable ex) {
+                    // nothing may escape: drain has to reach the decrement or the mailbox wedges
+                    result.completeExceptionally(ex);
+                }
+            });
+            // the submitter that takes pending from 0 schedules the drain
+            if (e.pending.getAndIncrement() == 0) pool.execute(() -> drain(e));
+            return result;
+        }
+
+        // Validate and play a UCI move; completes with false if it is illegal
+        CompletableFuture<Boolean> submitMove(int id, String uci) {
+            return submit(id, g -> {
+                Move m;
+                try {
+                    m = g.parseMove(uci);
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+                return m.from.inBounds() && m.to.inBounds() && g.applyMoveIfLegal(m);
+            });
+        }
+
+        private void drain(Entry e) {
+            for (int n = 0; n < DRAIN_BATCH; n++) {
+                e.mailbox.poll().run();
+                if (e.pending.decrementAndGet() == 0) return;
+            }
+            pool.execute(() -> drain(e)); // still busy: requeue so other games get the worker
+        }
+
+        @Override
+        public void close() {
+            for (HashMap<Integer, Entry> stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+        }
+    }
+
+    // Hierarchical hashed timing wheel: one thread keeps any number of timeouts.
+    //
+    // LEVELS wheels of SLOTS buckets each; level 0 buckets are one tick wide, and each
+    // level up is SLOTS times coarser (1 ms ticks reach 64^4 ms, about 4.6 hours;
+    // later deadlines wait in the top level and are re-placed when it comes round).
+    // Whenever a level's lower ticks roll over, its current bucket is cascaded into the
+    // finer levels, so every timeout fires from a level 0 bucket within a tick of its
+    // deadline. Scheduling and cancelling from other threads only enqueue the request;
+    // the wheel thread owns the buckets, which are doubly linked for O(1) unlinking.
+    // Tasks run on the wheel thread and must be short.
+    static final class TimingWheel implements AutoCloseable {
+        private static final int LEVELS = 4;
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+
+        static final class Timeout {
+            private static final int PENDING = 0, CANCELLED = 1, FIRED = 2;
+
+            final long deadlineNanos;
+            private final long deadlineTick;
+            private final Runnable task;
+            private final java.util.concurrent.atomic.AtomicInteger state = new java.util.concurrent.atomic.AtomicInteger(PENDING);
+            private Timeout prev, next; // bucket links, wheel thread only
+            private Timeout[] bucketHeads;
+            private int bucket;
+
+            private Timeout(long deadlineNanos, long deadlineTick, Runnable task) {
+                this.deadlineNanos = deadlineNanos;
+                this.deadlineTick = deadlineTick;
+                this.task = task;
+            }
+
+            // True if this call stopped the task from running
+            boolean cancel() { return state.compareAndSet(PENDING, CANCELLED); }
+
+            boolean isCancelled() { return state.get() == CANCELLED; }
+        }
+
+        private final long tickNanos;
+        private final long startNanos = System.nanoTime();
+        private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+        private final ConcurrentLinkedQueue<Timeout> changes = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+        private long currentTick = 0; // last tick processed, wheel thread only
+        private final LongAdder fired = new LongAdder();
+
+        TimingWheel(long tickMillis) {
+            this.tickNanos = tickMillis * 1_000_000L;
+            thread = new Thread(this::loop, "timing-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread getThread() { return thread; }
+        long getFired() { return fired.sum(); }
+
+        // Run task on the wheel thread once delayNanos have passed
+        Timeout schedule(long delayNanos, Runnable task) {
+            long deadline = System.nanoTime() + Math.max(0, delayNanos);
+            // round up so a timeout never fires before its deadline
+            long tick = (deadline - startNanos + tickNanos - 1) / tickNanos;
+            Timeout t = new Timeout(deadline, tick, task);
+            changes.add(t);
+            return t;
+        }
+
+        // Cancel and drop t from its bucket now rather than at its deadline
+        void cancel(Timeout t) {
+            if (t != null && t.cancel()) changes.add(t);
+        }
+
+        private void loop() {
+            while (running) {
+                applyChanges();
+                long target = (System.nanoTime() - startNanos) / tickNanos;
+                while (currentTick < target) {
+                    currentTick++;
+                    cascade();
+                    expire(wheels[0], (int) (currentTick & (SLOTS - 1)));
+                }
+                long nextTick = startNanos + (currentTick + 1) * tickNanos;
+                long sleep = nextTick - System.nanoTime();
+                if (sleep > 0) java.util.concurrent.locks.LockSupport.parkNanos(this, sleep);
+            }
+        }
+
+        private void applyChanges() {
+            Timeout t;
+            while ((t = changes.poll()) != null) {
+                if (t.bucketHeads != null) {
+                    if (t.isCancelled()) unlink(t);
+                } else if (!t.isCancelled()) {
+                    place(t);
+                }
+            }
+        }
+
+        private void place(Timeout t) {
+            long delta = t.deadlineTick - currentTick;
+            if (delta <= 0) {
+                run(t);
+                return;
+            }
+            int level = 0;
+            while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) level++;
+            long slotTick = Math.min(t.deadlineTick, currentTick + (1L << (SLOT_BITS * LEVELS)) - 1);
+            link(t, wheels[level], (int) ((slotTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+        }
+
+        // Move the current bucket of every level whose lower ticks just wrapped down a level
+        private void cascade() {
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) break;
+                int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                Timeout t = wheels[level][slot];
+                wheels[level][slot] = null;
+                while (t != null) {
+                    Timeout next = t.next;
+                    t.prev = t.next = null;
+                    t.bucketHeads = null;
+                    if (!t.isCancelled()) place(t);
+                    t = next;
+                }
+            }
+        }
+
+        private void expire(Timeout[] heads, int slot) {
+            Timeout t = heads[slot];
+            heads[slot] = null;
+            while (t != null) {
+                Timeout next = t.next;
+                t.prev = t.next = null;
+                t.bucketHeads = null;
+                if (t.deadlineTick <= currentTick) run(t);
+                else place(t); // only possible for deadlines beyond the top level's reach
+                t = next;
+            }
+        }
+
+        private void run(Timeout t) {
+            if (!t.state.compareAndSet(Timeout.PENDING, Timeout.FIRED)) return;
+            fired.increment();
+            try {
+                t.task.run();
+            } catch (RuntimeException e) {
+                System.err.println("timing-wheel: task failed: " + e);
+            }
+        }
+
+        private static void link(Timeout t, Timeout[] heads, int slot) {
+            t.bucketHeads = heads;
+            t.bucket = slot;
+            t.next = heads[slot];
+            if (t.next != null) t.next.prev = t;
+            heads[slot] = t;
+        }
+
+        private static void unlink(Timeout t) {
+            if (t.prev != null) t.prev.next = t.next;
+            else t.bucketHeads[t.bucket] = t.next;
+            if (t.next != null) t.next.prev = t.prev;
+            t.prev = t.next = null;
+            t.bucketHeads = null;
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            java.util.concurrent.locks.LockSupport.unpark(thread);
+        }
+    }
+
+    // A ChessTimer whose flag fall is scheduled on a shared TimingWheel instead of being
+    // polled: each start/switchPlayer (re)schedules one timeout for the side to move.
+    static final class WheelClock {
+        interface FlagListener {
+            // Called on the wheel thread; latenessNanos is how long after the true flag fall
+            void onFlag(WheelClock clock, Color loser, long latenessNanos);
+        }
+
+        private final ChessTimer timer;
+        private final TimingWheel wheel;
+        private final FlagListener listener;
+        private TimingWheel.Timeout flag;
+
+        WheelClock(ChessTimer timer, TimingWheel wheel, FlagListener listener) {
+            this.timer = timer;
+            this.wheel = wheel;
+            this.listener = listener;
+        }
+
+        ChessTimer getTimer() { return timer; }
+
+        synchronized void start(Color color) {
+            timer.start(color);
+            reschedule();
+        }
+
+        // Hand the move over (adding the increment) and move the flag deadline
+        synchronized void switchPlayer() {
+            timer.switchPlayer();
+            reschedule();
+        }
+
+        synchronized void stop() {
+            timer.stop();
+            wheel.cancel(flag);
+            flag = null;
+        }
+
+        private void reschedule() {
+            wheel.cancel(flag);
+            long left = timer.nanosUntilFlag();
+            long due = System.nanoTime() + left;
+            flag = timer.isRunning() ? wheel.schedule(left, () -> fire(due)) : null;
+        }
+
+        private void fire(long due) {
+            Color loser;
+            synchronized (this) {
+                if (!timer.isRunning()) return;
+                if (timer.nanosUntilFlag() > 0) { // a move raced the timeout
+                    reschedule();
+                    return;
+                }
+                loser = timer.getActiveColor();
+                timer.stop();
+                flag = null;
+            }
+            listener.onFlag(this, loser, System.nanoTime() - due);
+        }
+    }
+
+    // Write-ahead journal of a game session, so a crash loses nothing that was played.
+    //
+    // Every applied move (with the ChessTimer times when a clock is attached), undo,
+    // redo, jump and reset is appended as a checksummed frame. Appends only copy the frame
+    // into a memory buffer under a lock and return; a flusher thread writes whatever
+    // has accumulated and fsyncs it in one go (group commit), so a burst of moves costs
+    // one fsync and the game thread never waits for the disk. On startup recover()
+    // replays the frames through Game.applyMoveIfLegal, stopping at the first torn or
+    // corrupt frame, and resume() rewrites the file to hold just the recovered game
+    // before appending to it, so the journal never outgrows one game.
+    //
+    // File:  "CGJ1" | frame*
+    // Frame: length(u16, of type+payload) | type(u8) | payload | crc32(u32, of type+payload)
+    //   RESET  fen (UTF-8)
+    //   MOVE   uciLength(u8) uci whiteMs(i32) blackMs(i32) incrementMs(i32, -1 = no clock)
+    //   UNDO, REDO  (empty)
+    //   JUMP   ply(i32), see Game.goToPly
+    static final class GameJournal implements java.io.Closeable {
+        static final int MAGIC = 0x43474A31; // "CGJ1"
+        private static final byte RESET = 1, MOVE = 2, UNDO = 3, REDO = 4, JUMP = 5;
+        private static final int BUFFER = 64 << 10;
+
+        // Session state rebuilt by recover()
+        static final class Recovery {
+            String startFen = null;      // the last RESET, where the line starts; null if none was read
+            List<Move> line = List.of(); // recorded line from the reset position, including the redo tail
+            int ply = 0;                 // how much of the line has been played
+            long whiteMs = -1, blackMs = -1, incrementMs = -1; // last clock snapshot, -1 if none
+            int frames = 0;
+            long validBytes = 4;
+            boolean tornTail = false;
+        }
+
+        private final java.nio.channels.FileChannel channel;
+        private final Object lock = new Object();
+        private java.nio.ByteBuffer pending = java.nio.ByteBuffer.allocate(BUFFER);
+        private java.nio.ByteBuffer flushing = java.nio.ByteBuffer.allocate(BUFFER);
+        private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        private final Thread flusher;
+        private long appended = 0, durable = 0; // frame counts, guarded by lock
+        private long syncs = 0;
+        private boolean closed = false;
+        private java.io.IOException failure = null;
+        private volatile ChessTimer clock = null;
+
+        private GameJournal(java.nio.channels.FileChannel channel) {
+            this.channel = channel;
+            flusher = new Thread(this::flushLoop, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        // Open path for appending after `validBytes` (from recover()); a missing or empty
+        // file is started with a RESET to game's current position
+        static GameJournal open(java.nio.file.Path path, long validBytes, Game game) throws java.io.IOException {
+            java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(path,
+                java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.READ,
+                java.nio.file.StandardOpenOption.WRITE);
+            boolean fresh = ch.size() < 4 || validBytes < 4;
+            if (fresh) {
+                ch.truncate(0);
+                ch.write(java.nio.ByteBuffer.allocate(4).putInt(0, MAGIC));
+            } else {
+                ch.truncate(validBytes); // drop a torn tail before appending after it
+                ch.position(validBytes);
+            }
+            GameJournal journal = new GameJournal(ch);
+            if (fresh) journal.reset(game.toFen());
+            return journal;
+        }
+
+        // Continue a session that recover() replayed onto game: path is first replaced by a
+        // compact copy (RESET to the start of the line, its moves with the last clock
+        // snapshot on the final one, and a JUMP back to the recovered ply), written beside
+        // it and renamed over it, so a crash at any point leaves one whole journal
+        static GameJournal resume(java.nio.file.Path path, Recovery r, Game game) throws java.io.IOException {
+            if (r.validBytes < 4) return open(path, 0, game);
+            java.nio.file.Path copy = path.resolveSibling(path.getFileName() + ".tmp");
+            java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(copy,
+                java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING,
+                java.nio.file.StandardOpenOption.WRITE);
+            ch.write(java.nio.ByteBuffer.allocate(4).putInt(0, MAGIC));
+            try (GameJournal compact = new GameJournal(ch)) {
+                compact.reset(r.startFen != null ? r.startFen : new Game().toFen());
+                for (int i = 0; i < r.line.size(); i++) {
+                    boolean last = i == r.line.size() - 1;
+                    compact.move(r.line.get(i).toUci(), last ? r.whiteMs : -1, last ? r.blackMs : -1, last ? r.incrementMs : -1);
+                }
+                if (r.ply < r.line.size()) compact.jump(r.ply);
+            }
+            java.nio.file.Files.move(copy, path, java.nio.file.StandardCopyOption.ATOMIC_MOVE,
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            return open(path, java.nio.file.Files.size(path), game);
+        }
+
+        // Clock whose times are stored with every move (null for untimed play)
+        void setClock(ChessTimer clock) { this.clock = clock; }
+
+        long move(Move m) {
+            ChessTimer t = clock;
+            return t == null ? move(m.toUci(), -1, -1, -1) : move(m.toUci(), t.getWhiteTime(), t.getBlackTime(), t.getIncrement());
+        }
+
+        private long move(String uci, long whiteMs, long blackMs, long incrementMs) {
+            synchronized (lock) {
+                java.nio.ByteBuffer b = frameStart(MOVE, 1 + uci.length() + 12);
+                b.put((byte) uci.length());
+                for (int i = 0; i < uci.length(); i++) b.put((byte) uci.charAt(i));
+                b.putInt((int) whiteMs);
+                b.putInt((int) blackMs);
+                b.putInt((int) incrementMs);
+                return frameEnd();
+            }
+        }
+
+        long undo() { return marker(UNDO); }
+        long redo() { return marker(REDO); }
+
+        long jump(int ply) {
+            synchronized (lock) {
+                frameStart(JUMP, 4).putInt(ply);
+                return frameEnd();
+            }
+        }
+
+        long reset(String fen) {
+            byte[] utf = fen.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            synchronized (lock) {
+                frameStart(RESET, utf.length).put(utf);
+                return frameEnd();
+            }
+        }
+
+        private long marker(byte type) {
+            synchronized (lock) {
+                frameStart(type, 0);
+                return frameEnd();
+            }
+        }
+
+        private int frameAt;
+
+        private java.nio.ByteBuffer frameStart(byte type, int payload) {
+            if (pending.remaining() < payload + 7) {
+                java.nio.ByteBuffer bigger = java.nio.ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + payload + 7));
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+            }
+            frameAt = pending.position();
+            pending.putShort((short) (payload + 1)).put(type);
+            return pending;
+        }
+
+        private long frameEnd() {
+            crc.reset();
+            crc.update(pending.array(), frameAt + 2, pending.position() - frameAt - 2);
+            pending.putInt((int) crc.getValue());
+            lock.notifyAll();
+            return ++appended;
+        }
+
+        // Block until frame number seq (as returned by an append) is on disk
+        void awaitDurable(long seq) throws java.io.IOException {
+            synchronized (lock) {
+                while (durable < seq && failure == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new java.io.InterruptedIOException("journal sync interrupted");
+                    }
+                }
+                if (failure != null) throw failure;
+            }
+        }
+
+        long getSyncCount() {
+            synchronized (lock) {
+                return syncs;
+            }
+        }
+
+        private void flushLoop() {
+            while (true) {
+                long batchEnd;
+                synchronized (lock) {
+                    while (pending.position() == 0 && !closed) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (pending.position() == 0) return; // closed and drained
+                    java.nio.ByteBuffer swap = flushing;
+                    flushing = pending;
+                    pending = swap;
+                    batchEnd = appended;
+                }
+                try {
+                    flushing.flip();
+                    while (flushing.hasRemaining()) channel.write(flushing);
+                    channel.force(false);
+                    flushing.clear();
+                    synchronized (lock) {
+                        durable = batchEnd;
+                        syncs++;
+                        lock.notifyAll();
+                    }
+                } catch (java.io.IOException e) {
+                    synchronized (lock) {
+                        failure = e;
+                        lock.notifyAll();
+                    }
+                    System.err.println("journal: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws java.io.IOException {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+            if (failure != null) throw failure;
+        }
+
+        // Replay the journal at path onto game (which should be at the start position);
+        // an absent file recovers nothing
+        static Recovery recover(java.nio.file.Path path, Game game) throws java.io.IOException {
+            Recovery r = new Recovery();
+            if (!java.nio.file.Files.exists(path)) {
+                r.validBytes = 0;
+                return r;
+            }
+            byte[] data = java.nio.file.Files.readAllBytes(path);
+            java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(data);
+            if (data.length < 4 || b.getInt() != MAGIC) {
+                r.validBytes = 0; // not ours or empty: start over
+                return r;
+            }
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            while (b.remaining() >= 2) {
+                int at = b.position();
+                int length = b.getShort() & 0xFFFF;
+                if (length == 0 || b.remaining() < length + 4) break;
+                crc.reset();
+                crc.update(data, at + 2, length);
+                if ((int) crc.getValue() != b.getInt(at + 2 + length)) break;
+                byte type = b.get();
+                if (!apply(type, b, length - 1, game, r)) break;
+                b.position(at + 2 + length + 4);
+                r.frames++;
+                r.validBytes = b.position();
+            }
+            r.tornTail = r.validBytes < data.length;
+            r.line = game.getMoveLine();
+            r.ply = game.getPly();
+            return r;
+        }
+
+        private static boolean apply(byte type, java.nio.ByteBuffer b, int payload, Game game, Recovery r) {
+            switch (type) {
+                case RESET -> {
+                    byte[] utf = new byte[payload];
+                    b.get(utf);
+                    String fen = new String(utf, java.nio.charset.StandardCharsets.UTF_8);
+                    try {
+                        game.loadFen(fen);
+                    } catch (IllegalArgumentException e) {
+                        return false;
+                    }
+                    r.startFen = fen;
+                    r.whiteMs = r.blackMs = r.incrementMs = -1;
+                }
+                case MOVE -> {
+                    int n = b.get();
+                    StringBuilder uci = new StringBuilder(n);
+                    for (int i = 0; i < n; i++) uci.append((char) b.get());
+                    Move m;
+                    try {
+                        m = game.parseMove(uci.toString());
+                    } catch (IllegalArgumentException e) {
+                        return false;
+                    }
+                    if (!m.from.inBounds() || !m.to.inBounds() || !game.applyMoveIfLegal(m)) return false;
+                    r.whiteMs = b.getInt();
+                    r.blackMs = b.getInt();
+                    r.incrementMs = b.getInt();
+                }
+                case UNDO -> {
+                    if (!game.undo()) return false;
+                }
+                case REDO -> {
+                    if (!game.redo()) return false;
+                }
+                case JUMP -> {
+                    if (payload != 4 || !game.goToPly(b.getInt())) return false;
+                }
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Journal of the GUI session: -Dchess.journal=<file>, or "none" to turn it off
+        static java.nio.file.Path defaultPath() {
+            String p = System.getProperty("chess.journal");
+            if (p == null) return java.nio.file.Path.of(System.getProperty("user.home"), ".chess-session.journal");
+            return p.equalsIgnoreCase("none") ? null : java.nio.file.Path.of(p);
+        }
+    }
+
+    // Headless micro-benchmarks: "java Chess bench <name>"
+    static class Benchmarks {
+        // Opening, middlegame and endgame positions used by the benchmarks
+        static final String[] POSITIONS = {
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            "r1bqkbnr/pppp1ppp/2n5/4p3/4P3/5N2/PPPP1PPP/RNBQKB1R w KQkq - 2 3",
+            "rnbqkb1r/pp2pppp/3p1n2/8/3NP3/8/PPP2PPP/RNBQKB1R w KQkq - 1 5",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10",
+            "2r2rk1/pp1bqpp1/2n1pn1p/3p4/2PP4/P1N1PN2/1P2BPPP/2RQ1RK1 w - - 0 14",
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "8/8/4k3/8/2p5/8/B2P2K1/8 w - - 0 1",
+            "6k1/5ppp/8/8/8/8/5PPP/3R2K1 w - - 0 1",
+            "8/5k2/8/3Q4/8/8/8/4K3 b - - 3 60",
+        };
+
+        static void run(String name) {
+            switch (name) {
+                case "fen" -> fen();
+                case "registry" -> registry();
+                case "clocks" -> clocks();
+                case "history" -> history();
+                case "journal" -> journal();
+                case "status" -> status();
+                case "legality" -> legality();
+                case "attacks" -> attacks();
+                case "eval" -> eval();
+                case "kings" -> kings();
+                case "alloc" -> alloc();
+                default -> {
+                    System.err.println("unknown benchmark '" + name + "'; available: fen, registry, clocks, history, journal, status, legality, attacks, eval, kings, alloc");
+                    System.exit(2);
+                }
+            }
+        }
+
+        // Runs body repeatedly for about millis and returns operations per second
+        static double measure(long millis, Runnable body) {
+            long deadline = System.nanoTime() + millis * 1_000_000L;
+            long ops = 0;
+            long start = System.nanoTime();
+            long now;
+            do {
+                body.run();
+                ops++;
+            } while ((now = System.nanoTime()) < deadline);
+            return ops / ((now - start) / 1e9);
+        }
+
+        static void fen() {
+            int[] i = {0};
+            long[] sink = {0};
+            Runnable parse = () -> {
+                Game g = Game.fromFen(POSITIONS[i[0]++ % POSITIONS.length]);
+                sink[0] += g.getFullMoveNumber();
+            };
+            Game[] games = new Game[POSITIONS.length];
+            for (int k = 0; k < games.length; k++) games[k] = Game.fromFen(POSITIONS[k]);
+            Runnable write = () -> sink[0] += games[i[0]++ % games.length].toFen().length();
+
+            for (String fen : POSITIONS) {
+                String round = Game.fromFen(fen).toFen();
+                if (!round.equals(fen)) System.out.println("round trip mismatch: " + fen + " -> " + round);
+            }
+            measure(1000, parse); // warm-up
+            measure(1000, write);
+            System.out.printf("fromFen: %,.0f positions/s%n", measure(2000, parse));
+            System.out.printf("toFen:   %,.0f positions/s%n", measure(2000, write));
+            if (sink[0] == 42) System.out.println();
+        }
+
+        // GameRegistry throughput with 1, 2, 4 ... cores' worth of workers. Every game
+        // replays a random legal game, chaining its next move off the previous one, so
+        // games are independent and moves/s should grow with the worker count. One
+        // reader thread polls snapshots throughout to show readers are never blocked.
+        static void registry() {
+            String[][] scripts = LoadTestClient.scripts(42);
+            int cores = Runtime.getRuntime().availableProcessors();
+            double base = 0;
+            for (int workers = 1; ; workers = Math.min(workers * 2, cores)) {
+                ExecutorService pool = Executors.newFixedThreadPool(workers);
+                GameRegistry registry = new GameRegistry(64, pool);
+                int games = workers * 16;
+                LongAdder moves = new LongAdder();
+                AtomicLong reads = new AtomicLong();
+                java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+                int[] ids = new int[games];
+                for (int g = 0; g < games; g++) {
+                    ids[g] = registry.create();
+                    playScript(registry, ids[g], scripts[g % scripts.length], 0, moves, running);
+                }
+                Thread reader = new Thread(() -> {
+                    Random rnd = new Random(1);
+                    while (running.get()) {
+                        if (registry.snapshot(ids[rnd.nextInt(games)]) != null) reads.incrementAndGet();
+                    }
+                });
+                reader.start();
+                long start = System.nanoTime();
+                try {
+                    Thread.sleep(1000); // warm-up
+                    long warm = moves.sum();
+                    long t0 = System.nanoTime();
+                    Thread.sleep(3000);
+                    double rate = (moves.sum() - warm) / ((System.nanoTime() - t0) / 1e9);
+                    if (workers == 1) base = rate;
+                    System.out.printf("%2d workers, %4d games: %,9.0f moves/s  (x%.2f)  %,d snapshot reads/s%n",
+                        workers, games, rate, rate / base, (long) (reads.get() / ((System.nanoTime() - start) / 1e9)));
+                    running.set(false);
+                    reader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    running.set(false);
+                    pool.shutdownNow();
+                    registry.close();
+                }
+                if (workers == cores) break;
+            }
+        }
+
+        // Undo/redo: random games (castling, en passant and promotions included) are
+        // unwound to the start and replayed, checking the FEN at every ply, then a full
+        // undo + redo sweep is timed.
+        static void history() {
+            Random rnd = new Random(11);
+            int plies = 0, checked = 0;
+            for (int n = 0; n < 200; n++) {
+                Game g = new Game();
+                List<String> fens = new ArrayList<>();
+                fens.add(g.toFen());
+                while (fens.size() < 400 && g.getDrawReason() == null) {
+                    List<Move> legal = g.getLegalMovesForTurn();
+                    if (legal.isEmpty()) break;
+                    g.makeMove(legal.get(rnd.nextInt(legal.size())));
+                    fens.add(g.toFen());
+                }
+                for (int i = fens.size() - 1; i > 0; i--) {
+                    g.undo();
+                    if (!g.toFen().equals(fens.get(i - 1))) throw new IllegalStateException("undo mismatch at ply " + i);
+                }
+                for (int i = 1; i < fens.size(); i++) {
+                    g.redo();
+                    if (!g.toFen().equals(fens.get(i))) throw new IllegalStateException("redo mismatch at ply " + i);
+                }
+                if (g.canRedo()) throw new IllegalStateException("redo left over");
+                plies += fens.size() - 1;
+                checked++;
+            }
+            System.out.printf("%d games, %,d plies: undo/redo round trip matches FEN at every ply%n", checked, plies);
+
+            // one long game, stepped back and forth end to end
+            Game g = new Game();
+            String[] script = LoadTestClient.scripts(42)[0];
+            for (int i = 0; i < 50; i++) {
+                for (String uci : script) g.applyMoveIfLegal(g.parseMove(uci));
+                while (g.undo()) { }
+                while (g.redo()) { }
+                g.restart();
+            }
+            for (String uci : script) g.applyMoveIfLegal(g.parseMove(uci));
+            int n = script.length;
+            double sweeps = measure(2000, () -> {
+                while (g.undo()) { }
+                while (g.redo()) { }
+            });
+            System.out.printf("undo+redo: %.0f ns per ply step (8 bytes of history per ply)%n", 1e9 / (sweeps * 2 * n));
+
+            // random jumps along a 300-ply line, checked against the FEN seen when the line was played
+            Game line = new Game();
+            List<String> fens = new ArrayList<>();
+            fens.add(line.toFen());
+            while (fens.size() <= 300) {
+                List<Move> legal = line.getLegalMovesForTurn();
+                if (legal.isEmpty() || line.getDrawReason() != null) {
+                    line.restart();
+                    fens.clear();
+                    fens.add(line.toFen());
+                    continue;
+                }
+                line.makeMove(legal.get(rnd.nextInt(legal.size())));
+                fens.add(line.toFen());
+            }
+            for (int i = 0; i < 10_000; i++) {
+                int ply = rnd.nextInt(fens.size());
+                line.goToPly(ply);
+                if (!line.toFen().equals(fens.get(ply))) throw new IllegalStateException("jump mismatch at ply " + ply);
+            }
+            int[] targets = new int[1024];
+            for (int i = 0; i < targets.length; i++) targets[i] = rnd.nextInt(fens.size());
+            int[] next = {0};
+            double jumps = measure(2000, () -> line.goToPly(targets[next[0]++ & 1023]));
+            long worst = 0;
+            for (int i = 0; i < 10_000; i++) {
+                line.goToPly(i % 2 == 0 ? 0 : fens.size() - 1 - (i / 2) % Game.CHECKPOINT_INTERVAL);
+                long start = System.nanoTime();
+                line.goToPly(targets[i & 1023]);
+                worst = Math.max(worst, System.nanoTime() - start);
+            }
+            System.out.printf("goToPly on a %d-ply line: %.1f us mean, %.1f us max (checkpoint every %d plies, FEN verified)%n",
+                fens.size() - 1, 1e6 / jumps, worst / 1e3, Game.CHECKPOINT_INTERVAL);
+        }
+
+        // Journals random games with a running clock, timing each makeMove including its
+        // append (which must not wait for the disk), then cuts the file at random lengths
+        // and checks that recovery lands on the position after the last complete record.
+        static void journal() {
+            try {
+                java.nio.file.Path file = java.nio.file.Files.createTempFile("bench", ".journal");
+                java.nio.file.Files.delete(file);
+                String[][] scripts = LoadTestClient.scripts(7);
+                int total = 0;
+                for (String[] s : scripts) total += s.length;
+                long[] latencies = new long[total * 5];
+                int count = 0;
+                Game g = new Game();
+                GameJournal j = GameJournal.open(file, 0, g);
+                ChessTimer clock = new ChessTimer(5, 2);
+                clock.start(Color.WHITE);
+                j.setClock(clock);
+                g.journal = j;
+                long t0 = System.nanoTime();
+                for (int round = 0; round < 5; round++) {
+                    for (String[] script : scripts) {
+                        g.restart();
+                        for (String uci : script) {
+                            Move m = g.parseMove(uci);
+                            long start = System.nanoTime();
+                            g.makeMove(m);
+                            latencies[count++] = System.nanoTime() - start;
+                            clock.switchPlayer();
+                        }
+                    }
+                }
+                long seconds = System.nanoTime() - t0;
+                j.close(); // flushes the rest
+                long frames = 1 + count + 5L * scripts.length, syncs = j.getSyncCount(); // initial RESET, moves, restarts
+                Arrays.sort(latencies, 0, count);
+                System.out.printf("%,d moves journaled in %.0f ms: append+makeMove p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                    count, seconds / 1e6, LoadTestClient.percentile(latencies, count, 0.50) / 1e3,
+                    LoadTestClient.percentile(latencies, count, 0.99) / 1e3, latencies[count - 1] / 1e3);
+                System.out.printf("%,d frames in %,d fsyncs (%.1f frames per sync), %,d bytes%n",
+                    frames, syncs, (double) frames / syncs, java.nio.file.Files.size(file));
+
+                // Journal a session with undos, redos and restarts, noting where each frame ends
+                java.nio.file.Files.delete(file);
+                g = new Game();
+                j = GameJournal.open(file, 0, g);
+                g.journal = j;
+                Random rnd = new Random(5);
+                List<String> fens = new ArrayList<>(); // position after each frame, in file order
+                List<Long> ends = new ArrayList<>();   // file length after each frame
+                long seq = 0;
+                for (int i = 0; i < 300; i++) {
+                    int r = rnd.nextInt(10);
+                    if (r == 0 && g.undo() || r == 1 && g.redo()) {
+                        seq++;
+                    } else {
+                        List<Move> legal = g.getLegalMovesForTurn();
+                        if (legal.isEmpty() || g.getDrawReason() != null) {
+                            g.restart();
+                        } else {
+                            g.makeMove(legal.get(rnd.nextInt(legal.size())));
+                        }
+                        seq++;
+                    }
+                    j.awaitDurable(seq + 1); // +1 for the initial RESET
+                    fens.add(g.toFen());
+                    ends.add(java.nio.file.Files.size(file));
+                }
+                j.close();
+                byte[] whole = java.nio.file.Files.readAllBytes(file);
+                int cuts = 0;
+                for (int trial = 0; trial < 500; trial++) {
+                    int cut = 4 + rnd.nextInt(whole.length - 3);
+                    java.nio.file.Files.write(file, Arrays.copyOf(whole, cut));
+                    Game replay = new Game();
+                    GameJournal.Recovery rec = GameJournal.recover(file, replay);
+                    int k = -1; // last frame wholly inside the cut
+                    while (k + 1 < ends.size() && ends.get(k + 1) <= cut) k++;
+                    String expected = k < 0 ? new Game().toFen() : fens.get(k);
+                    if (!replay.toFen().equals(expected)) {
+                        throw new IllegalStateException("recovery after cutting at " + cut + " gave " + replay.toFen());
+                    }
+                    if (rec.tornTail != (rec.validBytes < cut)) throw new IllegalStateException("torn tail not reported");
+                    // resume appending and make sure the repaired file recovers cleanly
+                    try (GameJournal resumed = GameJournal.open(file, rec.validBytes, replay)) {
+                        replay.journal = resumed;
+                        List<Move> legal = replay.getLegalMovesForTurn();
+                        if (!legal.isEmpty()) replay.makeMove(legal.get(0));
+                    }
+                    String after = replay.toFen();
+                    if (!GameJournal.recover(file, new Game()).tornTail && after.equals(recoveredFen(file))) cuts++;
+                    else throw new IllegalStateException("appending after recovery at " + cut + " lost data");
+                }
+                System.out.printf("%d random truncations of a %,d byte journal: every one recovered to its last complete record%n",
+                    cuts, whole.length);
+
+                // resuming the whole session must keep exactly the recovered game, in fewer bytes
+                java.nio.file.Files.write(file, whole);
+                Game before = new Game();
+                GameJournal.Recovery full = GameJournal.recover(file, before);
+                GameJournal.resume(file, full, new Game()).close();
+                Game after = new Game();
+                GameJournal.Recovery compacted = GameJournal.recover(file, after);
+                if (!after.toFen().equals(before.toFen()) || compacted.ply != full.ply || !compacted.line.equals(full.line)) {
+                    throw new IllegalStateException("compacted journal recovered " + after.toFen() + " at ply " + compacted.ply);
+                }
+                System.out.printf("resume compacted it to %,d bytes (%d frames) holding the same game%n",
+                    java.nio.file.Files.size(file), compacted.frames);
+                java.nio.file.Files.delete(file);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }
+
+        private static String recoveredFen(java.nio.file.Path file) throws java.io.IOException {
+            Game g = new Game();
+            GameJournal.recover(file, g);
+            return g.toFen();
+        }
+
+        // GUI moves along recorded games: applyMoveIfLegal, then the questions the move list,
+        // check effect, status bar and target highlighting ask about the new position.
+        // Recomputed the way those handlers used to, and answered from Game.PositionInfo.
+        static void status() {
+            String[][] scripts = LoadTestClient.scripts(17);
+            List<Move[]> games = new ArrayList<>();
+            for (String[] script : scripts) {
+                Game g = new Game();
+                Move[] line = new Move[script.length];
+                for (int i = 0; i < script.length; i++) line[i] = g.parseMove(script[i]);
+                games.add(line);
+            }
+            int[] sink = {0};
+            Game old = new Game();
+            int[] at = {0, 0}; // game, ply
+            double before = measure(3000, () -> {
+                Move[] line = games.get(at[0]);
+                Move candidate = line[at[1]];
+                for (Move m : old.legalMoves(old.turn)) {
+                    if (m.from.equals(candidate.from) && m.to.equals(candidate.to)) {
+                        old.makeMove(m);
+                        break;
+                    }
+                }
+                Color side = old.getTurn();
+                if (old.isInCheck(side)) sink[0] += old.legalMoves(side).size();         // move list symbol
+                if (old.isInCheck(side)) sink[0] += old.legalMoves(side).size();         // check effect
+                boolean inCheck = old.isInCheck(side);                                   // status bar
+                if (!old.isInCheck(side) && old.legalMoves(side).isEmpty()) sink[0]++;   //   draw: stalemate
+                if (old.isThreefoldRepetition() || old.isFiftyMoveRule() || old.isInsufficientMaterial()) sink[0]++;
+                if (old.legalMoves(side).isEmpty() && inCheck) sink[0]++;                //   mate
+                for (Move m : old.legalMoves(side)) if (m.from.equals(m.to)) sink[0]++;  // targets on next click
+                if (++at[1] == line.length) {
+                    at[0] = (at[0] + 1) % games.size();
+                    at[1] = 0;
+                    old.restart();
+                }
+            });
+            Game g = new Game();
+            at[0] = at[1] = 0;
+            double after = measure(3000, () -> {
+                Move[] line = games.get(at[0]);
+                g.applyMoveIfLegal(line[at[1]]);
+                Game.PositionInfo info = g.getPositionInfo();                            // move list symbol
+                if (g.getPositionInfo().inCheck) sink[0] += info.legalMoves.size();      // check effect
+                info = g.getPositionInfo();                                              // status bar
+                if (info.drawReason != null || info.checkmate) sink[0]++;
+                for (Move m : g.getLegalMovesForTurn()) if (m.from.equals(m.to)) sink[0]++; // targets on next click
+                if (++at[1] == line.length) {
+                    at[0] = (at[0] + 1) % games.size();
+                    at[1] = 0;
+                    g.restart();
+                }
+            });
+            System.out.printf("per GUI move: recomputed %.1f us, cached %.1f us (%.1fx)%n",
+                1e6 / before, 1e6 / after, after / before);
+            System.out.printf("PositionInfo: %,d built, %,d answered from cache (%.1f regenerations avoided per position)%n",
+                g.getPositionInfoBuilds(), g.getPositionInfoHits(), (double) g.getPositionInfoHits() / g.getPositionInfoBuilds());
+
+            // selecting a piece and validating a drop in a cached position: list scan vs. square index
+            Game mid = new Game();
+            for (int i = 0; i < 30; i++) mid.applyMoveIfLegal(games.get(0)[i]);
+            Game.PositionInfo info = mid.getPositionInfo();
+            Pos[] squares = new Pos[64];
+            for (int sq = 0; sq < 64; sq++) squares[sq] = Pos.of(sq >> 3, sq & 7);
+            int[] next = {0};
+            double scan = measure(2000, () -> {
+                Pos from = squares[next[0]++ & 63], to = squares[(next[0] * 7) & 63];
+                for (Move m : info.legalMoves) if (m.from.equals(from)) sink[0] += m.to.equals(to) ? 1 : 0;
+            });
+            double index = measure(2000, () -> {
+                Pos from = squares[next[0]++ & 63], to = squares[(next[0] * 7) & 63];
+                sink[0] += Long.bitCount(info.targetsFrom(from)) + (info.isLegal(from, to) ? 1 : 0);
+            });
+            System.out.printf("targets + legality of one square (%d legal moves): scan %.0f ns, index %.0f ns%n",
+                info.legalMoves.size(), 1e9 / scan, 1e9 / index);
+        }
+
+        // The cost of validating one submitted move with Game.legalMoveOrNull versus generating
+        // all legal moves to find it, on positions from random games (GameDifferentialTest
+        // checks that the two agree).
+        static void legality() {
+            Random rnd = new Random(23);
+            Pos[] squares = new Pos[64];
+            for (int sq = 0; sq < 64; sq++) squares[sq] = Pos.of(sq >> 3, sq & 7);
+            List<Game> positions = new ArrayList<>();
+            for (String fen : POSITIONS) positions.add(Game.fromFen(fen));
+            while (positions.size() < 2000) {
+                Game g = new Game();
+                int plies = rnd.nextInt(120);
+                for (int ply = 0; ply < plies; ply++) {
+                    List<Move> legal = g.getLegalMovesForTurn();
+                    if (legal.isEmpty()) break;
+                    g.makeMove(legal.get(rnd.nextInt(legal.size())));
+                }
+                positions.add(g.copyPosition());
+            }
+            List<Move> submitted = new ArrayList<>();
+            for (Game g : positions) {
+                List<Move> legal = g.getLegalMovesForTurn();
+                submitted.add(legal.isEmpty() ? new Move(squares[0], squares[1]) : legal.get(rnd.nextInt(legal.size())));
+            }
+            int[] next = {0};
+            int[] sink = {0};
+            double full = measure(2000, () -> {
+                int i = next[0]++ % positions.size();
+                Move c = submitted.get(i);
+                for (Move m : positions.get(i).legalMoves(positions.get(i).turn)) {
+                    if (m.from.equals(c.from) && m.to.equals(c.to)) { sink[0]++; break; }
+                }
+            });
+            double single = measure(2000, () -> {
+                int i = next[0]++ % positions.size();
+                Move c = submitted.get(i);
+                if (positions.get(i).legalMoveOrNull(c.from, c.to) != null) sink[0]++;
+            });
+            System.out.printf("validate one submitted move: generate all %.1f us, single-move check %.2f us (%.0fx)%n",
+                1e6 / full, 1e6 / single, single / full);
+        }
+
+        // Game.isSquareAttacked (outward lookup) against the original board scan, and a batched
+        // castling-path query against three scans, on positions from random games
+        // (GameDifferentialTest checks that they agree).
+        static void attacks() {
+            Random rnd = new Random(29);
+            List<Game> games = new ArrayList<>();
+            for (String fen : POSITIONS) games.add(Game.fromFen(fen));
+            while (games.size() < 1500) {
+                Game g = new Game();
+                int plies = rnd.nextInt(150);
+                for (int ply = 0; ply < plies; ply++) {
+                    List<Move> legal = g.getLegalMovesForTurn();
+                    if (legal.isEmpty()) break;
+                    g.makeMove(legal.get(rnd.nextInt(legal.size())));
+                }
+                games.add(g);
+            }
+            Pos[] squares = new Pos[64];
+            for (int sq = 0; sq < 64; sq++) squares[sq] = Pos.of(sq >> 3, sq & 7);
+            int[] next = {0};
+            int[] sink = {0};
+            double scan = measure(2000, () -> {
+                Game g = games.get(next[0]++ % games.size());
+                if (g.isSquareAttackedByScan(squares[next[0] & 63], Color.WHITE)) sink[0]++;
+            });
+            double lookup = measure(2000, () -> {
+                Game g = games.get(next[0]++ % games.size());
+                if (g.isSquareAttacked(squares[next[0] & 63], Color.WHITE)) sink[0]++;
+            });
+            System.out.printf("one square: board scan %.0f ns, outward lookup %.0f ns%n", 1e9 / scan, 1e9 / lookup);
+            Pos e1 = squares[60], f1 = squares[61], g1 = squares[62];
+            double castleScan = measure(2000, () -> {
+                Game g = games.get(next[0]++ % games.size());
+                if (g.isSquareAttackedByScan(e1, Color.BLACK) || g.isSquareAttackedByScan(f1, Color.BLACK)
+                        || g.isSquareAttackedByScan(g1, Color.BLACK)) sink[0]++;
+            });
+            double castleBatch = measure(2000, () -> {
+                Game g = games.get(next[0]++ % games.size());
+                if (g.isAnySquareAttacked(7L << 60, Color.BLACK)) sink[0]++;
+            });
+            System.out.printf("castling path e1-g1: three scans %.0f ns, one batched query %.0f ns%n", 1e9 / castleScan, 1e9 / castleBatch);
+        }
+
+        // Evaluation timing before (material + piece-square only) and after (plus mobility,
+        // king-zone and hanging terms from the attack maps), and what keeping the maps current
+        // adds to a make/undo pair (GameDifferentialTest checks them against a full recount).
+        static void eval() {
+            List<Game> positions = new ArrayList<>();
+            for (String fen : POSITIONS) positions.add(Game.fromFen(fen));
+            String[][] scripts = LoadTestClient.scripts(31);
+            for (String[] script : scripts) {
+                Game g = new Game();
+                for (int i = 0; i < script.length; i++) {
+                    g.applyMoveIfLegal(g.parseMove(script[i]));
+                    if (i % 10 == 9) positions.add(g.copyPosition());
+                }
+            }
+            for (Game g : positions) g.attackMaps();
+            int[] next = {0};
+            int[] sink = {0};
+            double before = measure(2000, () -> {
+                sink[0] += PositionEvaluator.evaluateCentipawns(positions.get(next[0]++ % positions.size()).board);
+            });
+            double after = measure(2000, () -> {
+                sink[0] += PositionEvaluator.evaluateCentipawns(positions.get(next[0]++ % positions.size()), PositionEvaluator.Weights.DEFAULT);
+            });
+            System.out.printf("evaluate, %d positions: material+pst %.0f ns, with mobility/king zone/hanging %.0f ns%n",
+                positions.size(), 1e9 / before, 1e9 / after);
+
+            Game plain = positions.get(positions.size() / 2).copyPosition();
+            Game mapped = plain.copyPosition();
+            mapped.attackMaps();
+            List<Move> moves = plain.getLegalMovesForTurn();
+            double makeUndo = measure(2000, () -> {
+                plain.makeMove(moves.get(next[0]++ % moves.size()));
+                plain.undo();
+            });
+            double makeUndoMapped = measure(2000, () -> {
+                mapped.makeMove(moves.get(next[0]++ % moves.size()));
+                mapped.undo();
+            });
+            System.out.printf("makeMove+undo: %.0f ns without maps, %.0f ns keeping them current%n", 1e9 / makeUndo, 1e9 / makeUndoMapped);
+        }
+
+        // isInCheck with a scan for the king versus the tracked king square
+        // (GameDifferentialTest checks the tracked squares against a scan).
+        static void kings() {
+            List<Game> positions = new ArrayList<>();
+            for (String fen : POSITIONS) positions.add(Game.fromFen(fen));
+            int[] next = {0};
+            int[] sink = {0};
+            double scan = measure(2000, () -> {
+                Game g = positions.get(next[0]++ % positions.size());
+                Color who = g.getTurn();
+                int king = -1;
+                for (int sq = 0; sq < 64 && king < 0; sq++) {
+                    Piece p = g.board.b[sq >> 3][sq & 7];
+                    if (p != null && p.type == PieceType.KING && p.color == who) king = sq;
+                }
+                if (king >= 0 && g.isSquareAttacked(king >> 3, king & 7, who == Color.WHITE ? Color.BLACK : Color.WHITE)) sink[0]++;
+            });
+            double tracked = measure(2000, () -> {
+                Game g = positions.get(next[0]++ % positions.size());
+                if (g.isInCheck(g.getTurn())) sink[0]++;
+            });
+            System.out.printf("isInCheck: scanning for the king %.0f ns, tracked king square %.0f ns%n", 1e9 / scan, 1e9 / tracked);
+        }
+
+        // Bytes allocated per generated move (pseudo-legal and legal generation, and naming
+        // the squares for UCI output), read from the thread's allocation counter. Also checks
+        // that every square and promotion piece handed out is the shared instance.
+        static void alloc() {
+            com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            List<Game> positions = new ArrayList<>();
+            for (String fen : POSITIONS) positions.add(Game.fromFen(fen));
+            for (Game g : positions) {
+                for (Move m : g.legalMoves(g.getTurn())) {
+                    if (m.from != Pos.at(m.from.r * 8 + m.from.c) || m.to != Pos.at(m.to.r * 8 + m.to.c)
+                            || (m.promotion != null && m.promotion != Piece.of(m.promotion.type, m.promotion.color))) {
+                        throw new IllegalStateException("unshared square or piece in " + m + " at " + g.toFen());
+                    }
+                }
+            }
+            System.out.println("generated moves use the shared Pos and Piece instances");
+
+            int rounds = 20_000;
+            long[] sink = {0};
+            String[] names = {"pseudo-legal", "legal", "toUci"};
+            for (int kind = 0; kind < names.length; kind++) {
+                for (int warm = 0; warm < 2; warm++) {
+                    long moves = 0;
+                    long before = mx.getCurrentThreadAllocatedBytes();
+                    for (int n = 0; n < rounds; n++) {
+                        Game g = positions.get(n % positions.size());
+                        List<Move> list = kind == 0 ? g.pseudoLegalMoves(g.getTurn(), false) : g.legalMoves(g.getTurn());
+                        if (kind == 2) {
+                            for (Move m : list) sink[0] += m.toUci().length();
+                        }
+                        moves += list.size();
+                    }
+                    long bytes = mx.getCurrentThreadAllocatedBytes() - before;
+                    if (warm == 1) {
+                        System.out.printf("%-12s %,d moves, %.1f bytes per move%n", names[kind], moves, (double) bytes / moves);
+                    }
+                }
+            }
+            if (sink[0] == 42) System.out.println();
+        }
+
+        // 10,000 live clocks on one TimingWheel: a driver thread makes moves in random games
+        // (each move reschedules that game's flag), most games keep a few seconds on the
+        // clock and a tenth, with no increment, are short enough to flag. Reports the cost of a reschedule,
+        // the wheel thread's CPU share and how late flags fell.
+        static void clocks() {
+            int games = 10_000;
+            java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+            long[] lateness = new long[games];
+            java.util.concurrent.atomic.AtomicInteger flags = new java.util.concurrent.atomic.AtomicInteger();
+            try (TimingWheel wheel = new TimingWheel(1)) {
+                WheelClock.FlagListener onFlag = (clock, loser, late) -> {
+                    int n = flags.getAndIncrement();
+                    if (n < lateness.length) lateness[n] = late;
+                };
+                WheelClock[] clocks = new WheelClock[games];
+                Random rnd = new Random(3);
+                for (int g = 0; g < games; g++) {
+                    boolean flagging = g % 10 == 0;
+                    long base = flagging ? 200 + rnd.nextInt(1800) : 5_000 + rnd.nextInt(5_000);
+                    clocks[g] = new WheelClock(new ChessTimer(base, flagging ? 0 : 100), wheel, onFlag);
+                    clocks[g].start(Color.WHITE);
+                }
+                long wheelCpu0 = mx.getThreadCpuTime(wheel.getThread().getId());
+                long start = System.nanoTime(), end = start + 3_000_000_000L;
+                long moves = 0, moveNanos = 0;
+                while (System.nanoTime() < end) {
+                    WheelClock c = clocks[rnd.nextInt(games)];
+                    long t0 = System.nanoTime();
+                    c.switchPlayer();
+                    moveNanos += System.nanoTime() - t0;
+                    moves++;
+                    if ((moves & 1023) == 0) java.util.concurrent.locks.LockSupport.parkNanos(1_000_000L); // ~1k moves/ms
+                }
+                long elapsed = System.nanoTime() - start;
+                long wheelCpu = mx.getThreadCpuTime(wheel.getThread().getId()) - wheelCpu0;
+                int n = Math.min(flags.get(), lateness.length);
+                Arrays.sort(lateness, 0, n);
+                System.out.printf("%,d clocks, %,d moves in %.1f s (%,.0f moves/s)%n",
+                    games, moves, elapsed / 1e9, moves / (elapsed / 1e9));
+                System.out.printf("reschedule: %.0f ns/move; wheel thread: %.2f%% of a core, %.1f ns per game per second%n",
+                    (double) moveNanos / moves, 100.0 * wheelCpu / elapsed, (double) wheelCpu / games / (elapsed / 1e9));
+                if (n > 0) {
+                    System.out.printf("%d flags fell; lateness ms: p50 %.2f  p99 %.2f  max %.2f%n", n,
+                        lateness[n / 2] / 1e6, lateness[Math.min(n - 1, n * 99 / 100)] / 1e6, lateness[n - 1] / 1e6);
+                }
+            }
+        }
+
+        private static void playScript(GameRegistry registry, int id, String[] script, int ply,
+                                       LongAdder moves, java.util.concurrent.atomic.AtomicBoolean running) {
+            if (!running.get()) return;
+            CompletableFuture<Boolean> next = ply < script.length
+                ? registry.submitMove(id, script[ply])
+                : registry.submit(id, g -> { g.restart(); return true; });
+            next.thenRun(() -> {
+                if (ply < script.length) moves.increment();
+                playScript(registry, id, script, ply < script.length ? ply + 1 : 0, moves, running);
+            });
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import chess.ChessEngine.*;
+
+// Game.loadFen: rights that the board cannot back up, and FENs that must be rejected whole
+class FenTest {
+    private static boolean hasMove(Game g, String uci) {
+        for (Move m : g.getLegalMovesForTurn()) if (m.toUci().equals(uci)) return true;
+        return false;
+    }
+
+    @Test
+    void castlingRightNeedsKingAndRookAtHome() {
+        Game noRook = Game.fromFen("4k3/8/8/8/8/8/8/4K3 w K - 0 1");
+        assertFalse(hasMove(noRook, "e1g1"));
+        assertEquals(0, noRook.castlingRights());
+        assertFalse(noRook.applyMoveIfLegal(noRook.parseMove("e1g1")));
+
+        Game kingAway = Game.fromFen("r3k2r/8/8/8/8/8/8/R4K1R w KQkq - 0 1");
+        assertEquals(4 | 8, kingAway.castlingRights());
+        assertTrue(kingAway.toFen().contains(" w kq "), kingAway.toFen());
+
+        Game both = Game.fromFen("r3k2r/8/8/8/8/8/8/R3K2R w KQkq - 0 1");
+        assertTrue(hasMove(both, "e1g1"));
+        assertTrue(hasMove(both, "e1c1"));
+    }
+
+    @Test
+    void castlingNeedsTheRookStillThere() {
+        // the h1 rook is captured: its flag is untouched, but the right is gone
+        Game g = Game.fromFen("4k3/8/8/8/8/8/6b1/4K2R b K - 0 1");
+        assertTrue(g.applyMoveIfLegal(g.parseMove("g2h1")));
+        assertFalse(hasMove(g, "e1g1"));
+    }
+
+    @Test
+    void rejectedFenLeavesTheGameUnchanged() {
+        Game g = new Game();
+        g.applyMoveIfLegal(g.parseMove("e2e4"));
+        String before = g.toFen();
+        for (String bad : new String[] {
+                "4k3/8/8/8/8/8/8/4K3 x - - 0 1",          // side to move
+                "4k3/8/8/8/8/8/8/4K3 w KX - 0 1",         // castling field
+                "4k3/8/8/8/8/8/8/4K3 w - z9 0 1",         // en passant field
+                "4k3/8/8/8/8/8/8/4K3 w - - x 1",          // half-move clock
+                "8/8/8/8/8/8/8/8 w - - 0 1",              // no kings
+                "4k3/8/8/8/8/8/8/4K2K w - - 0 1"}) {      // two white kings
+            assertThrows(IllegalArgumentException.class, () -> g.loadFen(bad), bad);
+            assertEquals(before, g.toFen(), bad);
+        }
+        assertEquals(1, g.getPly());
+        assertEquals(Pos.parse("e1"), g.findKing(Color.WHITE));
+        assertTrue(g.applyMoveIfLegal(g.parseMove("e7e5")));
+    }
+}
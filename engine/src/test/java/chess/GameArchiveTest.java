@@ -0,0 +1,39 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import chess.ChessEngine.*;
+
+class GameArchiveTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void truncatedGameIsStoredWithoutItsResult() throws Exception {
+        Path pgn = dir.resolve("in.pgn"), cga = dir.resolve("out.cga");
+        Files.writeString(pgn, "[Result \"1-0\"]\n\n1. e4 e5 2. Ke3 Nc6 1-0\n\n[Result \"0-1\"]\n\n1. f3 e5 2. g4 Qh4# 0-1\n");
+        GameArchive.pack(pgn, cga);
+        try (GameArchive.Reader reader = new GameArchive.Reader(cga)) {
+            PgnGame truncated = reader.read(0);
+            assertEquals(2, truncated.moves.size());
+            assertEquals("*", truncated.result);
+            PgnGame whole = reader.read(1);
+            assertEquals(4, whole.moves.size());
+            assertEquals("0-1", whole.result);
+        }
+    }
+
+    @Test
+    void archiveClosedWithoutFinishIsRejected() throws Exception {
+        Path cga = dir.resolve("partial.cga");
+        PgnGame g = new PgnGame();
+        try (GameArchive.Writer writer = new GameArchive.Writer(cga)) {
+            writer.append(g);
+        }
+        assertThrows(java.io.IOException.class, () -> new GameArchive.Reader(cga).close());
+    }
+}
@@ -0,0 +1,158 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+import chess.ChessEngine.*;
+
+// The fast paths of Game checked against the slow code they replaced, on the benchmark
+// positions plus positions from random games with fixed seeds, so a failure reproduces.
+// The matching "bench" subcommands time the same code.
+class GameDifferentialTest {
+    private static final Piece[] PIECES = {
+        Piece.WHITE_PAWN, Piece.WHITE_KNIGHT, Piece.WHITE_BISHOP, Piece.WHITE_ROOK, Piece.WHITE_QUEEN, Piece.WHITE_KING,
+        Piece.BLACK_PAWN, Piece.BLACK_KNIGHT, Piece.BLACK_BISHOP, Piece.BLACK_ROOK, Piece.BLACK_QUEEN, Piece.BLACK_KING};
+
+    private static Pos[] squares() {
+        Pos[] squares = new Pos[64];
+        for (int sq = 0; sq < 64; sq++) squares[sq] = Pos.of(sq >> 3, sq & 7);
+        return squares;
+    }
+
+    private static void playRandom(Game g, Random rnd, int plies) {
+        for (int ply = 0; ply < plies; ply++) {
+            List<Move> legal = g.getLegalMovesForTurn();
+            if (legal.isEmpty()) return;
+            g.makeMove(legal.get(rnd.nextInt(legal.size())));
+        }
+    }
+
+    // Game.legalMoveOrNull against the generated list for every from/to pair, flags and
+    // promotion piece included
+    @Test
+    void singleMoveCheckAgreesWithLegalMoves() {
+        Random rnd = new Random(23);
+        Pos[] squares = squares();
+        List<Game> positions = new ArrayList<>();
+        for (String fen : Benchmarks.POSITIONS) positions.add(Game.fromFen(fen));
+        while (positions.size() < 2000) {
+            Game g = new Game();
+            playRandom(g, rnd, rnd.nextInt(120));
+            positions.add(g.copyPosition());
+        }
+        long special = 0;
+        for (Game g : positions) {
+            Game.PositionInfo info = g.getPositionInfo();
+            for (Pos from : squares) {
+                for (Pos to : squares) {
+                    Move fast = g.legalMoveOrNull(from, to), listed = info.find(from, to);
+                    if (listed != null && (listed.isCastleKingSide || listed.isCastleQueenSide
+                            || listed.isEnPassant || listed.promotion != null)) special++;
+                    boolean same = fast == null ? listed == null : listed != null
+                        && fast.isCastleKingSide == listed.isCastleKingSide && fast.isCastleQueenSide == listed.isCastleQueenSide
+                        && fast.isEnPassant == listed.isEnPassant
+                        && (fast.promotion == null ? listed.promotion == null : listed.promotion != null && fast.promotion.toChar() == listed.promotion.toChar());
+                    assertTrue(same, () -> g.toFen() + ": " + from + to + " fast=" + fast + " listed=" + listed);
+                }
+            }
+        }
+        assertTrue(special > 0, "no castling, en passant or promotion was exercised");
+    }
+
+    // The outward lookup of isSquareAttacked against the board scan, on positions from random
+    // games and on random placements, for every square and both colours, plus random square
+    // sets for isAnySquareAttacked
+    @Test
+    void outwardAttackLookupMatchesBoardScan() {
+        Random rnd = new Random(29);
+        Pos[] squares = squares();
+        List<Game> positions = new ArrayList<>();
+        for (String fen : Benchmarks.POSITIONS) positions.add(Game.fromFen(fen));
+        while (positions.size() < 3000) {
+            Game g = new Game();
+            if (positions.size() % 2 == 0) {
+                playRandom(g, rnd, rnd.nextInt(150));
+            } else {
+                double density = 0.05 + rnd.nextDouble() * 0.5;
+                for (int r = 0; r < 8; r++) {
+                    for (int c = 0; c < 8; c++) {
+                        g.board.b[r][c] = rnd.nextDouble() < density ? PIECES[rnd.nextInt(PIECES.length)] : null;
+                    }
+                }
+            }
+            positions.add(g);
+        }
+        for (Game g : positions) {
+            for (Color attacker : Color.values()) {
+                long attackedSet = 0;
+                for (int sq = 0; sq < 64; sq++) {
+                    Pos square = squares[sq];
+                    boolean scan = g.isSquareAttackedByScan(square, attacker);
+                    assertEquals(scan, g.isSquareAttacked(square, attacker), () -> g.toFen() + ": " + square + " by " + attacker);
+                    if (scan) attackedSet |= 1L << sq;
+                }
+                for (int i = 0; i < 16; i++) {
+                    long set = rnd.nextLong() & rnd.nextLong() & rnd.nextLong();
+                    assertEquals((set & attackedSet) != 0, g.isAnySquareAttacked(set, attacker),
+                        () -> g.toFen() + ": batched query for " + Long.toHexString(set));
+                }
+            }
+        }
+    }
+
+    // Incrementally kept attack maps against a full recount after every move, undo, redo and jump
+    @Test
+    void incrementalAttackMapsEqualFullRecount() {
+        Random rnd = new Random(31);
+        for (int n = 0; n < 300; n++) {
+            Game g = new Game();
+            g.attackMaps();
+            for (int step = 0; step < 200; step++) {
+                int op = rnd.nextInt(10);
+                if (op == 0) {
+                    g.undo();
+                } else if (op == 1) {
+                    g.redo();
+                } else if (op == 2) {
+                    g.goToPly(rnd.nextInt(g.getLineLength() + 1));
+                } else {
+                    List<Move> legal = g.getLegalMovesForTurn();
+                    if (legal.isEmpty()) break;
+                    g.makeMove(legal.get(rnd.nextInt(legal.size())));
+                }
+                Game at = g;
+                assertArrayEquals(g.copyPosition().attackMaps(), g.attackMaps(), () -> "attack maps drifted at " + at.toFen());
+            }
+        }
+    }
+
+    // Tracked king squares against a board scan after every move, undo, redo, jump and copy
+    @Test
+    void trackedKingSquaresMatchBoardScan() {
+        Random rnd = new Random(37);
+        for (int n = 0; n < 300; n++) {
+            Game g = n % 3 == 0 ? Game.fromFen(Benchmarks.POSITIONS[n % Benchmarks.POSITIONS.length]) : new Game();
+            for (int step = 0; step < 200; step++) {
+                int op = rnd.nextInt(20);
+                if (op == 0) g.undo();
+                else if (op == 1) g.redo();
+                else if (op == 2) g.goToPly(rnd.nextInt(g.getLineLength() + 1));
+                else if (op == 3) g = g.copyPosition();
+                else {
+                    List<Move> legal = g.getLegalMovesForTurn();
+                    if (legal.isEmpty()) break;
+                    g.makeMove(legal.get(rnd.nextInt(legal.size())));
+                }
+                int[] scanned = {-1, -1};
+                for (int sq = 0; sq < 64; sq++) {
+                    Piece p = g.board.b[sq >> 3][sq & 7];
+                    if (p != null && p.type == PieceType.KING) scanned[p.color.ordinal()] = sq;
+                }
+                Game at = g;
+                assertArrayEquals(scanned, g.kingSquares, () -> "king squares at " + at.toFen());
+            }
+        }
+    }
+}
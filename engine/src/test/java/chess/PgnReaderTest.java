@@ -0,0 +1,52 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+import chess.ChessEngine.*;
+
+// Movetext that real-world PGN gets wrong: the reader must keep going and never make up a move
+class PgnReaderTest {
+    private static List<PgnGame> read(String pgn) throws Exception {
+        List<PgnGame> games = new ArrayList<>();
+        try (PgnReader reader = new PgnReader(java.nio.channels.Channels.newChannel(
+                new java.io.ByteArrayInputStream(pgn.getBytes(StandardCharsets.US_ASCII))))) {
+            while (reader.hasNext()) games.add(reader.next());
+        }
+        return games;
+    }
+
+    @Test
+    void strayClosingBraceIsSkipped() throws Exception {
+        List<PgnGame> games = read("[Event \"a\"]\n\n1. e4 } e5 2. Nf3 1-0\n");
+        assertEquals(1, games.size());
+        assertNull(games.get(0).error);
+        assertEquals(3, games.get(0).moves.size());
+        assertEquals("1-0", games.get(0).result);
+    }
+
+    @Test
+    void promotionToKingIsRejected() throws Exception {
+        PgnGame g = read("1. e4 d5 2. exd5 c6 3. dxc6 Nf6 4. cxb7 e6 5. bxa8=K 1-0\n").get(0);
+        assertNotNull(g.error);
+        assertEquals(8, g.moves.size());
+
+        PgnGame knight = read("1. e4 d5 2. exd5 c6 3. dxc6 Nf6 4. cxb7 e6 5. bxa8=N 1-0\n").get(0);
+        assertNull(knight.error);
+        assertEquals(PieceType.KNIGHT, knight.moves.get(8).promotion.type);
+    }
+
+    @Test
+    void ambiguousSanIsRejected() throws Exception {
+        PgnGame g = read("[FEN \"4k3/8/8/8/8/8/8/N1N1K3 w - - 0 1\"]\n\n1. Nb3 1-0\n").get(0);
+        assertNotNull(g.error);
+        assertTrue(g.moves.isEmpty());
+
+        PgnGame named = read("[FEN \"4k3/8/8/8/8/8/8/N1N1K3 w - - 0 1\"]\n\n1. Ncb3 1-0\n").get(0);
+        assertNull(named.error);
+        assertEquals("c1b3", named.moves.get(0).toUci());
+    }
+}
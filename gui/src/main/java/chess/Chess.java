@@ -1,3 +1,5 @@
+package chess;
+
 import java.util.*;
 import javax.swing.*;
 import java.awt.event.*;
@@ -17,320 +19,83 @@ import java.util.Map;
 import java.util.HashMap;
 import javax.sound.sampled.*;
 import java.awt.FlowLayout;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import chess.ChessEngine.*;
 
 public class Chess {
     public static void main(String[] args) {
-        // Launch GUI by default. Use argument "console" to run text mode.
+        // Launch GUI by default. Use argument "console" to run text mode, "uci" for engine mode.
+        // The headless modes ("uci", "pgn games.pgn", ...) are ChessEngine's.
+        if (ChessEngine.runTool(args)) return;
         boolean console = false;
-        for (String a : args) if (a.equalsIgnoreCase("console") || a.equalsIgnoreCase("-console")) console = true;
+        boolean training = false;
+        for (String a : args) {
+            if (a.equalsIgnoreCase("console") || a.equalsIgnoreCase("-console")) console = true;
+            if (a.equals("--startup-trace")) StartupTrace.enabled = true;
+            if (a.equals("--cds-training")) training = true;
+        }
+        StartupTrace.mark("main");
         if (console) {
             Game game = new Game();
             game.run();
+        } else if (training) {
+            trainAndExit();
         } else {
             SwingUtilities.invokeLater(() -> {
                 ChessGUI gui = new ChessGUI();
-                gui.createAndShowGUI();
+                if (StartupTrace.enabled && java.awt.GraphicsEnvironment.isHeadless()) {
+                    gui.renderOffscreen();
+                } else {
+                    gui.createAndShowGUI();
+                }
             });
         }
     }
 
-    enum Color { WHITE, BLACK }
-
-    enum PieceType { KING, QUEEN, ROOK, BISHOP, KNIGHT, PAWN }
-
-    static class Piece implements Cloneable {
-        final PieceType type;  // Immutable - optimize with final
-        final Color color;     // Immutable - optimize with final
-
-        Piece(PieceType type, Color color) {
-            this.type = type;
-            this.color = color;
-        }
-
-        @Override
-        public Piece clone() {
-            // Optimization: Since Piece is immutable, we can return this instead of cloning
-            // This saves memory and improves performance
-            return new Piece(type, color);
-        }
-
-        @Override
-        public String toString() {
-            // Optimization: Use direct char instead of switch for better performance
-            char c = switch (type) {
-                case KING -> 'K';
-                case QUEEN -> 'Q';
-                case ROOK -> 'R';
-                case BISHOP -> 'B';
-                case KNIGHT -> 'N';
-                case PAWN -> 'P';
-            };
-            return color == Color.WHITE ? String.valueOf(c) : String.valueOf(Character.toLowerCase(c));
-        }
-        
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof Piece)) return false;
-            Piece piece = (Piece) o;
-            return type == piece.type && color == piece.color;
-        }
-        
-        @Override
-        public int hashCode() {
-            return Objects.hash(type, color);
-        }
+    // "--cds-training": start the GUI, wait for the first frame and the piece images, play
+    // a few moves and exit. Run under -XX:ArchiveClassesAtExit=<file> it records every class
+    // a start-up loads into an AppCDS archive (the gui build does this headless, see gui/pom.xml).
+    // Without a display the window's contents are rendered offscreen instead.
+    private static void trainAndExit() {
+        System.setProperty("chess.journal", "none"); // never touch the player's saved session
+        try {
+            ChessGUI gui = new ChessGUI();
+            boolean headless = java.awt.GraphicsEnvironment.isHeadless();
+            SwingUtilities.invokeAndWait(headless ? gui::renderOffscreen : gui::createAndShowGUI);
+            StartupTrace.FIRST_FRAME.await();
+            gui.pieceImageLoader.join();
+            SwingUtilities.invokeAndWait(gui::playTrainingMoves);
+        } catch (InterruptedException | java.lang.reflect.InvocationTargetException e) {
+            System.err.println("cds training: " + e);
+            System.exit(1);
+        }
+        System.exit(0);
     }
 
-    static class Pos {
-        final int r, c;  // Immutable - optimize with final
-        
-        Pos(int r, int c) { 
-            this.r = r; 
-            this.c = c; 
-        }
-        
-        Pos(String s) { // e.g. e2
-            s = s.trim();
-            if (s.length() != 2) throw new IllegalArgumentException("Bad pos: " + s);
-            this.c = s.charAt(0) - 'a';
-            this.r = 8 - (s.charAt(1) - '0');
-        }
-        
-        boolean inBounds() { 
-            return r >= 0 && r < 8 && c >= 0 && c < 8; 
-        }
-        
-        @Override 
-        public boolean equals(Object o) { 
-            if (this == o) return true;
-            if (!(o instanceof Pos)) return false; 
-            Pos p = (Pos)o; 
-            return p.r == r && p.c == c; 
-        }
-        
-        @Override 
-        public int hashCode() { 
-            // Optimization: Better hash distribution
-            return r * 8 + c; 
-        }
-        
-        @Override 
-        public String toString() { 
-            // Optimization: Cache common positions or use direct char array
-            return String.format("%c%d", 'a' + c, 8 - r); 
-        }
-    }
-
-    static class Move {
-        final Pos from, to;  // Immutable - optimize with final
-        Piece promotion; // if pawn promotion
-        boolean isCastleKingSide = false;
-        boolean isCastleQueenSide = false;
-        boolean isEnPassant = false;
-        
-        Move(Pos f, Pos t) { 
-            this.from = f; 
-            this.to = t; 
-        }
-        
-        @Override 
-        public String toString() { 
-            // Optimization: Use StringBuilder for string concatenation
-            StringBuilder sb = new StringBuilder(6);
-            sb.append(from).append("->").append(to);
-            return sb.toString();
-        }
-        
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof Move)) return false;
-            Move move = (Move) o;
-            return from.equals(move.from) && to.equals(move.to);
-        }
-        
-        @Override
-        public int hashCode() {
-            return Objects.hash(from, to);
-        }
-    }
-
-    static class Board implements Cloneable {
-        final Piece[][] b = new Piece[8][8];  // Optimization: final array reference
-        
-        // Optimization: Cache pieces to avoid creating new objects repeatedly
-        private static final Piece WHITE_PAWN = new Piece(PieceType.PAWN, Color.WHITE);
-        private static final Piece BLACK_PAWN = new Piece(PieceType.PAWN, Color.BLACK);
-        private static final Piece WHITE_ROOK = new Piece(PieceType.ROOK, Color.WHITE);
-        private static final Piece BLACK_ROOK = new Piece(PieceType.ROOK, Color.BLACK);
-        private static final Piece WHITE_KNIGHT = new Piece(PieceType.KNIGHT, Color.WHITE);
-        private static final Piece BLACK_KNIGHT = new Piece(PieceType.KNIGHT, Color.BLACK);
-        private static final Piece WHITE_BISHOP = new Piece(PieceType.BISHOP, Color.WHITE);
-        private static final Piece BLACK_BISHOP = new Piece(PieceType.BISHOP, Color.BLACK);
-        private static final Piece WHITE_QUEEN = new Piece(PieceType.QUEEN, Color.WHITE);
-        private static final Piece BLACK_QUEEN = new Piece(PieceType.QUEEN, Color.BLACK);
-        private static final Piece WHITE_KING = new Piece(PieceType.KING, Color.WHITE);
-        private static final Piece BLACK_KING = new Piece(PieceType.KING, Color.BLACK);
-
-        Board() { init(); }
+    // "--startup-trace": prints when each start-up phase finished, counted from JVM start,
+    // ending with the first painted frame of the board and the piece images arriving
+    static final class StartupTrace {
+        static volatile boolean enabled = false;
+        static final CountDownLatch FIRST_FRAME = new CountDownLatch(1);
+        private static long jvmStartNanos = 0; // on the nanoTime scale; set by the first mark
 
-        void init() {
-            // Optimization: Use Arrays.fill for clearing
-            for (int r = 0; r < 8; r++) {
-                Arrays.fill(b[r], null);
-            }
-            
-            // Pawns - use cached pieces
-            for (int c = 0; c < 8; c++) { 
-                b[1][c] = BLACK_PAWN;
-                b[6][c] = WHITE_PAWN;
-            }
-            
-            // Rooks
-            b[0][0] = b[0][7] = BLACK_ROOK;
-            b[7][0] = b[7][7] = WHITE_ROOK;
-            
-            // Knights
-            b[0][1] = b[0][6] = BLACK_KNIGHT;
-            b[7][1] = b[7][6] = WHITE_KNIGHT;
-            
-            // Bishops
-            b[0][2] = b[0][5] = BLACK_BISHOP;
-            b[7][2] = b[7][5] = WHITE_BISHOP;
-            
-            // Queens
-            b[0][3] = BLACK_QUEEN;
-            b[7][3] = WHITE_QUEEN;
-            
-            // Kings
-            b[0][4] = BLACK_KING;
-            b[7][4] = WHITE_KING;
-        }
-
-        Piece get(Pos p) { 
-            return b[p.r][p.c]; 
-        }
-        
-        void set(Pos p, Piece piece) { 
-            b[p.r][p.c] = piece; 
-        }
-
-        @Override
-        public Board clone() {
-            // Optimization: More efficient cloning - skip init()
-            Board nb = new Board();
-            for (int r = 0; r < 8; r++) {
-                // Use System.arraycopy for better performance
-                System.arraycopy(b[r], 0, nb.b[r], 0, 8);
-            }
-            return nb;
-        }
-
-        void apply(Move m) {
-            Piece p = get(m.from);
-            set(m.to, p);
-            set(m.from, null);
-            if (m.promotion != null) set(m.to, m.promotion);
-        }
-
-        void print() {
-            System.out.println();
-            for (int r=0;r<8;r++) {
-                System.out.print(8-r + " ");
-                for (int c=0;c<8;c++) {
-                    Piece p = b[r][c];
-                    if (p == null) System.out.print(((r+c)%2==0) ? ". " : ": ");
-                    else System.out.print(p + " ");
-                }
-                System.out.println();
+        static synchronized void mark(String phase) {
+            if (!enabled) return;
+            if (jvmStartNanos == 0) {
+                // the management classes are only loaded when tracing
+                jvmStartNanos = System.nanoTime() - java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000L;
             }
-            System.out.println("  a b c d e f g h");
+            System.err.printf("startup: %-20s %7.1f ms after JVM start%n", phase, (System.nanoTime() - jvmStartNanos) / 1e6);
         }
-    }
 
-    // Chess Timer class for time controls
-    static class ChessTimer {
-        private long whiteTime; // milliseconds
-        private long blackTime; // milliseconds
-        private long lastUpdateTime;
-        private Color activeColor;
-        private boolean running = false;
-        private long increment; // milliseconds per move
-        
-        ChessTimer(int minutesPerSide, int incrementSeconds) {
-            this.whiteTime = minutesPerSide * 60 * 1000L;
-            this.blackTime = minutesPerSide * 60 * 1000L;
-            this.increment = incrementSeconds * 1000L;
-            this.activeColor = Color.WHITE;
-        }
-        
-        void start(Color color) {
-            activeColor = color;
-            lastUpdateTime = System.currentTimeMillis();
-            running = true;
-        }
-        
-        void stop() {
-            if (running) {
-                update();
-                running = false;
-            }
-        }
-        
-        void switchPlayer() {
-            if (running) {
-                update();
-                // Add increment
-                if (activeColor == Color.WHITE) {
-                    whiteTime += increment;
-                } else {
-                    blackTime += increment;
-                }
-                activeColor = (activeColor == Color.WHITE) ? Color.BLACK : Color.WHITE;
-                lastUpdateTime = System.currentTimeMillis();
-            }
-        }
-        
-        private void update() {
-            if (!running) return;
-            long now = System.currentTimeMillis();
-            long elapsed = now - lastUpdateTime;
-            if (activeColor == Color.WHITE) {
-                whiteTime -= elapsed;
-            } else {
-                blackTime -= elapsed;
-            }
-            lastUpdateTime = now;
-        }
-        
-        long getWhiteTime() {
-            if (running && activeColor == Color.WHITE) update();
-            return Math.max(0, whiteTime);
-        }
-        
-        long getBlackTime() {
-            if (running && activeColor == Color.BLACK) update();
-            return Math.max(0, blackTime);
-        }
-        
-        boolean isWhiteOutOfTime() { return getWhiteTime() <= 0; }
-        boolean isBlackOutOfTime() { return getBlackTime() <= 0; }
-        boolean isRunning() { return running; }
-        
-        String formatTime(long millis) {
-            long seconds = millis / 1000;
-            long minutes = seconds / 60;
-            seconds = seconds % 60;
-            return String.format("%d:%02d", minutes, seconds);
-        }
-        
-        void reset(int minutesPerSide, int incrementSeconds) {
-            this.whiteTime = minutesPerSide * 60 * 1000L;
-            this.blackTime = minutesPerSide * 60 * 1000L;
-            this.increment = incrementSeconds * 1000L;
-            this.activeColor = Color.WHITE;
-            this.running = false;
+        // Called after every paint of the board; only the first one is reported
+        static void framePainted() {
+            if (FIRST_FRAME.getCount() == 0) return;
+            FIRST_FRAME.countDown();
+            mark("first frame");
         }
     }
 
@@ -674,800 +439,6 @@ public class Chess {
         }
     }
     
-    // Position Evaluator - Calculates who's winning
-    static class PositionEvaluator {
-        // Piece-square tables for positional evaluation (centipawns)
-        // Higher values = better positions for White
-        private static final int[][] PAWN_TABLE = {
-            {  0,  0,  0,  0,  0,  0,  0,  0},
-            { 50, 50, 50, 50, 50, 50, 50, 50},
-            { 10, 10, 20, 30, 30, 20, 10, 10},
-            {  5,  5, 10, 25, 25, 10,  5,  5},
-            {  0,  0,  0, 20, 20,  0,  0,  0},
-            {  5, -5,-10,  0,  0,-10, -5,  5},
-            {  5, 10, 10,-20,-20, 10, 10,  5},
-            {  0,  0,  0,  0,  0,  0,  0,  0}
-        };
-        
-        private static final int[][] KNIGHT_TABLE = {
-            {-50,-40,-30,-30,-30,-30,-40,-50},
-            {-40,-20,  0,  0,  0,  0,-20,-40},
-            {-30,  0, 10, 15, 15, 10,  0,-30},
-            {-30,  5, 15, 20, 20, 15,  5,-30},
-            {-30,  0, 15, 20, 20, 15,  0,-30},
-            {-30,  5, 10, 15, 15, 10,  5,-30},
-            {-40,-20,  0,  5,  5,  0,-20,-40},
-            {-50,-40,-30,-30,-30,-30,-40,-50}
-        };
-        
-        private static final int[][] BISHOP_TABLE = {
-            {-20,-10,-10,-10,-10,-10,-10,-20},
-            {-10,  0,  0,  0,  0,  0,  0,-10},
-            {-10,  0,  5, 10, 10,  5,  0,-10},
-            {-10,  5,  5, 10, 10,  5,  5,-10},
-            {-10,  0, 10, 10, 10, 10,  0,-10},
-            {-10, 10, 10, 10, 10, 10, 10,-10},
-            {-10,  5,  0,  0,  0,  0,  5,-10},
-            {-20,-10,-10,-10,-10,-10,-10,-20}
-        };
-        
-        private static final int[][] ROOK_TABLE = {
-            {  0,  0,  0,  0,  0,  0,  0,  0},
-            {  5, 10, 10, 10, 10, 10, 10,  5},
-            { -5,  0,  0,  0,  0,  0,  0, -5},
-            { -5,  0,  0,  0,  0,  0,  0, -5},
-            { -5,  0,  0,  0,  0,  0,  0, -5},
-            { -5,  0,  0,  0,  0,  0,  0, -5},
-            { -5,  0,  0,  0,  0,  0,  0, -5},
-            {  0,  0,  0,  5,  5,  0,  0,  0}
-        };
-        
-        private static final int[][] QUEEN_TABLE = {
-            {-20,-10,-10, -5, -5,-10,-10,-20},
-            {-10,  0,  0,  0,  0,  0,  0,-10},
-            {-10,  0,  5,  5,  5,  5,  0,-10},
-            { -5,  0,  5,  5,  5,  5,  0, -5},
-            {  0,  0,  5,  5,  5,  5,  0, -5},
-            {-10,  5,  5,  5,  5,  5,  0,-10},
-            {-10,  0,  5,  0,  0,  0,  0,-10},
-            {-20,-10,-10, -5, -5,-10,-10,-20}
-        };
-        
-        private static final int[][] KING_TABLE = {
-            {-30,-40,-40,-50,-50,-40,-40,-30},
-            {-30,-40,-40,-50,-50,-40,-40,-30},
-            {-30,-40,-40,-50,-50,-40,-40,-30},
-            {-30,-40,-40,-50,-50,-40,-40,-30},
-            {-20,-30,-30,-40,-40,-30,-30,-20},
-            {-10,-20,-20,-20,-20,-20,-20,-10},
-            { 20, 20,  0,  0,  0,  0, 20, 20},
-            { 20, 30, 10,  0,  0, 10, 30, 20}
-        };
-        
-        // Evaluate position from White's perspective
-        // Returns score in pawns (positive = White winning, negative = Black winning)
-        static double evaluatePosition(Board board, Game game) {
-            double score = 0.0;
-            
-            // 1. Material evaluation (largest factor)
-            for (int r = 0; r < 8; r++) {
-                for (int c = 0; c < 8; c++) {
-                    Piece p = board.b[r][c];
-                    if (p != null) {
-                        int materialValue = getMaterialValue(p.type);
-                        int positionalValue = getPositionalValue(p, r, c);
-                        int totalValue = materialValue + positionalValue;
-                        
-                        if (p.color == Color.WHITE) {
-                            score += totalValue / 100.0; // Convert centipawns to pawns
-                        } else {
-                            score -= totalValue / 100.0;
-                        }
-                    }
-                }
-            }
-            
-            // Note: Removed mobility and check evaluation to prevent infinite recursion
-            // These features would require calling legalMoves() which can cause stack overflow
-            // in the current implementation when called from updateStatus()
-            
-            // Round to 1 decimal place
-            return Math.round(score * 10.0) / 10.0;
-        }
-        
-        private static int getMaterialValue(PieceType type) {
-            return switch (type) {
-                case PAWN -> 100;
-                case KNIGHT -> 320;
-                case BISHOP -> 330;
-                case ROOK -> 500;
-                case QUEEN -> 900;
-                case KING -> 20000; // King is invaluable
-            };
-        }
-        
-        private static int getPositionalValue(Piece p, int row, int col) {
-            // Get piece-square table value
-            int[][] table = switch (p.type) {
-                case PAWN -> PAWN_TABLE;
-                case KNIGHT -> KNIGHT_TABLE;
-                case BISHOP -> BISHOP_TABLE;
-                case ROOK -> ROOK_TABLE;
-                case QUEEN -> QUEEN_TABLE;
-                case KING -> KING_TABLE;
-            };
-            
-            // For Black pieces, flip the table vertically
-            int r = (p.color == Color.WHITE) ? row : (7 - row);
-            return table[r][col];
-        }
-    }
-
-    // GameState class to store complete game state for undo/redo
-    static class GameState implements Cloneable {
-        Board board;
-        Color turn;
-        boolean whiteKingMoved;
-        boolean blackKingMoved;
-        boolean whiteRookA_moved;
-        boolean whiteRookH_moved;
-        boolean blackRookA_moved;
-        boolean blackRookH_moved;
-        Pos enPassantTarget;
-        Move lastMove;
-        
-        GameState(Board board, Color turn, boolean whiteKingMoved, boolean blackKingMoved,
-                  boolean whiteRookA_moved, boolean whiteRookH_moved, 
-                  boolean blackRookA_moved, boolean blackRookH_moved,
-                  Pos enPassantTarget, Move lastMove) {
-            this.board = board.clone();
-            this.turn = turn;
-            this.whiteKingMoved = whiteKingMoved;
-            this.blackKingMoved = blackKingMoved;
-            this.whiteRookA_moved = whiteRookA_moved;
-            this.whiteRookH_moved = whiteRookH_moved;
-            this.blackRookA_moved = blackRookA_moved;
-            this.blackRookH_moved = blackRookH_moved;
-            this.enPassantTarget = enPassantTarget;
-            this.lastMove = lastMove;
-        }
-        
-        @Override
-        public GameState clone() {
-            return new GameState(board, turn, whiteKingMoved, blackKingMoved,
-                whiteRookA_moved, whiteRookH_moved, blackRookA_moved, blackRookH_moved,
-                enPassantTarget, lastMove);
-        }
-    }
-
-    static class Game {
-        Board board = new Board();
-        Color turn = Color.WHITE;
-        Scanner in = new Scanner(System.in);
-        // Castling/en-passant state
-        boolean whiteKingMoved = false;
-        boolean blackKingMoved = false;
-        boolean whiteRookA_moved = false; // a1
-        boolean whiteRookH_moved = false; // h1
-        boolean blackRookA_moved = false; // a8
-        boolean blackRookH_moved = false; // h8
-        Pos enPassantTarget = null; // square where en-passant capture is possible
-
-        // Undo/Redo system
-        private final java.util.Deque<GameState> undoStack = new java.util.ArrayDeque<>();
-        private final java.util.Deque<GameState> redoStack = new java.util.ArrayDeque<>();
-        private static final int MAX_HISTORY = 100; // Limit history to prevent memory issues
-
-        // Move validation improvements
-        private final List<String> positionHistory = new ArrayList<>(); // For threefold repetition
-        private int halfMoveClock = 0; // For fifty-move rule (counts half-moves since last pawn move or capture)
-        private int fullMoveNumber = 1; // Current move number
-
-        // Promotion handler (GUI can set this)
-        interface PromotionHandler { Piece choosePromotion(Color byColor); }
-        PromotionHandler promotionHandler = null;
-
-        // Simple accessors for GUI
-        public Board getBoard() { return board; }
-        public Color getTurn() { return turn; }
-        public List<Move> getLegalMovesForTurn() { return legalMoves(turn); }
-        
-        // Undo/Redo functionality
-        public boolean canUndo() { return !undoStack.isEmpty(); }
-        public boolean canRedo() { return !redoStack.isEmpty(); }
-        
-        private void saveState(Move lastMove) {
-            // Save current state before making a move
-            GameState state = new GameState(board, turn, whiteKingMoved, blackKingMoved,
-                whiteRookA_moved, whiteRookH_moved, blackRookA_moved, blackRookH_moved,
-                enPassantTarget, lastMove);
-            undoStack.push(state);
-            
-            // Limit history size to prevent memory issues
-            if (undoStack.size() > MAX_HISTORY) {
-                // Remove the oldest state (at the bottom of the stack)
-                undoStack.removeLast();
-            }
-            
-            // Clear redo stack when a new move is made
-            redoStack.clear();
-        }
-        
-        public boolean undo() {
-            if (!canUndo()) return false;
-            
-            // Save current state to redo stack
-            GameState currentState = new GameState(board, turn, whiteKingMoved, blackKingMoved,
-                whiteRookA_moved, whiteRookH_moved, blackRookA_moved, blackRookH_moved,
-                enPassantTarget, null);
-            redoStack.push(currentState);
-            
-            // Restore previous state
-            GameState prevState = undoStack.pop();
-            board = prevState.board.clone();
-            turn = prevState.turn;
-            whiteKingMoved = prevState.whiteKingMoved;
-            blackKingMoved = prevState.blackKingMoved;
-            whiteRookA_moved = prevState.whiteRookA_moved;
-            whiteRookH_moved = prevState.whiteRookH_moved;
-            blackRookA_moved = prevState.blackRookA_moved;
-            blackRookH_moved = prevState.blackRookH_moved;
-            enPassantTarget = prevState.enPassantTarget;
-            
-            return true;
-        }
-        
-        public Move getLastMoveFromUndo() {
-            if (undoStack.isEmpty()) return null;
-            return undoStack.peek().lastMove;
-        }
-        
-        public boolean redo() {
-            if (!canRedo()) return false;
-            
-            // Save current state to undo stack
-            GameState currentState = new GameState(board, turn, whiteKingMoved, blackKingMoved,
-                whiteRookA_moved, whiteRookH_moved, blackRookA_moved, blackRookH_moved,
-                enPassantTarget, null);
-            undoStack.push(currentState);
-            
-            // Restore next state
-            GameState nextState = redoStack.pop();
-            board = nextState.board.clone();
-            turn = nextState.turn;
-            whiteKingMoved = nextState.whiteKingMoved;
-            blackKingMoved = nextState.blackKingMoved;
-            whiteRookA_moved = nextState.whiteRookA_moved;
-            whiteRookH_moved = nextState.whiteRookH_moved;
-            blackRookA_moved = nextState.blackRookA_moved;
-            blackRookH_moved = nextState.blackRookH_moved;
-            enPassantTarget = nextState.enPassantTarget;
-            
-            return true;
-        }
-        
-        public boolean applyMoveIfLegal(Move candidate) {
-            List<Move> moves = legalMoves(turn);
-            for (Move m : moves) {
-                if (m.from.equals(candidate.from) && m.to.equals(candidate.to)) {
-                    // Save state before making the move (for undo)
-                    saveState(null);
-                    
-                    // handle promotion selection
-                    if (m.promotion != null && promotionHandler != null) {
-                        Piece chosen = promotionHandler.choosePromotion(turn);
-                        if (chosen != null) m.promotion = chosen;
-                    }
-                    // handle en-passant capture
-                    if (m.isEnPassant) {
-                        // captured pawn is behind the destination square
-                        int capR = (turn==Color.WHITE) ? m.to.r + 1 : m.to.r - 1;
-                        int capC = m.to.c;
-                        board.b[capR][capC] = null;
-                    }
-                    // handle castling rook movement
-                    if (m.isCastleKingSide) {
-                        if (turn==Color.WHITE) {
-                            // move rook from h1 to f1
-                            board.set(new Pos(7,5), board.get(new Pos(7,7)));
-                            board.set(new Pos(7,7), null);
-                            whiteKingMoved = true; whiteRookH_moved = true;
-                        } else {
-                            board.set(new Pos(0,5), board.get(new Pos(0,7)));
-                            board.set(new Pos(0,7), null);
-                            blackKingMoved = true; blackRookH_moved = true;
-                        }
-                    } else if (m.isCastleQueenSide) {
-                        if (turn==Color.WHITE) {
-                            // move rook from a1 to d1
-                            board.set(new Pos(7,3), board.get(new Pos(7,0)));
-                            board.set(new Pos(7,0), null);
-                            whiteKingMoved = true; whiteRookA_moved = true;
-                        } else {
-                            board.set(new Pos(0,3), board.get(new Pos(0,0)));
-                            board.set(new Pos(0,0), null);
-                            blackKingMoved = true; blackRookA_moved = true;
-                        }
-                    }
-
-                    // perform the move (capture/move)
-                    Piece moved = board.get(m.from);
-                    Piece captured = board.get(m.to);
-                    board.apply(m);
-
-                    // update moved flags
-                    if (moved != null && moved.type == PieceType.KING) {
-                        if (moved.color == Color.WHITE) whiteKingMoved = true; else blackKingMoved = true;
-                    }
-                    if (moved != null && moved.type == PieceType.ROOK) {
-                        if (m.from.r==7 && m.from.c==0) whiteRookA_moved = true;
-                        if (m.from.r==7 && m.from.c==7) whiteRookH_moved = true;
-                        if (m.from.r==0 && m.from.c==0) blackRookA_moved = true;
-                        if (m.from.r==0 && m.from.c==7) blackRookH_moved = true;
-                    }
-                    // if captured a rook on its original square, mark as moved (can't castle)
-                    if (captured != null && captured.type == PieceType.ROOK) {
-                        if (m.to.r==7 && m.to.c==0) whiteRookA_moved = true;
-                        if (m.to.r==7 && m.to.c==7) whiteRookH_moved = true;
-                        if (m.to.r==0 && m.to.c==0) blackRookA_moved = true;
-                        if (m.to.r==0 && m.to.c==7) blackRookH_moved = true;
-                    }
-
-                    // update en-passant target: if pawn moved two squares, set target, else clear
-                    enPassantTarget = null;
-                    if (moved != null && moved.type == PieceType.PAWN) {
-                        if (Math.abs(m.to.r - m.from.r) == 2) {
-                            // target is the square passed over
-                            int tr = (m.to.r + m.from.r) / 2;
-                            enPassantTarget = new Pos(tr, m.from.c);
-                        }
-                    }
-
-                    // apply promotion if any
-                    if (m.promotion != null) {
-                        board.set(m.to, m.promotion);
-                    }
-
-                    // Update half-move clock for fifty-move rule
-                    if (moved != null && moved.type == PieceType.PAWN || captured != null) {
-                        halfMoveClock = 0; // Reset on pawn move or capture
-                    } else {
-                        halfMoveClock++;
-                    }
-                    
-                    // Update position history for threefold repetition
-                    positionHistory.add(getPositionHash());
-                    
-                    // Update move number
-                    if (turn == Color.BLACK) {
-                        fullMoveNumber++;
-                    }
-
-                    // Update the last move in the current state (top of undo stack)
-                    if (!undoStack.isEmpty()) {
-                        undoStack.peek().lastMove = m;
-                    }
-
-                    // switch turn
-                    turn = (turn==Color.WHITE?Color.BLACK:Color.WHITE);
-                    return true;
-                }
-            }
-            return false;
-        }
-        public void restart() { 
-            board = new Board(); 
-            turn = Color.WHITE; 
-            whiteKingMoved = false;
-            blackKingMoved = false;
-            whiteRookA_moved = false;
-            whiteRookH_moved = false;
-            blackRookA_moved = false;
-            blackRookH_moved = false;
-            enPassantTarget = null;
-            undoStack.clear();
-            redoStack.clear();
-            positionHistory.clear();
-            halfMoveClock = 0;
-            fullMoveNumber = 1;
-        }
-
-        void run() {
-            while (true) {
-                board.print();
-                boolean inCheck = isInCheck(turn);
-                System.out.println((turn==Color.WHITE?"White":"Black") + (inCheck?" (in check)":"") + " to move.");
-                List<Move> moves = legalMoves(turn);
-                if (moves.isEmpty()) {
-                    if (inCheck) System.out.println("Checkmate. " + (turn==Color.WHITE?"Black":"White") + " wins.");
-                    else System.out.println("Stalemate. Draw.");
-                    break;
-                }
-                System.out.print("Enter move (e2 e4): ");
-                String line = in.nextLine().trim();
-                if (line.equalsIgnoreCase("quit") || line.equalsIgnoreCase("exit")) { System.out.println("Bye."); break; }
-                try {
-                    Move mv = parseMove(line);
-                    boolean ok=false;
-                    for (Move m : moves) if (m.from.equals(mv.from) && m.to.equals(mv.to)) { mv = m; ok=true; break; }
-                    if (!ok) { System.out.println("Illegal move."); continue; }
-                    board.apply(mv);
-                    // Pawn promotion handling already encoded in mv
-                    turn = (turn==Color.WHITE?Color.BLACK:Color.WHITE);
-                } catch (Exception e) {
-                    System.out.println("Parse error: " + e.getMessage());
-                }
-            }
-        }
-
-        Move parseMove(String line) {
-            // Accept formats: "e2 e4" or "e2e4"
-            line = line.replaceAll("\\s+", "");
-            if (line.length() < 4) throw new IllegalArgumentException("too short");
-            Pos from = new Pos(line.substring(0,2));
-            Pos to = new Pos(line.substring(2,4));
-            Move m = new Move(from,to);
-            // handle promotion like e7e8q or e7 e8 q
-            if (line.length()>=5) {
-                char p = Character.toLowerCase(line.charAt(4));
-                Piece promotion = null;
-                if (p=='q') promotion = new Piece(PieceType.QUEEN, turn);
-                else if (p=='r') promotion = new Piece(PieceType.ROOK, turn);
-                else if (p=='b') promotion = new Piece(PieceType.BISHOP, turn);
-                else if (p=='n') promotion = new Piece(PieceType.KNIGHT, turn);
-                if (promotion!=null) m.promotion = promotion;
-            }
-            return m;
-        }
-
-        boolean isInCheck(Color who) {
-            Pos kingPos = findKing(who);
-            if (kingPos == null) return true; // should not happen
-            return isSquareAttacked(kingPos, (who==Color.WHITE?Color.BLACK:Color.WHITE));
-        }
-
-        Pos findKing(Color who) {
-            for (int r=0;r<8;r++) for (int c=0;c<8;c++) {
-                Piece p = board.b[r][c];
-                if (p!=null && p.type==PieceType.KING && p.color==who) return new Pos(r,c);
-            }
-            return null;
-        }
-
-        boolean isSquareAttacked(Pos square, Color attacker) {
-            // Check if any attacker piece can attack the square
-            // We avoid calling pseudoLegalMoves to prevent infinite recursion with kingMoves()
-            for (int r = 0; r < 8; r++) {
-                for (int c = 0; c < 8; c++) {
-                    Piece p = board.b[r][c];
-                    if (p == null || p.color != attacker) continue;
-                    
-                    Pos from = new Pos(r, c);
-                    // Check if this piece can attack the square
-                    if (canPieceAttackSquare(from, p, square)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
-        }
-        
-        // Check if a piece at 'from' can attack 'target' square
-        // This is a simplified check that doesn't recurse into king move generation
-        boolean canPieceAttackSquare(Pos from, Piece p, Pos target) {
-            switch (p.type) {
-                case PAWN -> {
-                    int dir = (p.color == Color.WHITE) ? -1 : 1;
-                    // Pawns attack diagonally
-                    if (from.r + dir == target.r && Math.abs(from.c - target.c) == 1) {
-                        return true;
-                    }
-                }
-                case KNIGHT -> {
-                    int dr = Math.abs(from.r - target.r);
-                    int dc = Math.abs(from.c - target.c);
-                    if ((dr == 2 && dc == 1) || (dr == 1 && dc == 2)) {
-                        return true;
-                    }
-                }
-                case BISHOP -> {
-                    if (Math.abs(from.r - target.r) == Math.abs(from.c - target.c)) {
-                        // Check if path is clear
-                        if (isPathClear(from, target)) return true;
-                    }
-                }
-                case ROOK -> {
-                    if (from.r == target.r || from.c == target.c) {
-                        // Check if path is clear
-                        if (isPathClear(from, target)) return true;
-                    }
-                }
-                case QUEEN -> {
-                    if (from.r == target.r || from.c == target.c || 
-                        Math.abs(from.r - target.r) == Math.abs(from.c - target.c)) {
-                        // Check if path is clear
-                        if (isPathClear(from, target)) return true;
-                    }
-                }
-                case KING -> {
-                    // King attacks adjacent squares
-                    if (Math.abs(from.r - target.r) <= 1 && Math.abs(from.c - target.c) <= 1) {
-                        if (!(from.r == target.r && from.c == target.c)) {
-                            return true;
-                        }
-                    }
-                }
-            }
-            return false;
-        }
-        
-        // Check if path between two squares is clear (for sliding pieces)
-        boolean isPathClear(Pos from, Pos to) {
-            int dr = Integer.compare(to.r - from.r, 0);
-            int dc = Integer.compare(to.c - from.c, 0);
-            int r = from.r + dr;
-            int c = from.c + dc;
-            while (r != to.r || c != to.c) {
-                if (board.b[r][c] != null) return false;
-                r += dr;
-                c += dc;
-            }
-            return true;
-        }
-
-        List<Move> legalMoves(Color who) {
-            List<Move> pseudo = pseudoLegalMoves(who, false);
-            List<Move> legal = new ArrayList<>();
-            for (Move m : pseudo) {
-                Board copy = board.clone();
-                copy.apply(m);
-                Game sim = new Game();
-                sim.board = copy;
-                // king may have moved; check if own king in check
-                if (!sim.isInCheck(who)) legal.add(m);
-            }
-            return legal;
-        }
-
-        List<Move> pseudoLegalMoves(Color who, boolean attacksOnly) {
-            List<Move> moves = new ArrayList<>();
-            for (int r=0;r<8;r++) for (int c=0;c<8;c++) {
-                Piece p = board.b[r][c];
-                if (p==null || p.color!=who) continue;
-                Pos from = new Pos(r,c);
-                switch (p.type) {
-                    case PAWN: pawnMoves(from, p, moves); break;
-                    case KNIGHT: knightMoves(from, p, moves); break;
-                    case BISHOP: slidingMoves(from, p, moves, new int[][]{{1,1},{1,-1},{-1,1},{-1,-1}}); break;
-                    case ROOK: slidingMoves(from, p, moves, new int[][]{{1,0},{-1,0},{0,1},{0,-1}}); break;
-                    case QUEEN: slidingMoves(from, p, moves, new int[][]{{1,0},{-1,0},{0,1},{0,-1},{1,1},{1,-1},{-1,1},{-1,-1}}); break;
-                    case KING: kingMoves(from, p, moves); break;
-                }
-            }
-            return moves;
-        }
-
-        void pawnMoves(Pos from, Piece p, List<Move> moves) {
-            int dir = (p.color==Color.WHITE? -1 : 1);
-            int startRow = (p.color==Color.WHITE? 6 : 1);
-            Pos one = new Pos(from.r + dir, from.c);
-            if (one.inBounds() && board.get(one)==null) {
-                Move m = new Move(from, one);
-                // promotion
-                if (one.r==0 || one.r==7) m.promotion = new Piece(PieceType.QUEEN, p.color);
-                moves.add(m);
-                Pos two = new Pos(from.r + 2*dir, from.c);
-                if (from.r==startRow && two.inBounds() && board.get(two)==null) moves.add(new Move(from, two));
-            }
-            // captures
-            int[] dc = {-1,1};
-            for (int d:dc) {
-                Pos t = new Pos(from.r + dir, from.c + d);
-                if (!t.inBounds()) continue;
-                Piece at = board.get(t);
-                // normal capture
-                if (at!=null && at.color!=p.color) {
-                    Move m = new Move(from, t);
-                    if (t.r==0 || t.r==7) m.promotion = new Piece(PieceType.QUEEN, p.color);
-                    moves.add(m);
-                }
-                // en-passant capture
-                else if (enPassantTarget != null && t.equals(enPassantTarget)) {
-                    // ensure there is an opponent pawn in the correct square
-                    int capR = (p.color==Color.WHITE) ? t.r + 1 : t.r - 1;
-                    int capC = t.c;
-                    if (capR>=0 && capR<8) {
-                        Piece cap = board.b[capR][capC];
-                        if (cap != null && cap.type==PieceType.PAWN && cap.color!=p.color) {
-                            Move m = new Move(from, t);
-                            m.isEnPassant = true;
-                            moves.add(m);
-                        }
-                    }
-                }
-            }
-            // en passant handled above via enPassantTarget
-        }
-
-        void knightMoves(Pos from, Piece p, List<Move> moves) {
-            int[][] D = {{2,1},{2,-1},{-2,1},{-2,-1},{1,2},{1,-2},{-1,2},{-1,-2}};
-            for (int[] d: D) {
-                Pos t = new Pos(from.r + d[0], from.c + d[1]);
-                if (!t.inBounds()) continue;
-                Piece at = board.get(t);
-                if (at==null || at.color!=p.color) moves.add(new Move(from,t));
-            }
-        }
-
-        void slidingMoves(Pos from, Piece p, List<Move> moves, int[][] dirs) {
-            for (int[] d : dirs) {
-                int r = from.r + d[0], c = from.c + d[1];
-                while (r>=0 && r<8 && c>=0 && c<8) {
-                    Pos t = new Pos(r,c);
-                    Piece at = board.get(t);
-                    if (at==null) moves.add(new Move(from,t));
-                    else { if (at.color!=p.color) moves.add(new Move(from,t)); break; }
-                    r += d[0]; c += d[1];
-                }
-            }
-        }
-
-        void kingMoves(Pos from, Piece p, List<Move> moves) {
-            for (int dr=-1; dr<=1; dr++) for (int dc=-1; dc<=1; dc++) {
-                if (dr==0 && dc==0) continue;
-                Pos t = new Pos(from.r+dr, from.c+dc);
-                if (!t.inBounds()) continue;
-                Piece at = board.get(t);
-                if (at==null || at.color!=p.color) moves.add(new Move(from,t));
-            }
-            // castling
-            if (p.color==Color.WHITE) {
-                if (!whiteKingMoved && from.r==7 && from.c==4) {
-                    // king side
-                    if (!whiteRookH_moved && board.get(new Pos(7,5))==null && board.get(new Pos(7,6))==null) {
-                        // cannot castle through or into check
-                        if (!isSquareAttacked(new Pos(7,4), Color.BLACK) && !isSquareAttacked(new Pos(7,5), Color.BLACK) && !isSquareAttacked(new Pos(7,6), Color.BLACK)) {
-                            Move m = new Move(from, new Pos(7,6)); m.isCastleKingSide = true; moves.add(m);
-                        }
-                    }
-                    // queen side
-                    if (!whiteRookA_moved && board.get(new Pos(7,1))==null && board.get(new Pos(7,2))==null && board.get(new Pos(7,3))==null) {
-                        if (!isSquareAttacked(new Pos(7,4), Color.BLACK) && !isSquareAttacked(new Pos(7,3), Color.BLACK) && !isSquareAttacked(new Pos(7,2), Color.BLACK)) {
-                            Move m = new Move(from, new Pos(7,2)); m.isCastleQueenSide = true; moves.add(m);
-                        }
-                    }
-                }
-            } else {
-                if (!blackKingMoved && from.r==0 && from.c==4) {
-                    if (!blackRookH_moved && board.get(new Pos(0,5))==null && board.get(new Pos(0,6))==null) {
-                        if (!isSquareAttacked(new Pos(0,4), Color.WHITE) && !isSquareAttacked(new Pos(0,5), Color.WHITE) && !isSquareAttacked(new Pos(0,6), Color.WHITE)) {
-                            Move m = new Move(from, new Pos(0,6)); m.isCastleKingSide = true; moves.add(m);
-                        }
-                    }
-                    if (!blackRookA_moved && board.get(new Pos(0,1))==null && board.get(new Pos(0,2))==null && board.get(new Pos(0,3))==null) {
-                        if (!isSquareAttacked(new Pos(0,4), Color.WHITE) && !isSquareAttacked(new Pos(0,3), Color.WHITE) && !isSquareAttacked(new Pos(0,2), Color.WHITE)) {
-                            Move m = new Move(from, new Pos(0,2)); m.isCastleQueenSide = true; moves.add(m);
-                        }
-                    }
-                }
-            }
-        }
-        
-        // Position hash for threefold repetition detection
-        String getPositionHash() {
-            StringBuilder sb = new StringBuilder();
-            for (int r = 0; r < 8; r++) {
-                for (int c = 0; c < 8; c++) {
-                    Piece p = board.b[r][c];
-                    if (p == null) {
-                        sb.append('.');
-                    } else {
-                        sb.append(p.toString());
-                    }
-                }
-            }
-            // Include turn and castling rights
-            sb.append(turn == Color.WHITE ? 'W' : 'B');
-            sb.append(whiteKingMoved ? '0' : '1');
-            sb.append(blackKingMoved ? '0' : '1');
-            sb.append(whiteRookA_moved ? '0' : '1');
-            sb.append(whiteRookH_moved ? '0' : '1');
-            sb.append(blackRookA_moved ? '0' : '1');
-            sb.append(blackRookH_moved ? '0' : '1');
-            // Include en passant target
-            if (enPassantTarget != null) {
-                sb.append(enPassantTarget.toString());
-            }
-            return sb.toString();
-        }
-        
-        // Check for threefold repetition
-        boolean isThreefoldRepetition() {
-            String currentPosition = getPositionHash();
-            int count = 0;
-            for (String pos : positionHistory) {
-                if (pos.equals(currentPosition)) {
-                    count++;
-                    if (count >= 3) return true;
-                }
-            }
-            return false;
-        }
-        
-        // Check for fifty-move rule
-        boolean isFiftyMoveRule() {
-            return halfMoveClock >= 100; // 100 half-moves = 50 full moves
-        }
-        
-        // Check for insufficient material (dead position)
-        boolean isInsufficientMaterial() {
-            List<Piece> pieces = new ArrayList<>();
-            for (int r = 0; r < 8; r++) {
-                for (int c = 0; c < 8; c++) {
-                    Piece p = board.b[r][c];
-                    if (p != null && p.type != PieceType.KING) {
-                        pieces.add(p);
-                    }
-                }
-            }
-            
-            // King vs King
-            if (pieces.isEmpty()) return true;
-            
-            // King + minor piece vs King
-            if (pieces.size() == 1) {
-                PieceType type = pieces.get(0).type;
-                return type == PieceType.BISHOP || type == PieceType.KNIGHT;
-            }
-            
-            // King + Bishop vs King + Bishop (same color squares)
-            if (pieces.size() == 2) {
-                if (pieces.get(0).type == PieceType.BISHOP && pieces.get(1).type == PieceType.BISHOP) {
-                    // Find bishops
-                    Pos bishop1Pos = null, bishop2Pos = null;
-                    for (int r = 0; r < 8; r++) {
-                        for (int c = 0; c < 8; c++) {
-                            Piece p = board.b[r][c];
-                            if (p != null && p.type == PieceType.BISHOP) {
-                                if (bishop1Pos == null) bishop1Pos = new Pos(r, c);
-                                else bishop2Pos = new Pos(r, c);
-                            }
-                        }
-                    }
-                    // Same color square?
-                    if (bishop1Pos != null && bishop2Pos != null) {
-                        boolean bishop1Light = (bishop1Pos.r + bishop1Pos.c) % 2 == 0;
-                        boolean bishop2Light = (bishop2Pos.r + bishop2Pos.c) % 2 == 0;
-                        return bishop1Light == bishop2Light;
-                    }
-                }
-            }
-            
-            return false;
-        }
-        
-        // Enhanced stalemate detection
-        boolean isStalemate() {
-            // Must not be in check
-            if (isInCheck(turn)) return false;
-            
-            // Must have no legal moves
-            List<Move> moves = legalMoves(turn);
-            if (!moves.isEmpty()) return false;
-            
-            return true;
-        }
-        
-        // Check for draw by any rule
-        String getDrawReason() {
-            if (isStalemate()) return "Stalemate";
-            if (isThreefoldRepetition()) return "Threefold Repetition";
-            if (isFiftyMoveRule()) return "Fifty-Move Rule";
-            if (isInsufficientMaterial()) return "Insufficient Material";
-            return null;
-        }
-    }
-
     // --- Enhanced Professional Swing GUI ---
     static class ChessGUI {
         private JFrame frame;
@@ -1480,6 +451,7 @@ public class Chess {
         private JList<String> movesList;
         private Move lastMove = null;
         private int moveCounter = 0;
+        private boolean syncingMovesList = false; // selection changes made by showPlyInList, not the user
         
         // Timer components
         private ChessTimer chessTimer = null;
@@ -1503,6 +475,10 @@ public class Chess {
         // Evaluation bar
         private EvaluationBar evaluationBar;
         
+        // Opening explorer (Explorer > Open Index...)
+        private OpeningIndex openingIndex = null;
+        private JTextArea explorerText;
+        
         // Optimization: Cache rendering hints for reuse
         private static final RenderingHints QUALITY_HINTS = new RenderingHints(
             RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
@@ -1523,7 +499,73 @@ public class Chess {
         private static final java.awt.Color PANEL_FG = java.awt.Color.decode("#E8E8E8");
         private static final java.awt.Color ACCENT_COLOR = java.awt.Color.decode("#4A9EFF");
 
+        // Crash-safe session journal (see GameJournal); null when disabled
+        private GameJournal journal = null;
+
+        // Decodes the piece images while the window is built (see loadPieceImagesInBackground)
+        private Thread pieceImageLoader;
+        // Set instead of frame by renderOffscreen
+        private JPanel offscreenContents = null;
+
         void createAndShowGUI() {
+            StartupTrace.mark("building window");
+            frame = new JFrame("♔ Professional Chess ♔");
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.setJMenuBar(buildContents(frame.getContentPane()));
+            
+            frame.setMinimumSize(new Dimension(900, 700));
+            frame.pack();
+            frame.setLocationRelativeTo(null);
+            restoreSession();
+            updateStatus();
+            frame.setVisible(true);
+            StartupTrace.mark("window shown");
+        }
+
+        // What createAndShowGUI builds, without a window: lays the same contents out at the
+        // window's minimum size and paints them into an image. Used by --cds-training and
+        // --startup-trace when there is no display.
+        void renderOffscreen() {
+            StartupTrace.mark("building offscreen");
+            offscreenContents = new JPanel();
+            JMenuBar mb = buildContents(offscreenContents);
+            offscreenContents.add(mb, BorderLayout.NORTH);
+            updateStatus();
+            offscreenContents.setSize(900, 700);
+            paintOffscreen();
+        }
+
+        private void paintOffscreen() {
+            layoutTree(offscreenContents);
+            BufferedImage img = new BufferedImage(offscreenContents.getWidth(), offscreenContents.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = img.createGraphics();
+            offscreenContents.paint(g);
+            g.dispose();
+        }
+
+        private static void layoutTree(java.awt.Container c) {
+            c.doLayout();
+            for (java.awt.Component child : c.getComponents()) {
+                if (child instanceof java.awt.Container) layoutTree((java.awt.Container) child);
+            }
+        }
+
+        // --cds-training: a few moves through the keyboard path, so move handling, the move
+        // list and the evaluation bar are loaded too
+        void playTrainingMoves() {
+            for (String uci : new String[] {"e2e4", "e7e5", "g1f3", "b8c6"}) {
+                boardPanel.keyboardCursor = Pos.parse(uci.substring(0, 2));
+                boardPanel.keyboardSelectOrMove();
+                boardPanel.keyboardCursor = Pos.parse(uci.substring(2, 4));
+                boardPanel.keyboardSelectOrMove();
+            }
+            if (offscreenContents != null) paintOffscreen();
+            else boardPanel.paintImmediately(0, 0, boardPanel.getWidth(), boardPanel.getHeight());
+        }
+
+        // The game, menus, board, info panel and evaluation bar, laid out in content;
+        // returns the menu bar for the caller to place
+        private JMenuBar buildContents(java.awt.Container content) {
             game = new Game();
             // set promotion handler to show chooser dialog
             game.promotionHandler = (byColor) -> {
@@ -1536,7 +578,7 @@ public class Chess {
                         null,
                         options,
                         options[0]);
-                if (sel < 0) return new Piece(PieceType.QUEEN, byColor);
+                if (sel < 0) return Piece.of(PieceType.QUEEN, byColor);
                 PieceType t = PieceType.QUEEN;
                 switch (sel) {
                     case 0: t = PieceType.QUEEN; break;
@@ -1544,12 +586,10 @@ public class Chess {
                     case 2: t = PieceType.BISHOP; break;
                     case 3: t = PieceType.KNIGHT; break;
                 }
-                return new Piece(t, byColor);
+                return Piece.of(t, byColor);
             };
-            frame = new JFrame("♔ Professional Chess ♔");
-            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            loadPieceImages();
-            createMenuBar();
+            loadPieceImagesInBackground();
+            JMenuBar mb = createMenuBar();
 
             boardPanel = new BoardPanel();
             boardPanel.setPreferredSize(new Dimension(640, 640));
@@ -1568,15 +608,48 @@ public class Chess {
             boardContainer.add(boardPanel, BorderLayout.CENTER);
             
             // Create main layout with better proportions
-            frame.getContentPane().setLayout(new BorderLayout(10, 10));
-            frame.getContentPane().add(boardContainer, BorderLayout.CENTER);
-            frame.getContentPane().add(infoPanel, BorderLayout.EAST);
-            
-            frame.setMinimumSize(new Dimension(900, 700));
-            frame.pack();
-            frame.setLocationRelativeTo(null);
-            updateStatus();
-            frame.setVisible(true);
+            content.setLayout(new BorderLayout(10, 10));
+            content.add(boardContainer, BorderLayout.CENTER);
+            content.add(infoPanel, BorderLayout.EAST);
+            return mb;
+        }
+
+        // Replay the journal of a previous run (if it ended without closing the game)
+        // and keep journaling this one
+        private void restoreSession() {
+            java.nio.file.Path path = GameJournal.defaultPath();
+            if (path == null) return;
+            try {
+                GameJournal.Recovery r = GameJournal.recover(path, game);
+                // label the whole line, each move in the position it led to, then return to the recovered ply
+                game.goToPly(0);
+                for (Move m : r.line) {
+                    game.redo();
+                    movesListModel.addElement(formatMove(m, game.getPly()));
+                }
+                game.goToPly(r.ply);
+                moveCounter = r.ply;
+                lastMove = game.getLastMoveFromUndo();
+                showPlyInList();
+                if (r.whiteMs >= 0 && r.ply > 0) {
+                    ChessTimer restored = new ChessTimer(0L, r.incrementMs);
+                    restored.setRemaining(r.whiteMs, r.blackMs);
+                    installTimer(restored);
+                }
+                if (r.tornTail) System.err.println("journal: dropped an incomplete record at the end of " + path);
+                journal = GameJournal.resume(path, r, game);
+                journal.setClock(chessTimer);
+                game.journal = journal;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        journal.close();
+                    } catch (java.io.IOException ignored) {
+                        // best effort: every synced frame is already on disk
+                    }
+                }, "journal-close"));
+            } catch (java.io.IOException e) {
+                System.err.println("journal: " + e.getMessage() + " (session will not be saved)");
+            }
         }
         
         private JPanel createTimerPanel() {
@@ -1702,12 +775,29 @@ public class Chess {
             movesList.setForeground(PANEL_FG);
             movesList.setSelectionBackground(ACCENT_COLOR);
             movesList.setSelectionForeground(java.awt.Color.WHITE);
+            movesList.addListSelectionListener(e -> {
+                if (!syncingMovesList && !e.getValueIsAdjusting() && movesList.getSelectedIndex() >= 0) {
+                    jumpToPly(movesList.getSelectedIndex() + 1);
+                }
+            });
             JScrollPane scroll = new JScrollPane(movesList);
             scroll.setPreferredSize(new Dimension(250, 300));
             scroll.setBorder(BorderFactory.createLineBorder(ACCENT_COLOR.darker(), 2));
             panel.add(scroll);
             panel.add(Box.createRigidArea(new Dimension(0, 20)));
             
+            // Opening explorer section, filled from the loaded index
+            explorerText = new JTextArea("No opening index loaded", 6, 24);
+            explorerText.setEditable(false);
+            explorerText.setFont(new Font("Courier New", Font.PLAIN, 12));
+            explorerText.setBackground(java.awt.Color.decode("#1E1E1E"));
+            explorerText.setForeground(PANEL_FG);
+            JScrollPane explorerScroll = new JScrollPane(explorerText);
+            explorerScroll.setPreferredSize(new Dimension(250, 110));
+            explorerScroll.setBorder(BorderFactory.createLineBorder(ACCENT_COLOR.darker(), 2));
+            panel.add(explorerScroll);
+            panel.add(Box.createRigidArea(new Dimension(0, 20)));
+            
             // Control buttons
             JPanel buttonsPanel = new JPanel();
             buttonsPanel.setLayout(new BoxLayout(buttonsPanel, BoxLayout.Y_AXIS));
@@ -1724,8 +814,8 @@ public class Chess {
                 // Reset timer if enabled
                 if (timerEnabled && chessTimer != null) {
                     // Store current settings
-                    int minutes = (int)(chessTimer.whiteTime / 60000);
-                    int increment = (int)(chessTimer.increment / 1000);
+                    int minutes = (int)(chessTimer.getWhiteTime() / 60000);
+                    int increment = (int)(chessTimer.getIncrement() / 1000);
                     chessTimer.reset(minutes > 0 ? minutes : 10, increment);
                     chessTimer.start(Color.WHITE);
                 }
@@ -1738,11 +828,9 @@ public class Chess {
             JButton undoBtn = createStyledButton("Undo Move");
             undoBtn.addActionListener(e -> {
                 if (game.undo()) {
-                    // Remove last move from history display
-                    if (movesListModel.size() > 0) {
-                        movesListModel.remove(movesListModel.size() - 1);
-                        moveCounter--;
-                    }
+                    // Step back in the history display; the move stays listed for redo
+                    moveCounter--;
+                    showPlyInList();
                     // Get the last move from the previous state
                     lastMove = game.getLastMoveFromUndo();
                     boardPanel.clearSelection();
@@ -1759,13 +847,11 @@ public class Chess {
             JButton redoBtn = createStyledButton("Redo Move");
             redoBtn.addActionListener(e -> {
                 if (game.redo()) {
-                    // Re-add the move to history display
+                    // Re-select the move in the history display
                     Move redoneMove = game.getLastMoveFromUndo();
                     if (redoneMove != null) {
                         moveCounter++;
-                        String moveStr = formatMove(redoneMove, moveCounter);
-                        movesListModel.addElement(moveStr);
-                        movesList.ensureIndexIsVisible(movesListModel.getSize() - 1);
+                        showPlyInList();
                         lastMove = redoneMove;
                     }
                     boardPanel.clearSelection();
@@ -1831,7 +917,8 @@ public class Chess {
 
         void updateStatus() {
             String who = (game.getTurn() == Color.WHITE) ? "White" : "Black";
-            boolean inCheck = game.isInCheck(game.getTurn());
+            Game.PositionInfo info = game.getPositionInfo();
+            boolean inCheck = info.inCheck;
             
             // Update turn indicator
             turnIndicatorLabel.setText("● " + who);
@@ -1845,8 +932,10 @@ public class Chess {
             double evaluation = PositionEvaluator.evaluatePosition(game.getBoard(), game);
             evaluationBar.setEvaluation(evaluation);
             
+            updateExplorer();
+            
             // Check for draw conditions first
-            String drawReason = game.getDrawReason();
+            String drawReason = info.drawReason;
             if (drawReason != null) {
                 statusLabel.setText("Draw - " + drawReason);
                 statusLabel.setForeground(new java.awt.Color(255, 200, 100));
@@ -1867,8 +956,7 @@ public class Chess {
             }
             
             // Check for checkmate or stalemate
-            List<Move> moves = game.getLegalMovesForTurn();
-            if (moves.isEmpty()) {
+            if (info.legalMoves.isEmpty()) {
                 if (inCheck) {
                     String winner = game.getTurn() == Color.WHITE ? "Black" : "White";
                     statusLabel.setText("♔ CHECKMATE! " + winner + " wins!");
@@ -1888,6 +976,37 @@ public class Chess {
             }
         }
         
+        // The move list shows the whole recorded line, including moves that can be redone;
+        // the selected row is the move that led to the board position (moveCounter plies in)
+        private void addMoveToList(String moveStr) {
+            if (movesListModel.size() >= moveCounter) {
+                movesListModel.removeRange(moveCounter - 1, movesListModel.size() - 1); // replaced redo tail
+            }
+            movesListModel.addElement(moveStr);
+            showPlyInList();
+        }
+
+        private void showPlyInList() {
+            syncingMovesList = true;
+            if (moveCounter == 0) {
+                movesList.clearSelection();
+            } else {
+                movesList.setSelectedIndex(moveCounter - 1);
+                movesList.ensureIndexIsVisible(moveCounter - 1);
+            }
+            syncingMovesList = false;
+        }
+
+        // Clicking a move shows the position after it (Game.goToPly restores a checkpoint)
+        private void jumpToPly(int ply) {
+            if (ply == moveCounter || !game.goToPly(ply)) return;
+            moveCounter = ply;
+            lastMove = game.getLastMoveFromUndo();
+            boardPanel.clearSelection();
+            updateStatus();
+            boardPanel.repaint();
+        }
+
         String formatMove(Move move, int moveNum) {
             // Optimization: Use StringBuilder to avoid string concatenation
             StringBuilder sb = new StringBuilder(12);
@@ -1899,10 +1018,9 @@ public class Chess {
             sb.append(move.from).append("-").append(move.to);
             
             // Add check/checkmate symbols
-            boolean inCheck = game.isInCheck(game.getTurn());
-            if (inCheck) {
-                List<Move> moves = game.getLegalMovesForTurn();
-                if (moves.isEmpty()) {
+            Game.PositionInfo info = game.getPositionInfo();
+            if (info.inCheck) {
+                if (info.checkmate) {
                     sb.append("‡"); // Checkmate symbol
                 } else {
                     sb.append("†"); // Check symbol
@@ -1919,7 +1037,7 @@ public class Chess {
             // geometry used for both painting and mouse mapping (computed consistently)
             int cellSize = 0; // integer cell size (pixels)
             int xOff = 0, yOff = 0; // integer offsets where board starts
-            Pos keyboardCursor = new Pos(7,4); // start cursor
+            Pos keyboardCursor = Pos.of(7,4); // start cursor
             
             // Animation fields
             PieceAnimation currentAnimation = null;
@@ -1950,7 +1068,7 @@ public class Chess {
                         // Convert display coordinates to logical board coordinates
                         int row = getLogicalRow(displayRow);
                         int col = getLogicalCol(displayCol);
-                        Pos clicked = new Pos(row, col);
+                        Pos clicked = Pos.of(row, col);
                         
                         // Check if we're starting a drag operation
                         Piece p = game.getBoard().get(clicked);
@@ -1990,10 +1108,8 @@ public class Chess {
                                 
                                 // Format move in algebraic notation
                                 String moveStr = formatMove(candidate, moveCounter);
-                                movesListModel.addElement(moveStr);
+                                addMoveToList(moveStr);
                                 
-                                // Auto-scroll to latest move
-                                movesList.ensureIndexIsVisible(movesListModel.getSize() - 1);
                                 
                                 selected = null; targets = null;
                                 updateStatus();
@@ -2005,10 +1121,10 @@ public class Chess {
                                 }
                                 
                                 // Check for check/checkmate effects
-                                if (game.isInCheck(game.getTurn())) {
+                                Game.PositionInfo info = game.getPositionInfo();
+                                if (info.inCheck) {
                                     Pos kingPos = findKingPosition(game.getTurn());
-                                    List<Move> moves = game.getLegalMovesForTurn();
-                                    boolean isCheckmate = moves.isEmpty();
+                                    boolean isCheckmate = info.checkmate;
                                     checkEffect = new CheckEffect(kingPos, isCheckmate, isCheckmate ? 2000 : 1500);
                                 }
                                 
@@ -2043,7 +1159,7 @@ public class Chess {
                                 // Convert display coordinates to logical board coordinates
                                 int row = getLogicalRow(displayRow);
                                 int col = getLogicalCol(displayCol);
-                                Pos dropPos = new Pos(row, col);
+                                Pos dropPos = Pos.of(row, col);
                                 Move candidate = new Move(dragSource, dropPos);
                                 
                                 // Store piece and capture info before move
@@ -2065,10 +1181,8 @@ public class Chess {
                                     
                                     // Format move in algebraic notation
                                     String moveStr = formatMove(candidate, moveCounter);
-                                    movesListModel.addElement(moveStr);
+                                    addMoveToList(moveStr);
                                     
-                                    // Auto-scroll to latest move
-                                    movesList.ensureIndexIsVisible(movesListModel.getSize() - 1);
                                     
                                     selected = null; 
                                     targets = null;
@@ -2082,10 +1196,10 @@ public class Chess {
                                     }
                                     
                                     // Check for check/checkmate effects
-                                    if (game.isInCheck(game.getTurn())) {
+                                    Game.PositionInfo info = game.getPositionInfo();
+                                    if (info.inCheck) {
                                         Pos kingPos = findKingPosition(game.getTurn());
-                                        List<Move> moves = game.getLegalMovesForTurn();
-                                        boolean isCheckmate = moves.isEmpty();
+                                        boolean isCheckmate = info.checkmate;
                                         checkEffect = new CheckEffect(kingPos, isCheckmate, isCheckmate ? 2000 : 1500);
                                     }
                                 }
@@ -2118,7 +1232,10 @@ public class Chess {
 
             java.util.List<Pos> computeTargets(Pos from) {
                 java.util.List<Pos> t = new ArrayList<>();
-                for (Move m : game.getLegalMovesForTurn()) if (m.from.equals(from)) t.add(m.to);
+                for (long bits = game.getPositionInfo().targetsFrom(from); bits != 0; bits &= bits - 1) {
+                    int sq = Long.numberOfTrailingZeros(bits);
+                    t.add(Pos.of(sq >> 3, sq & 7));
+                }
                 return t;
             }
 
@@ -2146,15 +1263,7 @@ public class Chess {
             
             // Find king position for check effects
             Pos findKingPosition(Color color) {
-                for (int r = 0; r < 8; r++) {
-                    for (int c = 0; c < 8; c++) {
-                        Piece p = game.getBoard().b[r][c];
-                        if (p != null && p.type == PieceType.KING && p.color == color) {
-                            return new Pos(r, c);
-                        }
-                    }
-                }
-                return null;
+                return game.findKing(color);
             }
             
             // Start piece animation
@@ -2335,7 +1444,7 @@ public class Chess {
                 // Draw pieces with enhanced visuals
                 for (int r = 0; r < 8; r++) {
                     for (int c = 0; c < 8; c++) {
-                        Pos currentPos = new Pos(r, c);
+                        Pos currentPos = Pos.of(r, c);
                         
                         // Skip piece if it's being animated
                         if (currentAnimation != null && 
@@ -2412,6 +1521,7 @@ public class Chess {
                 }
                 
                 g2.dispose();
+                StartupTrace.framePainted();
             }
             
             // Helper method to draw a piece at a specific position with optional alpha
@@ -2560,7 +1670,7 @@ public class Chess {
             private void moveCursor(int dr, int dc) {
                 int nr = Math.max(0, Math.min(7, keyboardCursor.r + dr));
                 int nc = Math.max(0, Math.min(7, keyboardCursor.c + dc));
-                keyboardCursor = new Pos(nr, nc);
+                keyboardCursor = Pos.of(nr, nc);
                 // if nothing selected, position selection hover; else just repaint
                 if (selected == null) {
                     selected = keyboardCursor;
@@ -2588,8 +1698,7 @@ public class Chess {
                     }
                     
                     String moveStr = formatMove(candidate, moveCounter);
-                    movesListModel.addElement(moveStr);
-                    movesList.ensureIndexIsVisible(movesListModel.getSize() - 1);
+                    addMoveToList(moveStr);
                     selected = null; targets = null;
                     updateStatus();
                     repaint();
@@ -2630,8 +1739,19 @@ public class Chess {
         }
 
         private void setupTimer(int minutes, int incrementSeconds) {
+            installTimer(new ChessTimer(minutes, incrementSeconds));
+            
+            JOptionPane.showMessageDialog(frame, 
+                String.format("Timer set: %d minutes + %d seconds increment", minutes, incrementSeconds),
+                "Timer Started",
+                JOptionPane.INFORMATION_MESSAGE);
+        }
+        
+        // Make timer the game clock and start it for the side to move
+        private void installTimer(ChessTimer timer) {
             timerEnabled = true;
-            chessTimer = new ChessTimer(minutes, incrementSeconds);
+            chessTimer = timer;
+            if (journal != null) journal.setClock(timer);
             
             // Create update timer that refreshes display every 100ms
             if (timerUpdateTimer != null) {
@@ -2640,14 +1760,8 @@ public class Chess {
             timerUpdateTimer = new javax.swing.Timer(100, e -> updateTimerDisplay());
             timerUpdateTimer.start();
             
-            // Start the chess timer for white
-            chessTimer.start(Color.WHITE);
+            chessTimer.start(game.getTurn());
             updateTimerDisplay();
-            
-            JOptionPane.showMessageDialog(frame, 
-                String.format("Timer set: %d minutes + %d seconds increment", minutes, incrementSeconds),
-                "Timer Started",
-                JOptionPane.INFORMATION_MESSAGE);
         }
         
         private void setupCustomTimer() {
@@ -2681,6 +1795,7 @@ public class Chess {
         
         private void disableTimer() {
             timerEnabled = false;
+            if (journal != null) journal.setClock(null);
             if (chessTimer != null) {
                 chessTimer.stop();
             }
@@ -2733,7 +1848,7 @@ public class Chess {
             }
         }
         
-        private void createMenuBar() {
+        private JMenuBar createMenuBar() {
             JMenuBar mb = new JMenuBar();
             
             // Game menu
@@ -2749,8 +1864,8 @@ public class Chess {
                 
                 // Reset timer if enabled
                 if (timerEnabled && chessTimer != null) {
-                    int minutes = (int)(chessTimer.whiteTime / 60000);
-                    int increment = (int)(chessTimer.increment / 1000);
+                    int minutes = (int)(chessTimer.getWhiteTime() / 60000);
+                    int increment = (int)(chessTimer.getIncrement() / 1000);
                     chessTimer.reset(minutes > 0 ? minutes : 10, increment);
                     chessTimer.start(Color.WHITE);
                 }
@@ -2764,10 +1879,8 @@ public class Chess {
             undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, KeyEvent.CTRL_DOWN_MASK));
             undoItem.addActionListener(e -> {
                 if (game.undo()) {
-                    if (movesListModel.size() > 0) {
-                        movesListModel.remove(movesListModel.size() - 1);
-                        moveCounter--;
-                    }
+                    moveCounter--;
+                    showPlyInList();
                     lastMove = game.getLastMoveFromUndo();
                     boardPanel.clearSelection();
                     updateStatus();
@@ -2782,9 +1895,7 @@ public class Chess {
                     Move redoneMove = game.getLastMoveFromUndo();
                     if (redoneMove != null) {
                         moveCounter++;
-                        String moveStr = formatMove(redoneMove, moveCounter);
-                        movesListModel.addElement(moveStr);
-                        movesList.ensureIndexIsVisible(movesListModel.getSize() - 1);
+                        showPlyInList();
                         lastMove = redoneMove;
                     }
                     boardPanel.clearSelection();
@@ -2853,7 +1964,41 @@ public class Chess {
             
             mb.add(view);
             
-            frame.setJMenuBar(mb);
+            // Explorer menu
+            JMenu explorer = new JMenu("Explorer");
+            JMenuItem openIndex = new JMenuItem("Open Index...");
+            openIndex.addActionListener(e -> openExplorerIndex());
+            explorer.add(openIndex);
+            mb.add(explorer);
+            
+            return mb;
+        }
+
+        private void openExplorerIndex() {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+            try {
+                OpeningIndex loaded = new OpeningIndex(chooser.getSelectedFile().toPath());
+                if (openingIndex != null) openingIndex.close();
+                openingIndex = loaded;
+                updateExplorer();
+            } catch (java.io.IOException ex) {
+                JOptionPane.showMessageDialog(frame, ex.getMessage(), "Explorer", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        // Moves played from the current position with their result split (W / D / L %)
+        private void updateExplorer() {
+            if (openingIndex == null) return;
+            StringBuilder sb = new StringBuilder();
+            for (OpeningIndex.MoveStats s : openingIndex.lookup(game)) {
+                Move m = s.resolve(game);
+                if (m == null) continue;
+                sb.append(String.format("%-7s %6d  %3d/%3d/%3d%n", game.toSan(m), s.games(),
+                    100 * s.whiteWins / s.games(), 100 * s.draws / s.games(), 100 * s.blackWins / s.games()));
+            }
+            explorerText.setText(sb.length() == 0 ? "Position not in index" : sb.toString());
+            explorerText.setCaretPosition(0);
         }
 
         private Image makePlaceholderIcon(String key) {
@@ -2947,9 +2092,26 @@ public class Chess {
             return img;
         }
 
-        private void loadPieceImages() {
+        // Decode the piece images (and draw placeholders for missing ones) on another thread so
+        // the first frame does not wait for ImageIO; until they arrive pieces are drawn as glyphs
+        private void loadPieceImagesInBackground() {
+            pieceImageLoader = new Thread(() -> {
+                Map<String, Image> images = loadPieceImages();
+                SwingUtilities.invokeLater(() -> {
+                    originalImages.putAll(images);
+                    scaledImageCache.clear();
+                    boardPanel.repaint();
+                    StartupTrace.mark("piece images ready");
+                });
+            }, "piece-images");
+            pieceImageLoader.setDaemon(true);
+            pieceImageLoader.start();
+        }
+
+        private Map<String, Image> loadPieceImages() {
             // Optimization: Load piece images efficiently with better structure
             String dir = "images";
+            Map<String, Image> images = new HashMap<>(12);
             
             // Optimization: Use Map.of for immutable map (Java 9+) or initialize capacity
             Map<Character, String> typeNames = new HashMap<>(6);
@@ -2979,9 +2141,10 @@ public class Chess {
                     };
                     
                     Image img = tryLoadImage(dir, candidates);
-                    originalImages.put(key, img != null ? img : makePlaceholderIcon(key));
+                    images.put(key, img != null ? img : makePlaceholderIcon(key));
                 }
             }
+            return images;
         }
         
         // Optimization: Extract image loading logic